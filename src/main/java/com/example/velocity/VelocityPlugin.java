@@ -1,12 +1,26 @@
 package com.example.velocity;
 
 import com.example.velocity.command.VskCommand;
+import com.example.velocity.config.PluginConfig;
 import com.example.velocity.script.CommandManager;
+import com.example.velocity.script.FunctionRegistry;
 import com.example.velocity.script.LoadResult;
+import com.example.velocity.script.PlayerNameIndex;
 import com.example.velocity.script.ScriptLoader;
 import com.example.velocity.script.event.EventManager;
+import com.example.velocity.script.execution.ActionExecutor;
+import com.example.velocity.script.execution.PermissionCache;
+import com.example.velocity.script.execution.RateLimiter;
+import com.example.velocity.script.execution.ScriptDispatcher;
+import com.example.velocity.script.execution.TimingWheel;
+import com.example.velocity.script.expression.AdaptiveOrder;
+import com.example.velocity.script.expression.ConditionParser;
 import com.example.velocity.script.variable.VariableManager;
 import com.example.velocity.script.variable.VariableStorage;
+import com.example.velocity.script.variable.VariableTransfer;
+import com.example.velocity.script.variable.replication.ChangeBus;
+import com.example.velocity.script.variable.replication.LoopbackChangeBus;
+import com.example.velocity.script.variable.replication.SocketChangeBus;
 import com.google.inject.Inject;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
@@ -19,6 +33,8 @@ import org.slf4j.Logger;
 import java.io.File;
 import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 @Plugin(
     id = "velocity-sk",
@@ -28,16 +44,23 @@ import java.sql.SQLException;
     authors = {"owenmakesmistakes"}
 )
 public class VelocityPlugin {
+    // How often saves that failed are tried again
+    private static final long DIRTY_RETRY_SECONDS = 30;
 
     private final ProxyServer server;
     private final Logger logger;
     private final Path dataDirectory;
     
+    private PluginConfig config;
     private ScriptLoader scriptLoader;
     private CommandManager commandManager;
     private EventManager eventManager;
+    private FunctionRegistry functionRegistry;
     private VariableStorage variableStorage;
     private VariableManager variableManager;
+    private ChangeBus changeBus;
+    private ScriptDispatcher dispatcher;
+    private TimingWheel timingWheel;
 
     @Inject
     public VelocityPlugin(ProxyServer server, Logger logger, @DataDirectory Path dataDirectory) {
@@ -51,6 +74,15 @@ public class VelocityPlugin {
         logger.info("VelocitySk is initializing...");
 
         try {
+            // Load config.properties
+            config = new PluginConfig(logger, dataDirectory);
+            config.load();
+
+            // Sample conditions and reorder their checks from live traffic
+            AdaptiveOrder.setEnabled(config.getBoolean("conditions.adaptive", true));
+            // Bound the work one "matches" check may do on a player's message
+            ConditionParser.setPatternStepLimit(config.getInt("conditions.pattern-step-limit", 200000));
+
             // Initialize variable storage
             File dbFile = dataDirectory.resolve("variables.db").toFile();
             variableStorage = new VariableStorage(logger, dbFile);
@@ -58,23 +90,69 @@ public class VelocityPlugin {
 
             // Initialize variable manager
             variableManager = new VariableManager(logger, variableStorage);
-            variableManager.loadGlobalVariables();
 
-            // Create scripts/ directory structure
+            // Create scripts/ directory structure and parse scripts
             scriptLoader = new ScriptLoader(logger, dataDirectory);
             scriptLoader.ensureDirectoryStructure();
+            LoadResult result = scriptLoader.loadScripts();
+
+            // Declare indexes before loading, so they are filled while variables stream in
+            variableManager.registerIndexes(result.getScripts());
+            variableManager.loadGlobalVariables();
+
+            // Save again variables whose save failed, e.g. while the disk was full
+            server.getScheduler().buildTask(this, () -> {
+                    int unsaved = variableManager.retryDirtyKeys();
+                    if (unsaved > 0) {
+                        logger.warn("{} global variable(s) are still not saved to storage", unsaved);
+                    }
+                })
+                .repeat(DIRTY_RETRY_SECONDS, TimeUnit.SECONDS)
+                .schedule();
+
+            // Replicate global variables to other proxies if enabled
+            if (config.getBoolean("replication.enabled", false)) {
+                startReplication();
+            }
+
+            // Choose where scripts run
+            Executor proxyScheduler = task -> server.getScheduler().buildTask(this, task).schedule();
+            int defaultThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            dispatcher = new ScriptDispatcher(logger,
+                ScriptDispatcher.Mode.fromConfig(config.getString("execution.mode", "inline"), logger),
+                proxyScheduler, Math.max(1, config.getInt("execution.threads", defaultThreads)));
+
+            // Shared timer for waits, and the executor both managers run actions with
+            timingWheel = new TimingWheel(logger, 50);
+            timingWheel.start();
+            ActionExecutor actionExecutor = new ActionExecutor(server, logger, timingWheel, dispatcher);
+
+            // Cooldowns and rate limits, kept in memory only
+            RateLimiter rateLimiter = new RateLimiter();
 
-            // Initialize command manager
-            commandManager = new CommandManager(server, logger, variableManager);
+            // Recent permission decisions, dropped on server switch and disconnect
+            PermissionCache permissionCache = new PermissionCache(
+                config.getInt("permissions.cache-ttl-millis", 2000), config.getInt("permissions.cache-size", 10000));
+            server.getEventManager().register(this, permissionCache);
+
+            // Online player names for completing player arguments
+            PlayerNameIndex playerNames = new PlayerNameIndex(server);
+            server.getEventManager().register(this, playerNames);
+
+            // Initialize command manager; completions are worked out on the proxy scheduler
+            commandManager = new CommandManager(server, logger, variableManager, actionExecutor, dispatcher,
+                rateLimiter, permissionCache, playerNames, proxyScheduler);
 
             // Initialize event manager
-            eventManager = new EventManager(server, logger, variableManager);
+            eventManager = new EventManager(server, logger, variableManager, actionExecutor, dispatcher, timingWheel,
+                rateLimiter, permissionCache);
 
             // Register event manager with Velocity
             server.getEventManager().register(this, eventManager);
 
-            // Load and register scripts
-            LoadResult result = scriptLoader.loadScripts();
+            // Link function calls, then register scripts
+            functionRegistry = new FunctionRegistry(logger);
+            functionRegistry.registerScripts(result.getScripts());
             commandManager.registerScripts(result.getScripts());
             eventManager.registerScripts(result.getScripts());
 
@@ -83,7 +161,9 @@ public class VelocityPlugin {
                 server.getCommandManager().metaBuilder("vsk")
                     .aliases("velocitysk")
                     .build(),
-                new VskCommand(scriptLoader, commandManager, eventManager, variableManager, logger)
+                new VskCommand(server, this, scriptLoader, commandManager, eventManager, functionRegistry,
+                    variableManager, new VariableTransfer(logger, variableStorage, variableManager, dataDirectory),
+                    permissionCache, logger)
             );
 
             if (result.hadErrors()) {
@@ -101,11 +181,74 @@ public class VelocityPlugin {
         }
     }
 
+    private void startReplication() {
+        // Versions are saved per node, so a node id made up on each start would lose writes
+        String nodeId = config.getString("replication.node-id", null);
+        if (nodeId == null) {
+            logger.error("replication.node-id is not set; give each proxy a unique, fixed id. Replication disabled");
+            return;
+        }
+        long tombstoneHorizon = TimeUnit.SECONDS.toMillis(
+            config.getInt("replication.tombstone-horizon-seconds", 3600));
+        String transport = config.getString("replication.transport", "socket").toLowerCase();
+        String secret = config.getString("replication.secret", null);
+        if (transport.equals("socket") && secret == null) {
+            logger.error("replication.secret is not set; the socket transport needs a secret shared by all proxies. "
+                + "Replication disabled");
+            return;
+        }
+
+        ChangeBus bus = switch (transport) {
+            case "loopback" -> new LoopbackChangeBus(logger, config.getString("replication.channel", "velocity-sk"));
+            case "socket" -> new SocketChangeBus(logger,
+                config.getString("replication.bind-address", "127.0.0.1"),
+                config.getInt("replication.bind-port", 25590),
+                secret,
+                config.getList("replication.peers"),
+                config.getList("replication.allowed-peers"));
+            default -> null;
+        };
+
+        if (bus == null) {
+            logger.error("Unknown replication transport '{}', replication disabled", transport);
+            return;
+        }
+
+        try {
+            variableManager.attachChangeBus(bus, nodeId, tombstoneHorizon);
+            bus.start();
+            changeBus = bus;
+            // Catch up on changes made by other proxies while this one was down
+            variableManager.requestResync();
+        } catch (Exception e) {
+            logger.error("Failed to start variable replication", e);
+            variableManager.detachChangeBus();
+            bus.close();
+        }
+    }
+
     @Subscribe
     public void onProxyShutdown(ProxyShutdownEvent event) {
         logger.info("VelocitySk is shutting down...");
         
-        // Close variable storage
+        // Let running scripts finish before their variables' storage goes away;
+        // scripts still waiting are dropped
+        if (timingWheel != null) {
+            timingWheel.close();
+        }
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+
+        // Stop replication before storage goes away
+        if (changeBus != null) {
+            changeBus.close();
+        }
+        
+        // Close variable storage, after a last try at saving what failed before
+        if (variableManager != null) {
+            variableManager.retryDirtyKeys();
+        }
         if (variableStorage != null) {
             variableStorage.close();
         }
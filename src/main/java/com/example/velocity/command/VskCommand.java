@@ -1,33 +1,65 @@
 package com.example.velocity.command;
 
 import com.example.velocity.script.CommandManager;
+import com.example.velocity.script.FunctionRegistry;
 import com.example.velocity.script.LoadResult;
 import com.example.velocity.script.Script;
 import com.example.velocity.script.ScriptLoader;
 import com.example.velocity.script.event.EventManager;
+import com.example.velocity.script.event.EventTrigger;
+import com.example.velocity.script.execution.PermissionCache;
+import com.example.velocity.script.expression.AdaptiveOrder;
+import com.example.velocity.script.expression.CompoundCondition;
+import com.example.velocity.script.expression.Condition;
+import com.example.velocity.script.expression.NotCondition;
 import com.example.velocity.script.variable.VariableManager;
+import com.example.velocity.script.variable.VariableStatistics;
+import com.example.velocity.script.variable.VariableTransfer;
+import com.velocitypowered.api.command.CommandSource;
 import com.velocitypowered.api.command.SimpleCommand;
+import com.velocitypowered.api.proxy.ProxyServer;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
 import org.slf4j.Logger;
 
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class VskCommand implements SimpleCommand {
+    /** Needed for sub-commands that read or change server data; the console always has it. */
+    public static final String ADMIN_PERMISSION = "velocitysk.admin";
+    private static final Set<String> ADMIN_SUBCOMMANDS = Set.of("variables", "conditions", "permissions");
+
+    private final ProxyServer server;
+    private final Object plugin;
     private final ScriptLoader scriptLoader;
     private final CommandManager commandManager;
     private final EventManager eventManager;
+    private final FunctionRegistry functionRegistry;
     private final VariableManager variableManager;
+    private final VariableTransfer variableTransfer;
+    private final PermissionCache permissionCache;
     private final Logger logger;
+    private final AtomicBoolean transferRunning;
 
-    public VskCommand(ScriptLoader scriptLoader, CommandManager commandManager, EventManager eventManager, 
-                      VariableManager variableManager, Logger logger) {
+    public VskCommand(ProxyServer server, Object plugin, ScriptLoader scriptLoader, CommandManager commandManager,
+                      EventManager eventManager, FunctionRegistry functionRegistry, VariableManager variableManager,
+                      VariableTransfer variableTransfer, PermissionCache permissionCache, Logger logger) {
+        this.server = server;
+        this.plugin = plugin;
         this.scriptLoader = scriptLoader;
         this.commandManager = commandManager;
         this.eventManager = eventManager;
+        this.functionRegistry = functionRegistry;
         this.variableManager = variableManager;
+        this.variableTransfer = variableTransfer;
+        this.permissionCache = permissionCache;
         this.logger = logger;
+        this.transferRunning = new AtomicBoolean();
     }
 
     @Override
@@ -46,6 +78,9 @@ public class VskCommand implements SimpleCommand {
             case "enable" -> handleEnable(invocation, args);
             case "disable" -> handleDisable(invocation, args);
             case "info" -> handleInfo(invocation);
+            case "variables" -> handleVariables(invocation, args);
+            case "conditions" -> handleConditions(invocation, args);
+            case "permissions" -> handlePermissions(invocation, args);
             default -> showUsage(invocation);
         }
     }
@@ -56,13 +91,193 @@ public class VskCommand implements SimpleCommand {
         invocation.source().sendMessage(Component.text("  /vsk enable <script.vsk>", NamedTextColor.YELLOW));
         invocation.source().sendMessage(Component.text("  /vsk disable <script.vsk>", NamedTextColor.YELLOW));
         invocation.source().sendMessage(Component.text("  /vsk info - Show plugin info and stats", NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text("  /vsk variables <export|import> <file> [prefix] [--overwrite]", NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text("  /vsk conditions <script.vsk> - Show condition order and stats", NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text("  /vsk permissions flush - Forget cached permission checks", NamedTextColor.YELLOW));
     }
 
     private void handleInfo(Invocation invocation) {
         invocation.source().sendMessage(Component.text("=== VelocitySk Info ===", NamedTextColor.GOLD));
         invocation.source().sendMessage(Component.text("Version: 1.0.0", NamedTextColor.YELLOW));
-        invocation.source().sendMessage(Component.text("Variables: " + variableManager.getStats(), NamedTextColor.YELLOW));
+        VariableStatistics stats = variableManager.getStatistics();
+        invocation.source().sendMessage(Component.text("Variables: " + stats.getCacheSize() + " cached, "
+            + stats.getPersistedCount() + " stored", NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text("Unsaved: " + stats.getDirtyCount() + " dirty, "
+            + stats.getPendingFlushes() + " pending write(s)", NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text("Active Scopes: " + stats.getScopeCount(), NamedTextColor.YELLOW));
         invocation.source().sendMessage(Component.text("Events: " + eventManager.getStats(), NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text("Functions: " + functionRegistry.getFunctionCount() + " ("
+            + functionRegistry.getInlineCount() + " inlined)", NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text("Permissions: " + permissionCache.getStats(), NamedTextColor.YELLOW));
+        invocation.source().sendMessage(Component.text(String.format("Event thread time saved: %.1f ms over %d event(s)",
+            eventManager.getOffloadedNanos() / 1_000_000.0, eventManager.getOffloadedEvents()), NamedTextColor.YELLOW));
+    }
+
+    // ========== PERMISSIONS ==========
+
+    private void handlePermissions(Invocation invocation, String[] args) {
+        CommandSource source = invocation.source();
+        if (!checkAdmin(source)) {
+            return;
+        }
+        if (args.length < 2 || !args[1].equalsIgnoreCase("flush")) {
+            source.sendMessage(Component.text("Usage: /vsk permissions flush", NamedTextColor.RED));
+            source.sendMessage(Component.text(permissionCache.getStats(), NamedTextColor.YELLOW));
+            return;
+        }
+
+        // After editing permissions, so players don't keep an old decision until it expires
+        int dropped = permissionCache.flush();
+        source.sendMessage(Component.text("Forgot " + dropped + " cached permission check(s).", NamedTextColor.GREEN));
+    }
+
+    // ========== VARIABLES ==========
+
+    private void handleVariables(Invocation invocation, String[] args) {
+        CommandSource source = invocation.source();
+        if (!checkAdmin(source)) {
+            return;
+        }
+        if (args.length < 3 || !(args[1].equalsIgnoreCase("export") || args[1].equalsIgnoreCase("import"))) {
+            source.sendMessage(Component.text(
+                "Usage: /vsk variables <export|import> <file.jsonl|file.csv> [prefix] [--overwrite]", NamedTextColor.RED));
+            return;
+        }
+
+        boolean export = args[1].equalsIgnoreCase("export");
+        String prefix = null;
+        boolean overwrite = false;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("--overwrite")) {
+                overwrite = true;
+            } else {
+                prefix = args[i];
+            }
+        }
+        boolean replaceFile = overwrite;
+        String namePrefix = prefix;
+
+        Path file;
+        try {
+            file = variableTransfer.resolveFile(args[2]);
+        } catch (Exception e) {
+            source.sendMessage(Component.text(e.getMessage(), NamedTextColor.RED));
+            return;
+        }
+
+        if (!transferRunning.compareAndSet(false, true)) {
+            source.sendMessage(Component.text("Another variable export or import is still running.", NamedTextColor.RED));
+            return;
+        }
+
+        source.sendMessage(Component.text((export ? "Exporting" : "Importing") + " variables "
+            + (export ? "to " : "from ") + args[2] + "...", NamedTextColor.YELLOW));
+
+        // Large tables take a while, keep it off the command thread
+        server.getScheduler().buildTask(plugin, () -> {
+            try {
+                long count = export
+                    ? variableTransfer.exportTo(file, namePrefix, replaceFile)
+                    : variableTransfer.importFrom(file, namePrefix);
+                source.sendMessage(Component.text((export ? "Exported " : "Imported ") + count
+                    + " variable(s).", NamedTextColor.GREEN));
+            } catch (FileAlreadyExistsException e) {
+                source.sendMessage(Component.text(args[2] + " already exists. Add --overwrite to replace it.",
+                    NamedTextColor.RED));
+            } catch (Exception e) {
+                source.sendMessage(Component.text("Variable " + (export ? "export" : "import")
+                    + " failed: " + e.getMessage(), NamedTextColor.RED));
+                logger.error("Variable {} failed for {}", export ? "export" : "import", file, e);
+            } finally {
+                transferRunning.set(false);
+            }
+        }).schedule();
+    }
+
+    /**
+     * Tells the source off if it lacks {@link #ADMIN_PERMISSION}.
+     * @return whether the source may continue
+     */
+    private boolean checkAdmin(CommandSource source) {
+        if (source.hasPermission(ADMIN_PERMISSION)) {
+            return true;
+        }
+        source.sendMessage(Component.text("You need " + ADMIN_PERMISSION + " to use this.", NamedTextColor.RED));
+        return false;
+    }
+
+    // ========== CONDITIONS ==========
+
+    /**
+     * Lists every if/else if chain of a script in its current evaluation order, with the
+     * sampled outcomes adaptive ordering is based on.
+     */
+    private void handleConditions(Invocation invocation, String[] args) {
+        CommandSource source = invocation.source();
+        if (!checkAdmin(source)) {
+            return;
+        }
+        if (args.length < 2) {
+            source.sendMessage(Component.text("Usage: /vsk conditions <script.vsk>", NamedTextColor.RED));
+            return;
+        }
+        Script script = functionRegistry.getScript(args[1]);
+        if (script == null) {
+            source.sendMessage(Component.text("Script not loaded: " + args[1], NamedTextColor.RED));
+            return;
+        }
+
+        source.sendMessage(Component.text("=== Conditions in " + script.getName() + " (adaptive ordering "
+            + (AdaptiveOrder.isEnabled() ? "on" : "off") + ") ===", NamedTextColor.GOLD));
+        List<String> lines = new ArrayList<>();
+        for (Script.CommandScript command : script.getCommands()) {
+            describeConditions("/" + command.getLabel(), command.getActions(), lines);
+        }
+        for (EventTrigger trigger : script.getEventTriggers()) {
+            describeConditions("on " + trigger.getEventType().name().toLowerCase(), trigger.getActions(), lines);
+        }
+        for (Script.FunctionDefinition function : script.getFunctions()) {
+            describeConditions(function.getName() + "()", function.getActions(), lines);
+        }
+
+        if (lines.isEmpty()) {
+            source.sendMessage(Component.text("No conditions.", NamedTextColor.YELLOW));
+        }
+        for (String line : lines) {
+            source.sendMessage(Component.text(line, NamedTextColor.YELLOW));
+        }
+    }
+
+    private void describeConditions(String owner, List<Script.Action> actions, List<String> lines) {
+        for (Script.Action action : actions) {
+            if (action instanceof Script.ConditionalAction conditional) {
+                lines.add(owner + (conditional.isExclusive() ? " (branches reordered by use):" : ":"));
+                String keyword = "if ";
+                for (Script.Branch branch : conditional.getBranches()) {
+                    lines.add("  " + keyword + branch.getCondition()
+                        + (conditional.isExclusive() ? " [taken " + branch.getStats().getHits() + "]" : ""));
+                    describeTerms(branch.getCondition(), "    ", lines);
+                    keyword = "else if ";
+                }
+                for (Script.Branch branch : conditional.getBranches()) {
+                    describeConditions(owner, branch.getActions(), lines);
+                }
+                describeConditions(owner, conditional.getElseActions(), lines);
+            } else if (action instanceof Script.LoopAction loop) {
+                describeConditions(owner, loop.getActions(), lines);
+            }
+        }
+    }
+
+    private void describeTerms(Condition condition, String indent, List<String> lines) {
+        if (condition instanceof NotCondition not) {
+            describeTerms(not.getInner(), indent, lines);
+        } else if (condition instanceof CompoundCondition compound) {
+            for (CompoundCondition.Term term : compound.getTerms()) {
+                lines.add(indent + "- " + term.getCondition() + " [" + term.getStats() + "]");
+                describeTerms(term.getCondition(), indent + "  ", lines);
+            }
+        }
     }
 
     // ========== RELOAD ==========
@@ -97,6 +312,8 @@ public class VskCommand implements SimpleCommand {
             commandManager.unregisterAll();
             eventManager.unregisterAll();
             LoadResult result = scriptLoader.loadScripts();
+            variableManager.registerIndexes(result.getScripts());
+            functionRegistry.registerScripts(result.getScripts());
             commandManager.registerScripts(result.getScripts());
             eventManager.registerScripts(result.getScripts());
 
@@ -141,6 +358,8 @@ public class VskCommand implements SimpleCommand {
                 return;
             }
 
+            variableManager.addIndexes(script);
+            functionRegistry.registerScript(script);
             commandManager.unregisterScriptCommands(script);
             commandManager.registerScript(script);
             // Note: Event triggers are reloaded with full reload only
@@ -193,6 +412,8 @@ public class VskCommand implements SimpleCommand {
             return;
         }
 
+        variableManager.addIndexes(script);
+        functionRegistry.registerScript(script);
         commandManager.registerScript(script);
 
         invocation.source().sendMessage(
@@ -236,6 +457,7 @@ public class VskCommand implements SimpleCommand {
             );
             return;
         }
+        functionRegistry.unregisterScript(script);
 
         invocation.source().sendMessage(
             Component.text("Successfully disabled script: " + scriptName, NamedTextColor.GREEN)
@@ -251,7 +473,9 @@ public class VskCommand implements SimpleCommand {
         
         // First argument: subcommands
         if (args.length == 0 || args.length == 1) {
-            List<String> suggestions = List.of("reload", "enable", "disable", "info");
+            List<String> suggestions = invocation.source().hasPermission(ADMIN_PERMISSION)
+                ? List.of("reload", "enable", "disable", "info", "variables", "conditions", "permissions")
+                : List.of("reload", "enable", "disable", "info");
             
             if (args.length == 1) {
                 String input = args[0].toLowerCase();
@@ -266,6 +490,9 @@ public class VskCommand implements SimpleCommand {
         // Second argument: depends on subcommand
         if (args.length == 2) {
             String action = args[0].toLowerCase();
+            if (ADMIN_SUBCOMMANDS.contains(action) && !invocation.source().hasPermission(ADMIN_PERMISSION)) {
+                return List.of();
+            }
             List<String> suggestions = new ArrayList<>();
             
             switch (action) {
@@ -276,6 +503,9 @@ public class VskCommand implements SimpleCommand {
                 case "enable" -> suggestions.addAll(scriptLoader.getDisabledScriptNames());
                 case "disable" -> suggestions.addAll(scriptLoader.getEnabledScriptNames());
                 case "info" -> {} // No suggestions for info
+                case "variables" -> suggestions.addAll(List.of("export", "import"));
+                case "conditions" -> suggestions.addAll(scriptLoader.getEnabledScriptNames());
+                case "permissions" -> suggestions.add("flush");
             }
             
             String input = args[1].toLowerCase();
@@ -0,0 +1,147 @@
+package com.example.velocity.config;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Plugin settings loaded from config.properties in the data directory.
+ * Missing keys fall back to their defaults, so old config files keep working.
+ */
+public class PluginConfig {
+    private static final String FILE_NAME = "config.properties";
+
+    private final Logger logger;
+    private final Path configFile;
+    private final Properties properties;
+
+    public PluginConfig(Logger logger, Path dataDirectory) {
+        this.logger = logger;
+        this.configFile = dataDirectory.resolve(FILE_NAME);
+        this.properties = new Properties();
+    }
+
+    /**
+     * Loads the config file, writing the default one first if it does not exist.
+     */
+    public void load() {
+        try {
+            if (!Files.exists(configFile)) {
+                Files.createDirectories(configFile.getParent());
+                writeDefaults();
+            }
+
+            try (Reader reader = Files.newBufferedReader(configFile)) {
+                properties.clear();
+                properties.load(reader);
+            }
+            logger.info("Loaded config from {}", configFile);
+        } catch (IOException e) {
+            logger.error("Failed to load config, using defaults", e);
+        }
+    }
+
+    private void writeDefaults() throws IOException {
+        String defaults = """
+            # VelocitySk configuration
+
+            # Replicate global variable changes to other proxies.
+            replication.enabled=false
+            # Transport: loopback (in-process, for testing) or socket (TCP between proxies)
+            replication.transport=socket
+            # Unique id of this proxy, required and kept the same across restarts
+            replication.node-id=
+            # How long a deleted variable is remembered, so older changes to it arriving late are ignored
+            replication.tombstone-horizon-seconds=3600
+            # Channel name shared by loopback buses in the same JVM
+            replication.channel=velocity-sk
+            # Address and port this proxy listens on for changes from its peers (socket transport).
+            # Set the address to one the other proxies can reach, such as a private network address
+            replication.bind-address=127.0.0.1
+            replication.bind-port=25590
+            # Comma-separated host:port list of the other proxies (socket transport)
+            replication.peers=
+            # Secret shared by all proxies, required by the socket transport; peers without it are refused
+            replication.secret=
+            # Comma-separated hosts allowed to connect, or * for any; empty allows only the hosts in peers
+            replication.allowed-peers=
+
+            # Where commands and event triggers run:
+            #   inline  - on the Velocity thread that received them
+            #   virtual - each on its own virtual thread, so database access never blocks Velocity (Java 21+)
+            #   actor   - like virtual, but each player's commands and triggers run one at a time, in order
+            execution.mode=inline
+            # Threads scripts run on in virtual and actor mode before Java 21, which has no virtual
+            # threads; empty uses twice the number of CPU cores, and at least 4
+            execution.threads=
+
+            # Reorder the checks of and/or conditions, and of else if chains that compare one value,
+            # from sampled live traffic so the cheapest and most decisive checks run first
+            conditions.adaptive=true
+            # Most steps one "matches" pattern check may take on a value before it counts as not matching
+            conditions.pattern-step-limit=200000
+
+            # How long a player's permission check is reused by commands and "has permission" conditions;
+            # 0 asks the permission plugin every time. /vsk permissions flush forgets all of them
+            permissions.cache-ttl-millis=2000
+            # Most permission decisions kept at once
+            permissions.cache-size=10000
+            """;
+
+        try (Writer writer = Files.newBufferedWriter(configFile)) {
+            writer.write(defaults);
+        }
+        logger.info("Created default config: {}", configFile);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid number for config key '{}': {}, using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public List<String> getList(String key) {
+        List<String> values = new ArrayList<>();
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return values;
+        }
+        for (String part : value.split(",")) {
+            String cleaned = part.trim();
+            if (!cleaned.isEmpty()) {
+                values.add(cleaned);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.velocity.script;
+
+import com.example.velocity.script.expression.ValueType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A declared argument of a script command, such as {@code <amount:number>},
+ * {@code <target:player>}, {@code <message:text...>} or {@code <mode:easy|hard>}.
+ * Arguments without a type are text.
+ */
+public class CommandArgument {
+    private final String name;
+    private final Type type;
+    private final boolean rest;
+    // Choices as declared, and lowercased in sorted order for prefix lookups
+    private final List<String> choices;
+    private final String[] sortedKeys;
+    private final String[] sortedChoices;
+
+    public enum Type {
+        TEXT("text"),
+        NUMBER("number"),
+        PLAYER("player"),
+        CHOICE("choice");
+
+        private final String keyword;
+
+        Type(String keyword) {
+            this.keyword = keyword;
+        }
+
+        public String getKeyword() {
+            return keyword;
+        }
+
+        /**
+         * The type named in a declaration, or null if there is none by that name.
+         */
+        public static Type fromKeyword(String keyword) {
+            for (Type type : values()) {
+                if (type != CHOICE && type.keyword.equalsIgnoreCase(keyword)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    public CommandArgument(String name, Type type, boolean rest) {
+        this(name, type, rest, List.of());
+    }
+
+    /**
+     * An argument that accepts one of a fixed set of words, such as {@code <mode:easy|hard>}.
+     */
+    public CommandArgument(String name, List<String> choices) {
+        this(name, Type.CHOICE, false, choices);
+    }
+
+    private CommandArgument(String name, Type type, boolean rest, List<String> choices) {
+        this.name = name;
+        this.type = type;
+        this.rest = rest;
+        this.choices = List.copyOf(choices);
+
+        // Sorted once here, so completing a choice is a binary search per keystroke
+        String[] sorted = choices.toArray(new String[0]);
+        Arrays.sort(sorted, String.CASE_INSENSITIVE_ORDER);
+        this.sortedChoices = sorted;
+        this.sortedKeys = new String[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sortedKeys[i] = sorted[i].toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Whether the argument takes the rest of the command line, spaces included.
+     */
+    public boolean isRest() {
+        return rest;
+    }
+
+    /**
+     * The words a choice argument accepts, as declared.
+     */
+    public List<String> getChoices() {
+        return choices;
+    }
+
+    /**
+     * The declared spelling of a choice typed in any case, or null if it is not one.
+     */
+    public String findChoice(String value) {
+        int index = Arrays.binarySearch(sortedKeys, value.toLowerCase(Locale.ROOT));
+        return index >= 0 ? sortedChoices[index] : null;
+    }
+
+    /**
+     * The choices starting with what has been typed so far, in alphabetical order.
+     */
+    public List<String> completeChoice(String prefix) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        int index = Arrays.binarySearch(sortedKeys, key);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        List<String> matches = new ArrayList<>();
+        while (index < sortedKeys.length && sortedKeys[index].startsWith(key)) {
+            matches.add(sortedChoices[index++]);
+        }
+        return matches;
+    }
+
+    /**
+     * The type conditions can rely on for %name% inside the command.
+     */
+    public ValueType getValueType() {
+        return type == Type.NUMBER ? ValueType.NUMBER : ValueType.UNKNOWN;
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.CHOICE) {
+            return "<" + name + ":" + String.join("|", choices) + ">";
+        }
+        if (type == Type.TEXT && !rest) {
+            return "<" + name + ">";
+        }
+        return "<" + name + ":" + type.getKeyword() + (rest ? "..." : "") + ">";
+    }
+}
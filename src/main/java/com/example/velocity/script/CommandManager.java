@@ -2,6 +2,10 @@ package com.example.velocity.script;
 
 import com.example.velocity.script.execution.ActionExecutor;
 import com.example.velocity.script.execution.ExecutionContext;
+import com.example.velocity.script.execution.PermissionCache;
+import com.example.velocity.script.execution.RateLimiter;
+import com.example.velocity.script.execution.ScriptDispatcher;
+import com.example.velocity.script.expression.ArithmeticParser;
 import com.example.velocity.script.variable.VariableManager;
 import com.velocitypowered.api.command.CommandSource;
 import com.velocitypowered.api.command.SimpleCommand;
@@ -10,23 +14,45 @@ import com.velocitypowered.api.proxy.ProxyServer;
 import net.kyori.adventure.text.Component;
 import org.slf4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public class CommandManager {
     private final ProxyServer server;
     private final Logger logger;
     private final VariableManager variableManager;
     private final ActionExecutor actionExecutor;
-    private final Map<String, Script.CommandScript> registeredCommands;
+    private final ScriptDispatcher dispatcher;
+    private final RateLimiter rateLimiter;
+    private final PermissionCache permissionCache;
+    private final PlayerNameIndex playerNames;
+    private final Executor completionExecutor;
+    // Command trees by name, each registered as one Velocity command
+    private final Map<String, CommandTree> registeredCommands;
 
-    public CommandManager(ProxyServer server, Logger logger, VariableManager variableManager) {
+    public CommandManager(ProxyServer server, Logger logger, VariableManager variableManager,
+                          ActionExecutor actionExecutor, ScriptDispatcher dispatcher, RateLimiter rateLimiter,
+                          PermissionCache permissionCache, PlayerNameIndex playerNames, Executor completionExecutor) {
         this.server = server;
         this.logger = logger;
         this.variableManager = variableManager;
-        this.actionExecutor = new ActionExecutor(server, logger);
+        this.actionExecutor = actionExecutor;
+        this.dispatcher = dispatcher;
+        this.rateLimiter = rateLimiter;
+        this.permissionCache = permissionCache;
+        this.playerNames = playerNames;
+        this.completionExecutor = completionExecutor;
         this.registeredCommands = new HashMap<>();
     }
 
@@ -36,43 +62,70 @@ public class CommandManager {
 
         // Register all commands from all scripts
         for (Script script : scripts) {
-            for (Script.CommandScript command : script.getCommands()) {
-                registerCommand(command);
-            }
+            registerTrees(script);
         }
 
         logger.info("Registered {} command(s) from scripts", registeredCommands.size());
     }
 
-    private void registerCommand(Script.CommandScript commandScript) {
-        String commandName = commandScript.getCommandName();
+    /**
+     * Registers the commands of a script, one Velocity command per name with its
+     * sub-commands in a tree.
+     */
+    private void registerTrees(Script script) {
+        Map<String, List<Script.CommandScript>> byName = new LinkedHashMap<>();
+        for (Script.CommandScript command : script.getCommands()) {
+            byName.computeIfAbsent(command.getCommandName(), name -> new ArrayList<>()).add(command);
+        }
+        for (Map.Entry<String, List<Script.CommandScript>> entry : byName.entrySet()) {
+            registerTree(new CommandTree(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private void registerTree(CommandTree tree) {
+        String commandName = tree.getRoot().getLabel();
         
         // Store the command
-        registeredCommands.put(commandName, commandScript);
+        registeredCommands.put(commandName, tree);
 
         // Register with Velocity - don't pass commandName in aliases parameter
         server.getCommandManager().register(
             commandName,
-            new ScriptCommand(commandScript)
+            new ScriptCommand(tree.getRoot())
         );
 
         logger.info("Registered command: /{}", commandName);
 
-        // Register aliases
-        for (String alias : commandScript.getAliases()) {
-            server.getCommandManager().register(
-                alias,
-                new ScriptCommand(commandScript)
-            );
-            logger.info("Registered alias: /{} -> /{}", alias, commandName);
+        // Register aliases; an alias of a sub-command runs that sub-command
+        for (CommandTree.Node node : aliasedNodes(tree)) {
+            for (String alias : node.getCommand().getAliases()) {
+                server.getCommandManager().register(
+                    alias,
+                    new ScriptCommand(node)
+                );
+                logger.info("Registered alias: /{} -> /{}", alias, node.getLabel());
+            }
+        }
+    }
+
+    private static List<CommandTree.Node> aliasedNodes(CommandTree tree) {
+        List<CommandTree.Node> nodes = new ArrayList<>();
+        List<CommandTree.Node> pending = new ArrayList<>(List.of(tree.getRoot()));
+        while (!pending.isEmpty()) {
+            CommandTree.Node node = pending.remove(pending.size() - 1);
+            if (node.getCommand() != null && !node.getCommand().getAliases().isEmpty()) {
+                nodes.add(node);
+            }
+            pending.addAll(node.getChildren());
         }
+        return nodes;
     }
 
     private class ScriptCommand implements SimpleCommand {
-        private final Script.CommandScript commandScript;
+        private final CommandTree.Node start;
 
-        public ScriptCommand(Script.CommandScript commandScript) {
-            this.commandScript = commandScript;
+        public ScriptCommand(CommandTree.Node start) {
+            this.start = start;
         }
 
         @Override
@@ -85,33 +138,181 @@ public class CommandManager {
                 return;
             }
 
+            // Find the sub-command; the words after it are its arguments
+            String[] invocationArgs = invocation.arguments();
+            CommandTree.Match match = CommandTree.walk(start, invocationArgs);
+            Script.CommandScript commandScript = match.node().getCommand();
+            if (commandScript == null) {
+                player.sendMessage(Component.text("§cUsage: " + subCommandUsage(match.node(), player)));
+                return;
+            }
+
             // Check permission
-            if (commandScript.getPermission() != null && !commandScript.getPermission().isEmpty()) {
-                if (!player.hasPermission(commandScript.getPermission())) {
-                    String message = commandScript.getPermissionMessage();
-                    if (message == null || message.isEmpty()) {
-                        message = "§cYou don't have permission to use this command.";
-                    }
-                    player.sendMessage(Component.text(message));
-                    return;
+            if (!CommandTree.isPermitted(commandScript, player, permissionCache)) {
+                String message = commandScript.getPermissionMessage();
+                if (message == null || message.isEmpty()) {
+                    message = "§cYou don't have permission to use this command.";
                 }
+                player.sendMessage(Component.text(message));
+                return;
             }
 
             // Get command arguments
-            String[] args = invocation.arguments();
+            String[] args = Arrays.copyOfRange(invocationArgs, match.consumed(), invocationArgs.length);
             
             // Check if enough arguments are provided
             List<String> requiredArgs = commandScript.getArguments();
             if (requiredArgs.size() > args.length) {
-                String usage = commandScript.getUsage();
-                if (usage == null || usage.isEmpty()) {
-                    usage = "/" + commandScript.getCommandName() + 
-                        (requiredArgs.isEmpty() ? "" : " <" + String.join("> <", requiredArgs) + ">");
-                }
-                player.sendMessage(Component.text("§cUsage: " + usage));
+                player.sendMessage(Component.text("§cUsage: " + usage(commandScript)));
+                return;
+            }
+
+            // Convert typed arguments once, so actions reuse the numbers and players
+            String[] values = args.clone();
+            Object[] typedValues = convertArguments(commandScript, player, values);
+            if (typedValues == null) {
                 return;
             }
+            String[] argumentValues = typedValues.length == args.length ? values : Arrays.copyOf(values, typedValues.length);
+
+            // Check cooldown; only uses that get this far count towards it
+            if (commandScript.getCooldownMillis() > 0) {
+                long remainingMillis = rateLimiter.tryCooldown(player.getUniqueId(),
+                    "/" + commandScript.getLabel(), commandScript.getCooldownMillis());
+                if (remainingMillis > 0) {
+                    String message = commandScript.getCooldownMessage();
+                    if (message == null || message.isEmpty()) {
+                        message = "§cPlease wait %remaining% more second(s) before using this command again.";
+                    }
+                    long remainingSeconds = (remainingMillis + 999) / 1000;
+                    player.sendMessage(Component.text(message.replace("%remaining%", String.valueOf(remainingSeconds))));
+                    return;
+                }
+            }
+
+            dispatcher.dispatch(player, () -> run(commandScript, player, requiredArgs, argumentValues, typedValues));
+        }
+
+        @Override
+        public CompletableFuture<List<String>> suggestAsync(Invocation invocation) {
+            // Permission checks may call into a permissions plugin, so keep them off the
+            // Netty thread that asks for completions
+            return CompletableFuture.supplyAsync(() -> suggest(invocation), completionExecutor);
+        }
+
+        @Override
+        public List<String> suggest(Invocation invocation) {
+            CommandSource source = invocation.source();
+            String[] args = invocation.arguments();
+            String prefix = args.length == 0 ? "" : args[args.length - 1];
+            String[] complete = args.length == 0 ? args : Arrays.copyOf(args, args.length - 1);
+            CommandTree.Match match = CommandTree.walk(start, complete);
+            List<String> suggestions = new ArrayList<>();
+
+            // Sub-command words that follow the words typed so far
+            if (match.consumed() == complete.length) {
+                String word = prefix.toLowerCase(Locale.ROOT);
+                for (String child : match.node().getVisibleWords(source, permissionCache)) {
+                    if (child.startsWith(word)) {
+                        suggestions.add(child);
+                    }
+                }
+            }
 
+            // Values for the argument being typed, by its declared type
+            Script.CommandScript commandScript = match.node().getCommand();
+            if (commandScript == null || !CommandTree.isPermitted(commandScript, source, permissionCache)) {
+                return suggestions;
+            }
+            List<CommandArgument> declared = commandScript.getDeclaredArguments();
+            int position = complete.length - match.consumed();
+            if (position < declared.size()) {
+                CommandArgument argument = declared.get(position);
+                switch (argument.getType()) {
+                    case PLAYER -> suggestions.addAll(playerNames.complete(prefix));
+                    case CHOICE -> suggestions.addAll(argument.completeChoice(prefix));
+                    default -> {
+                    }
+                }
+            }
+            return suggestions;
+        }
+
+        private String usage(Script.CommandScript commandScript) {
+            String usage = commandScript.getUsage();
+            if (usage == null || usage.isEmpty()) {
+                StringBuilder builder = new StringBuilder("/").append(commandScript.getLabel());
+                for (CommandArgument argument : commandScript.getDeclaredArguments()) {
+                    builder.append(' ').append(argument);
+                }
+                usage = builder.toString();
+            }
+            return usage;
+        }
+
+        /**
+         * Usage of a node that only groups sub-commands, listing those the player may use.
+         */
+        private String subCommandUsage(CommandTree.Node node, Player player) {
+            List<String> words = node.getVisibleWords(player, permissionCache);
+            if (words.isEmpty()) {
+                return "/" + node.getLabel();
+            }
+            return "/" + node.getLabel() + " <" + String.join("|", words) + ">";
+        }
+
+        /**
+         * Converts the typed arguments of an invocation: numbers are parsed, player names
+         * resolved to online players, and a text... argument joins the rest of the line.
+         * Values are updated in place. Returns the converted values, or null after telling
+         * the player which argument is wrong.
+         */
+        private Object[] convertArguments(Script.CommandScript commandScript, Player player, String[] values) {
+            List<CommandArgument> declared = commandScript.getDeclaredArguments();
+            Object[] typed = new Object[values.length];
+            for (int i = 0; i < declared.size(); i++) {
+                CommandArgument argument = declared.get(i);
+                if (argument.isRest()) {
+                    values[i] = String.join(" ", Arrays.copyOfRange(values, i, values.length));
+                    return Arrays.copyOf(typed, i + 1);
+                }
+                switch (argument.getType()) {
+                    case NUMBER -> {
+                        double number = ArithmeticParser.parseDecimal(values[i]);
+                        if (!Double.isFinite(number)) {
+                            player.sendMessage(Component.text("§c<" + argument.getName() + "> must be a number, not '"
+                                + values[i] + "'. Usage: " + usage(commandScript)));
+                            return null;
+                        }
+                        typed[i] = number;
+                    }
+                    case PLAYER -> {
+                        Optional<Player> target = server.getPlayer(values[i]);
+                        if (target.isEmpty()) {
+                            player.sendMessage(Component.text("§cPlayer '" + values[i] + "' is not online."));
+                            return null;
+                        }
+                        typed[i] = target.get();
+                        values[i] = target.get().getUsername();
+                    }
+                    case CHOICE -> {
+                        String choice = argument.findChoice(values[i]);
+                        if (choice == null) {
+                            player.sendMessage(Component.text("§c<" + argument.getName() + "> must be one of: "
+                                + String.join(", ", argument.getChoices()) + "."));
+                            return null;
+                        }
+                        values[i] = choice;
+                    }
+                    default -> {
+                    }
+                }
+            }
+            return typed;
+        }
+
+        private void run(Script.CommandScript commandScript, Player player, List<String> requiredArgs,
+                         String[] args, Object[] typedArgs) {
             // Create execution context
             UUID scopeId = variableManager.createScope();
             
@@ -120,22 +321,33 @@ public class CommandManager {
                     .server(server)
                     .player(player)
                     .arguments(requiredArgs, args)
+                    .typedArguments(typedArgs)
                     .variableManager(variableManager)
                     .scopeId(scopeId)
+                    .rateLimiter(rateLimiter)
+                    .permissionCache(permissionCache)
                     .build();
 
-                // Execute all actions in the command
-                actionExecutor.executeActions(commandScript.getActions(), context);
+                // Execute all actions in the command; local variables live until they finish,
+                // including any waits
+                actionExecutor.execute(commandScript.getActions(), context, error -> {
+                    if (error != null) {
+                        reportError(commandScript, player, error);
+                    }
+                    variableManager.destroyScope(scopeId);
+                });
             } catch (Exception e) {
-                logger.error("Error executing command /{} for player {}", 
-                            commandScript.getCommandName(), player.getUsername(), e);
-                player.sendMessage(Component.text("§cAn error occurred while executing this command."));
-            } finally {
-                // Clean up local variables
+                reportError(commandScript, player, e);
                 variableManager.destroyScope(scopeId);
             }
         }
 
+        private void reportError(Script.CommandScript commandScript, Player player, Throwable error) {
+            logger.error("Error executing command /{} for player {}", 
+                        commandScript.getLabel(), player.getUsername(), error);
+            player.sendMessage(Component.text("§cAn error occurred while executing this command."));
+        }
+
         @Override
         public boolean hasPermission(Invocation invocation) {
             // We handle permission checking in execute() to send custom messages
@@ -144,38 +356,41 @@ public class CommandManager {
     }
 
     public void registerScript(Script script) {
-        for (Script.CommandScript command : script.getCommands()) {
-            registerCommand(command);
-        }
+        registerTrees(script);
         logger.info("Registered {} command(s) from script: {}", script.getCommands().size(), script.getName());
     }
 
     public void unregisterScriptCommands(Script script) {
+        Set<String> names = new LinkedHashSet<>();
         for (Script.CommandScript command : script.getCommands()) {
-            String commandName = command.getCommandName();
-            server.getCommandManager().unregister(commandName);
-            registeredCommands.remove(commandName);
-            logger.info("Unregistered command: /{}", commandName);
-
-            // Unregister aliases
-            for (String alias : command.getAliases()) {
-                server.getCommandManager().unregister(alias);
-                logger.info("Unregistered alias: /{}", alias);
+            names.add(command.getCommandName());
+        }
+        for (String commandName : names) {
+            CommandTree tree = registeredCommands.remove(commandName);
+            if (tree != null) {
+                unregisterTree(commandName, tree);
+                logger.info("Unregistered command: /{}", commandName);
             }
         }
     }
 
     public void unregisterAll() {
-        for (String commandName : registeredCommands.keySet()) {
-            Script.CommandScript command = registeredCommands.get(commandName);
-            server.getCommandManager().unregister(commandName);
-            
-            // Unregister aliases
+        for (Map.Entry<String, CommandTree> entry : registeredCommands.entrySet()) {
+            unregisterTree(entry.getKey(), entry.getValue());
+        }
+        registeredCommands.clear();
+        logger.info("Unregistered all script commands");
+    }
+
+    private void unregisterTree(String commandName, CommandTree tree) {
+        server.getCommandManager().unregister(commandName);
+
+        // Unregister aliases
+        for (Script.CommandScript command : tree.getCommands()) {
             for (String alias : command.getAliases()) {
                 server.getCommandManager().unregister(alias);
+                logger.info("Unregistered alias: /{}", alias);
             }
         }
-        registeredCommands.clear();
-        logger.info("Unregistered all script commands");
     }
 }
@@ -0,0 +1,167 @@
+package com.example.velocity.script;
+
+import com.example.velocity.script.execution.PermissionCache;
+import com.velocitypowered.api.command.CommandSource;
+import com.velocitypowered.api.proxy.Player;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The commands of a script that share a name, such as /shop buy <item>, /shop sell <item>
+ * and /shop list, as a trie of their sub-command words.
+ *
+ * The tree is registered as one Velocity command. An invocation walks down one node per
+ * sub-command word, so finding the command to run costs one lookup per word however many
+ * sub-commands there are. Words left over after the walk are the command's arguments, and
+ * the next words to type are the children of the node reached.
+ */
+class CommandTree {
+    private final Node root;
+
+    /**
+     * A sub-command word, the command that runs when the invocation stops here (if any) and
+     * the words that may follow.
+     */
+    static final class Node {
+        private final String label;
+        private final Map<String, Node> children;
+        private Script.CommandScript command;
+
+        private Node(String label) {
+            this.label = label;
+            this.children = new TreeMap<>();
+        }
+
+        /**
+         * The command name with the words leading here, such as "shop buy".
+         */
+        String getLabel() {
+            return label;
+        }
+
+        Script.CommandScript getCommand() {
+            return command;
+        }
+
+        Node getChild(String word) {
+            return children.get(word.toLowerCase(Locale.ROOT));
+        }
+
+        Collection<Node> getChildren() {
+            return children.values();
+        }
+
+        /**
+         * The last word of the label, which is typed to reach this node.
+         */
+        String getWord() {
+            return label.substring(label.lastIndexOf(' ') + 1);
+        }
+
+        /**
+         * Whether the source may run this node's command or any command below it.
+         */
+        boolean isVisibleTo(CommandSource source, PermissionCache permissions) {
+            if (command != null && isPermitted(command, source, permissions)) {
+                return true;
+            }
+            for (Node child : children.values()) {
+                if (child.isVisibleTo(source, permissions)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The sub-commands the source may use next, sorted.
+         */
+        List<String> getVisibleWords(CommandSource source, PermissionCache permissions) {
+            List<String> words = new ArrayList<>();
+            for (Node child : children.values()) {
+                if (child.isVisibleTo(source, permissions)) {
+                    words.add(child.getWord());
+                }
+            }
+            return words;
+        }
+    }
+
+    /**
+     * The node an invocation reached and how many of its words were sub-command words.
+     */
+    record Match(Node node, int consumed) {
+    }
+
+    CommandTree(String name, List<Script.CommandScript> commands) {
+        this.root = new Node(name);
+        for (Script.CommandScript command : commands) {
+            Node node = root;
+            for (String word : command.getPath()) {
+                String key = word.toLowerCase(Locale.ROOT);
+                Node parent = node;
+                node = parent.children.computeIfAbsent(key, k -> new Node(parent.label + " " + k));
+            }
+            node.command = command;
+        }
+    }
+
+    Node getRoot() {
+        return root;
+    }
+
+    /**
+     * All commands in the tree.
+     */
+    List<Script.CommandScript> getCommands() {
+        List<Script.CommandScript> commands = new ArrayList<>();
+        collect(root, commands);
+        return commands;
+    }
+
+    /**
+     * Walks from a node along the sub-command words at the start of the arguments.
+     * A word that is not a sub-command ends the walk and becomes an argument.
+     */
+    static Match walk(Node start, String[] args) {
+        Node node = start;
+        int consumed = 0;
+        while (consumed < args.length) {
+            Node child = node.getChild(args[consumed]);
+            if (child == null) {
+                break;
+            }
+            node = child;
+            consumed++;
+        }
+        return new Match(node, consumed);
+    }
+
+    /**
+     * Whether the source may run the command, using recent decisions for players.
+     */
+    static boolean isPermitted(Script.CommandScript command, CommandSource source, PermissionCache permissions) {
+        String permission = command.getPermission();
+        if (permission == null || permission.isEmpty()) {
+            return true;
+        }
+        if (source instanceof Player player) {
+            return permissions.hasPermission(player, permission);
+        }
+        return source.hasPermission(permission);
+    }
+
+    private static void collect(Node node, List<Script.CommandScript> commands) {
+        if (node.command != null) {
+            commands.add(node.command);
+        }
+        for (Node child : node.children.values()) {
+            collect(child, commands);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.velocity.script;
+
+import com.example.velocity.script.event.EventTrigger;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Holds the functions of all loaded scripts and links every call to its function.
+ * Calls are resolved once here, when scripts are (re)loaded, so a call at runtime
+ * follows a direct reference instead of looking the name up.
+ *
+ * Small functions that are not recursive and don't write local variables are marked
+ * inline: they run in a shared empty local scope, skipping the scope a call otherwise creates.
+ */
+public class FunctionRegistry {
+    // Largest function body, counting nested actions, that is run inline
+    private static final int INLINE_MAX_ACTIONS = 8;
+
+    private final Logger logger;
+    private final Map<String, Script> scripts;
+    private final Map<String, Script.FunctionDefinition> functions;
+    private int inlineCount;
+
+    public FunctionRegistry(Logger logger) {
+        this.logger = logger;
+        this.scripts = new LinkedHashMap<>();
+        this.functions = new HashMap<>();
+    }
+
+    /**
+     * Replaces all scripts and relinks every call.
+     */
+    public synchronized void registerScripts(List<Script> loaded) {
+        scripts.clear();
+        for (Script script : loaded) {
+            scripts.put(script.getName(), script);
+        }
+        link();
+    }
+
+    /**
+     * Adds or replaces one script, then relinks every call so other scripts calling
+     * its functions use the new definitions.
+     */
+    public synchronized void registerScript(Script script) {
+        scripts.put(script.getName(), script);
+        link();
+    }
+
+    /**
+     * Removes one script's functions and relinks every call.
+     */
+    public synchronized void unregisterScript(Script script) {
+        scripts.remove(script.getName());
+        link();
+    }
+
+    /**
+     * A loaded script by its file name, or null if it is not loaded.
+     */
+    public synchronized Script getScript(String name) {
+        return scripts.get(name);
+    }
+
+    public synchronized int getFunctionCount() {
+        return functions.size();
+    }
+
+    public synchronized int getInlineCount() {
+        return inlineCount;
+    }
+
+    private void link() {
+        functions.clear();
+        for (Script script : scripts.values()) {
+            for (Script.FunctionDefinition function : script.getFunctions()) {
+                Script.FunctionDefinition existing = functions.putIfAbsent(function.getName(), function);
+                if (existing != null) {
+                    logger.warn("Function {}() in {} is already defined in {}, ignoring it",
+                                function.getName(), script.getName(), existing.getScriptName());
+                }
+            }
+        }
+
+        // Resolve calls, remembering which functions each function calls
+        Map<Script.FunctionDefinition, Set<Script.FunctionDefinition>> callees = new HashMap<>();
+        for (Script script : scripts.values()) {
+            for (Script.CommandScript command : script.getCommands()) {
+                linkCalls(command.getActions(), script, null);
+            }
+            for (EventTrigger trigger : script.getEventTriggers()) {
+                linkCalls(trigger.getActions(), script, null);
+                trigger.setWritesLocals(writesLocals(trigger.getActions()));
+            }
+            for (Script.FunctionDefinition function : script.getFunctions()) {
+                Set<Script.FunctionDefinition> called = new HashSet<>();
+                callees.put(function, called);
+                linkCalls(function.getActions(), script, called);
+            }
+        }
+
+        inlineCount = 0;
+        for (Script.FunctionDefinition function : functions.values()) {
+            boolean inline = !isRecursive(function, callees)
+                && countActions(function.getActions()) <= INLINE_MAX_ACTIONS
+                && !writesLocals(function.getActions());
+            function.setInline(inline);
+            if (inline) {
+                inlineCount++;
+            }
+        }
+        if (!functions.isEmpty()) {
+            logger.info("Linked {} function(s), {} inlined", functions.size(), inlineCount);
+        }
+    }
+
+    private void linkCalls(List<Script.Action> actions, Script script, Set<Script.FunctionDefinition> called) {
+        forEachAction(actions, action -> {
+            if (!(action instanceof Script.CallAction call)) {
+                return;
+            }
+            Script.FunctionDefinition function = functions.get(call.getFunctionName());
+            call.setFunction(function);
+            if (function == null) {
+                logger.warn("Script {} calls {}(), which no loaded script defines",
+                            script.getName(), call.getFunctionName());
+                return;
+            }
+            if (call.getArguments().size() != function.getParameters().size()) {
+                logger.warn("Script {} calls {}() with {} argument(s), but it takes {}",
+                            script.getName(), call.getFunctionName(), call.getArguments().size(),
+                            function.getParameters().size());
+            }
+            if (called != null) {
+                called.add(function);
+            }
+        });
+    }
+
+    /**
+     * Whether the function can reach itself through its calls.
+     */
+    private static boolean isRecursive(Script.FunctionDefinition function,
+                                       Map<Script.FunctionDefinition, Set<Script.FunctionDefinition>> callees) {
+        Set<Script.FunctionDefinition> seen = new HashSet<>();
+        List<Script.FunctionDefinition> pending = new ArrayList<>(callees.getOrDefault(function, Set.of()));
+        while (!pending.isEmpty()) {
+            Script.FunctionDefinition next = pending.remove(pending.size() - 1);
+            if (next == function) {
+                return true;
+            }
+            if (seen.add(next)) {
+                pending.addAll(callees.getOrDefault(next, Set.of()));
+            }
+        }
+        return false;
+    }
+
+    private static int countActions(List<Script.Action> actions) {
+        int[] count = new int[1];
+        forEachAction(actions, action -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * Whether any action sets or deletes a local variable, which an inlined body or a
+     * trigger run without a scope has nowhere to keep.
+     */
+    private static boolean writesLocals(List<Script.Action> actions) {
+        boolean[] writes = new boolean[1];
+        forEachAction(actions, action -> {
+            String target = action instanceof Script.CallAction call
+                ? call.getResultVariable()
+                : action.getVariableName();
+            if (target != null && target.startsWith("{_")) {
+                writes[0] = true;
+            }
+        });
+        return writes[0];
+    }
+
+    /**
+     * Visits every action, including those inside conditionals and loops.
+     */
+    private static void forEachAction(List<Script.Action> actions, Consumer<Script.Action> visitor) {
+        for (Script.Action action : actions) {
+            visitor.accept(action);
+            if (action instanceof Script.ConditionalAction conditional) {
+                for (Script.Branch branch : conditional.getBranches()) {
+                    forEachAction(branch.getActions(), visitor);
+                }
+                forEachAction(conditional.getElseActions(), visitor);
+            } else if (action instanceof Script.LoopAction loop) {
+                forEachAction(loop.getActions(), visitor);
+            }
+        }
+    }
+}
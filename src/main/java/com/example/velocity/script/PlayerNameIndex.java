@@ -0,0 +1,163 @@
+package com.example.velocity.script;
+
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.connection.PostLoginEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * The names of online players in a prefix trie, kept up to date on join and quit, so
+ * completing a player argument walks the typed prefix instead of every player.
+ *
+ * Changes copy the nodes along one name's path and publish a new root, so lookups from
+ * any thread read a consistent trie without locking. Names are at most 16 characters,
+ * which keeps each change to a handful of small copies.
+ */
+public class PlayerNameIndex {
+    // More names than a client can usefully show in its completion list
+    private static final int MAX_SUGGESTIONS = 100;
+
+    private static final Node EMPTY = new Node(new char[0], new Node[0], null, null, 0);
+
+    private volatile Node root;
+
+    /**
+     * A trie node: child characters in sorted order, the player whose lowercased name
+     * ends here (if any), and how many names there are below.
+     */
+    private record Node(char[] keys, Node[] children, String name, UUID playerId, int size) {
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node withChild(char c, Node child) {
+            int index = Arrays.binarySearch(keys, c);
+            char[] newKeys;
+            Node[] newChildren;
+            int oldSize = 0;
+            if (index >= 0) {
+                oldSize = children[index].size;
+                if (child.size == 0) {
+                    newKeys = new char[keys.length - 1];
+                    newChildren = new Node[children.length - 1];
+                    System.arraycopy(keys, 0, newKeys, 0, index);
+                    System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+                    System.arraycopy(children, 0, newChildren, 0, index);
+                    System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+                } else {
+                    newKeys = keys;
+                    newChildren = children.clone();
+                    newChildren[index] = child;
+                }
+            } else {
+                if (child.size == 0) {
+                    return this;
+                }
+                int insert = -index - 1;
+                newKeys = new char[keys.length + 1];
+                newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, insert);
+                System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+                System.arraycopy(children, 0, newChildren, 0, insert);
+                System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+                newKeys[insert] = c;
+                newChildren[insert] = child;
+            }
+            return new Node(newKeys, newChildren, name, playerId, size - oldSize + child.size);
+        }
+
+        Node withName(String newName, UUID newPlayerId) {
+            int ownSize = name != null ? 1 : 0;
+            int newSize = size - ownSize + (newName != null ? 1 : 0);
+            return new Node(keys, children, newName, newPlayerId, newSize);
+        }
+    }
+
+    public PlayerNameIndex(ProxyServer server) {
+        this.root = EMPTY;
+        // Players already online, when scripts are set up after the proxy has started
+        for (Player player : server.getAllPlayers()) {
+            add(player.getUsername(), player.getUniqueId());
+        }
+    }
+
+    @Subscribe(order = PostOrder.FIRST)
+    public void onPostLogin(PostLoginEvent event) {
+        add(event.getPlayer().getUsername(), event.getPlayer().getUniqueId());
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onDisconnect(DisconnectEvent event) {
+        remove(event.getPlayer().getUsername(), event.getPlayer().getUniqueId());
+    }
+
+    public synchronized void add(String name, UUID playerId) {
+        root = update(root, name.toLowerCase(Locale.ROOT), 0, name, playerId);
+    }
+
+    /**
+     * Removes the name if it still belongs to the player, so a quick reconnect that
+     * logged in before the old connection closed keeps its entry.
+     */
+    public synchronized void remove(String name, UUID playerId) {
+        String key = name.toLowerCase(Locale.ROOT);
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        if (node != null && playerId.equals(node.playerId())) {
+            root = update(root, key, 0, null, null);
+        }
+    }
+
+    private static Node update(Node node, String key, int depth, String name, UUID playerId) {
+        if (depth == key.length()) {
+            return node.withName(name, playerId);
+        }
+        char c = key.charAt(depth);
+        Node child = node.child(c);
+        return node.withChild(c, update(child != null ? child : EMPTY, key, depth + 1, name, playerId));
+    }
+
+    /**
+     * Online player names starting with the prefix in any case, in alphabetical order.
+     */
+    public List<String> complete(String prefix) {
+        Node node = root;
+        String key = prefix.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        if (node == null) {
+            return List.of();
+        }
+        List<String> names = new ArrayList<>(Math.min(node.size(), MAX_SUGGESTIONS));
+        collect(node, names);
+        return names;
+    }
+
+    public int size() {
+        return root.size();
+    }
+
+    private static void collect(Node node, List<String> names) {
+        if (node.name() != null && names.size() < MAX_SUGGESTIONS) {
+            names.add(node.name());
+        }
+        for (Node child : node.children()) {
+            if (names.size() >= MAX_SUGGESTIONS) {
+                return;
+            }
+            collect(child, names);
+        }
+    }
+}
@@ -1,22 +1,33 @@
 package com.example.velocity.script;
 
 import com.example.velocity.script.event.EventTrigger;
+import com.example.velocity.script.execution.ExecutionContext;
+import com.example.velocity.script.expression.AdaptiveOrder;
 import com.example.velocity.script.expression.Condition;
+import com.example.velocity.script.expression.Expression;
+import com.example.velocity.script.expression.LeafCondition;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Script {
     private final String name;
     private final List<CommandScript> commands;
     private final List<EventTrigger> eventTriggers;
+    private final List<IndexDeclaration> indexDeclarations;
+    private final List<FunctionDefinition> functions;
 
     public Script(String name) {
         this.name = name;
         this.commands = new ArrayList<>();
         this.eventTriggers = new ArrayList<>();
+        this.indexDeclarations = new ArrayList<>();
+        this.functions = new ArrayList<>();
     }
 
     public String getName() {
@@ -39,19 +50,45 @@ public class Script {
         this.eventTriggers.add(trigger);
     }
 
+    public List<IndexDeclaration> getIndexDeclarations() {
+        return indexDeclarations;
+    }
+
+    public void addIndexDeclaration(IndexDeclaration declaration) {
+        this.indexDeclarations.add(declaration);
+    }
+
+    public List<FunctionDefinition> getFunctions() {
+        return functions;
+    }
+
+    public void addFunction(FunctionDefinition function) {
+        this.functions.add(function);
+    }
+
     public static class CommandScript {
         private final String commandName;
+        private final List<String> path;
         private final List<String> arguments;
+        private final List<CommandArgument> declaredArguments;
         private final List<Action> actions;
         private String permission;
         private String permissionMessage;
         private List<String> aliases;
         private String usage;
         private String description;
+        private long cooldownMillis;
+        private String cooldownMessage;
 
-        public CommandScript(String commandName, List<String> arguments) {
+        public CommandScript(String commandName, List<CommandArgument> declaredArguments) {
+            this(commandName, List.of(), declaredArguments);
+        }
+
+        public CommandScript(String commandName, List<String> path, List<CommandArgument> declaredArguments) {
             this.commandName = commandName;
-            this.arguments = arguments;
+            this.path = List.copyOf(path);
+            this.declaredArguments = List.copyOf(declaredArguments);
+            this.arguments = declaredArguments.stream().map(CommandArgument::getName).toList();
             this.actions = new ArrayList<>();
             this.aliases = new ArrayList<>();
         }
@@ -60,10 +97,31 @@ public class Script {
             return commandName;
         }
 
+        /**
+         * The sub-command words after the name, such as [buy] for /shop buy <item>.
+         */
+        public List<String> getPath() {
+            return path;
+        }
+
+        /**
+         * The name with its sub-command words, such as "shop buy".
+         */
+        public String getLabel() {
+            return path.isEmpty() ? commandName : commandName + " " + String.join(" ", path);
+        }
+
         public List<String> getArguments() {
             return arguments;
         }
 
+        /**
+         * The arguments with their types, in order.
+         */
+        public List<CommandArgument> getDeclaredArguments() {
+            return declaredArguments;
+        }
+
         public List<Action> getActions() {
             return actions;
         }
@@ -111,11 +169,31 @@ public class Script {
         public void setDescription(String description) {
             this.description = description;
         }
+
+        /**
+         * Minimum time between two uses of the command by one player, 0 for none.
+         */
+        public long getCooldownMillis() {
+            return cooldownMillis;
+        }
+
+        public void setCooldownMillis(long cooldownMillis) {
+            this.cooldownMillis = cooldownMillis;
+        }
+
+        public String getCooldownMessage() {
+            return cooldownMessage;
+        }
+
+        public void setCooldownMessage(String cooldownMessage) {
+            this.cooldownMessage = cooldownMessage;
+        }
     }
 
     public static class Action {
         private final ActionType type;
         private final Map<String, String> data;
+        private Expression expression;
 
         public Action(ActionType type) {
             this.type = type;
@@ -173,31 +251,314 @@ public class Script {
         public String getVariableValue() {
             return data.get("variableValue");
         }
+
+        /**
+         * Computed value expression (e.g. top 10 of {coins::*}), or null for plain text values.
+         */
+        public Expression getExpression() {
+            return expression;
+        }
+
+        public void setExpression(Expression expression) {
+            this.expression = expression;
+        }
     }
 
+    /**
+     * An "if" block with its "else if" branches and optional "else". The first branch whose
+     * condition is true runs; the else actions run if none is.
+     *
+     * When every branch compares the same subject with a different fixed value, such as
+     * %item% is "sword" / else if %item% is "armor", at most one branch can match, so the
+     * branches are reordered from sampled traffic with the most frequently taken first.
+     */
     public static class ConditionalAction extends Action {
-        private final Condition condition;
-        private final List<Action> ifActions;
         private final List<Action> elseActions;
+        private final boolean exclusive;
+        private final AtomicLong samples;
+        // Replaced as a whole when reordered
+        private volatile Branch[] branches;
 
         public ConditionalAction(Condition condition, List<Action> ifActions, List<Action> elseActions) {
+            this(List.of(new Branch(condition, ifActions)), elseActions);
+        }
+
+        public ConditionalAction(List<Branch> branches, List<Action> elseActions) {
             super(ActionType.CONDITIONAL);
-            this.condition = condition;
-            this.ifActions = ifActions;
+            this.branches = branches.toArray(new Branch[0]);
             this.elseActions = elseActions;
+            this.exclusive = isExclusive(this.branches);
+            this.samples = new AtomicLong();
+        }
+
+        /**
+         * Evaluates the branch conditions in order and returns the actions to run.
+         */
+        public List<Action> select(ExecutionContext context) {
+            Branch[] current = branches;
+            boolean sample = exclusive && AdaptiveOrder.shouldSample();
+            for (Branch branch : current) {
+                if (branch.condition.evaluate(context)) {
+                    if (sample) {
+                        branch.stats.record(true, 0);
+                        sampled();
+                    }
+                    return branch.actions;
+                }
+            }
+            if (sample) {
+                sampled();
+            }
+            return elseActions;
         }
 
-        public Condition getCondition() {
-            return condition;
+        private void sampled() {
+            if (AdaptiveOrder.sampled(samples)) {
+                reorder();
+            }
+        }
+
+        private synchronized void reorder() {
+            // Most often taken first
+            branches = AdaptiveOrder.sortByScore(branches, branch -> -branch.stats.getHits(), Branch::getStats);
+        }
+
+        /**
+         * Whether all branches test one subject for equality with distinct fixed values.
+         */
+        private static boolean isExclusive(Branch[] branches) {
+            if (branches.length < 2) {
+                return false;
+            }
+            String subject = null;
+            Set<String> literals = new HashSet<>();
+            for (Branch branch : branches) {
+                if (!(branch.condition instanceof LeafCondition leaf) || leaf.getSubject() == null
+                    || !literals.add(leaf.getLiteral())) {
+                    return false;
+                }
+                if (subject == null) {
+                    subject = leaf.getSubject();
+                } else if (!subject.equals(leaf.getSubject())) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        public List<Action> getIfActions() {
-            return ifActions;
+        /**
+         * The branches in their current evaluation order.
+         */
+        public List<Branch> getBranches() {
+            return List.of(branches);
         }
 
         public List<Action> getElseActions() {
             return elseActions;
         }
+
+        public boolean isExclusive() {
+            return exclusive;
+        }
+    }
+
+    /**
+     * An "if" or "else if" condition with its actions.
+     */
+    public static class Branch {
+        private final Condition condition;
+        private final List<Action> actions;
+        private final AdaptiveOrder.Stats stats;
+
+        public Branch(Condition condition, List<Action> actions) {
+            this.condition = condition;
+            this.actions = actions;
+            this.stats = new AdaptiveOrder.Stats();
+        }
+
+        public Condition getCondition() {
+            return condition;
+        }
+
+        public List<Action> getActions() {
+            return actions;
+        }
+
+        /**
+         * How often this branch was taken, for exclusive chains.
+         */
+        public AdaptiveOrder.Stats getStats() {
+            return stats;
+        }
+    }
+
+    /**
+     * A "loop {list::*}:" block, run once per entry of a global list in key order.
+     * Snapshot loops copy the entries first, so changes made by the body are not seen.
+     */
+    public static class LoopAction extends Action {
+        private final String listName;
+        private final boolean snapshot;
+        private final List<Action> actions;
+
+        public LoopAction(String listName, boolean snapshot, List<Action> actions) {
+            super(ActionType.LOOP);
+            this.listName = listName;
+            this.snapshot = snapshot;
+            this.actions = actions;
+        }
+
+        public String getListName() {
+            return listName;
+        }
+
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+
+        public List<Action> getActions() {
+            return actions;
+        }
+    }
+
+    /**
+     * A top-level "function name(parameters):" block that any script can call.
+     * Parameters are referenced in the body as %name% and passed by position.
+     */
+    public static class FunctionDefinition {
+        private final String name;
+        private final List<String> parameters;
+        private final List<Action> actions;
+        private final String scriptName;
+        // Set when scripts are linked: small non-recursive functions run without their own scope
+        private volatile boolean inline;
+
+        public FunctionDefinition(String name, List<String> parameters, String scriptName) {
+            this.name = name;
+            this.parameters = parameters;
+            this.actions = new ArrayList<>();
+            this.scriptName = scriptName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getParameters() {
+            return parameters;
+        }
+
+        public List<Action> getActions() {
+            return actions;
+        }
+
+        public void addAction(Action action) {
+            this.actions.add(action);
+        }
+
+        public String getScriptName() {
+            return scriptName;
+        }
+
+        public boolean isInline() {
+            return inline;
+        }
+
+        public void setInline(boolean inline) {
+            this.inline = inline;
+        }
+    }
+
+    /**
+     * A call to a function, either on its own line or as the value of "set {var} to name(...)".
+     * The called function is looked up once when scripts are linked, not on every call.
+     */
+    public static class CallAction extends Action {
+        private final String functionName;
+        private final List<Expression> arguments;
+        private final String resultVariable;
+        private volatile FunctionDefinition function;
+
+        /**
+         * @param resultVariable Variable the returned value is stored in, or null to ignore it
+         */
+        public CallAction(String functionName, List<Expression> arguments, String resultVariable) {
+            super(ActionType.CALL);
+            this.functionName = functionName;
+            this.arguments = arguments;
+            this.resultVariable = resultVariable;
+        }
+
+        public String getFunctionName() {
+            return functionName;
+        }
+
+        public List<Expression> getArguments() {
+            return arguments;
+        }
+
+        public String getResultVariable() {
+            return resultVariable;
+        }
+
+        /**
+         * The linked function, or null if no loaded script defines it.
+         */
+        public FunctionDefinition getFunction() {
+            return function;
+        }
+
+        public void setFunction(FunctionDefinition function) {
+            this.function = function;
+        }
+    }
+
+    /**
+     * A top-level "index {list::*} by number|value" line, declaring a secondary index on a global list.
+     */
+    public static class IndexDeclaration {
+        private final String listName;
+        private final IndexType type;
+
+        public IndexDeclaration(String listName, IndexType type) {
+            this.listName = listName;
+            this.type = type;
+        }
+
+        /**
+         * The list name without braces and wildcard, e.g. "coins" for {coins::*}.
+         */
+        public String getListName() {
+            return listName;
+        }
+
+        public IndexType getType() {
+            return type;
+        }
+    }
+
+    public enum IndexType {
+        NUMBER("number"),
+        VALUE("value");
+
+        private final String keyword;
+
+        IndexType(String keyword) {
+            this.keyword = keyword;
+        }
+
+        public String getKeyword() {
+            return keyword;
+        }
+
+        public static IndexType fromKeyword(String keyword) {
+            for (IndexType type : values()) {
+                if (type.keyword.equals(keyword)) {
+                    return type;
+                }
+            }
+            return null;
+        }
     }
 
     public enum ActionType {
@@ -206,7 +567,12 @@ public class Script {
         SEND_TO_SERVER_PLAYERS,
         SET_VARIABLE,
         DELETE_VARIABLE,
-        CONDITIONAL
+        CONDITIONAL,
+        WAIT,
+        LOOP,
+        EXIT_LOOP,
+        CALL,
+        RETURN
     }
 
     public enum MessageTarget {
@@ -1,8 +1,16 @@
 package com.example.velocity.script;
 
 import com.example.velocity.script.event.EventTrigger;
+import com.example.velocity.script.expression.ArithmeticParser;
+import com.example.velocity.script.expression.CompoundCondition;
 import com.example.velocity.script.expression.Condition;
 import com.example.velocity.script.expression.ConditionParser;
+import com.example.velocity.script.expression.ContainsCondition;
+import com.example.velocity.script.expression.Expression;
+import com.example.velocity.script.expression.ExpressionParser;
+import com.example.velocity.script.expression.NotCondition;
+import com.example.velocity.script.expression.TypeInference;
+import com.example.velocity.script.expression.ValueType;
 import org.slf4j.Logger;
 
 import java.io.BufferedReader;
@@ -15,17 +23,36 @@ import java.util.regex.Pattern;
 
 public class ScriptParser {
     private final Logger logger;
+    // Number of loop blocks around the action being parsed, so "exit loop" can be checked
+    private int loopDepth;
+    // Whether the action being parsed is in a function, so "return" can be checked
+    private boolean inFunction;
+    // Variable types of the script being parsed, so conditions can compare numbers as numbers,
+    // and of the command, event or function being parsed, which adds its argument types
+    private TypeInference scriptTypes = new TypeInference();
+    private TypeInference types = scriptTypes;
     
     // Patterns
     private static final Pattern COMMAND_PATTERN = Pattern.compile("^command\\s+/([a-zA-Z0-9_]+)(?:\\s+(.*))?:");
-    private static final Pattern ARG_PATTERN = Pattern.compile("<([a-zA-Z0-9_]+)>");
+    private static final Pattern ARG_PATTERN = Pattern.compile("<([a-zA-Z0-9_]+)(?::([a-zA-Z0-9_|-]+)(\\.\\.\\.)?)?>");
     private static final Pattern EVENT_PATTERN = Pattern.compile("^on\\s+(join|quit|server\\s+switch|chat|server\\s+connect):");
+    private static final Pattern SUBCOMMAND_PATTERN = Pattern.compile("^[a-zA-Z0-9_-]+$");
+    private static final Pattern FUNCTION_PATTERN = Pattern.compile("^function\\s+([a-zA-Z_][a-zA-Z0-9_]*)\\s*\\(([^)]*)\\)\\s*:\\s*$");
+    private static final Pattern PARAMETER_PATTERN = Pattern.compile("^[a-zA-Z_][a-zA-Z0-9_-]*$");
+    private static final Pattern INDEX_PATTERN = Pattern.compile("^index\\s+\\{([^}]+)\\}\\s+by\\s+(\\S+)\\s*$");
+    private static final Pattern EVERY_PATTERN = Pattern.compile("^every\\s+(\\d+(?:\\.\\d+)?)\\s+(ticks?|milliseconds?|seconds?|minutes?|hours?):\\s*$");
     private static final Pattern TRIGGER_PATTERN = Pattern.compile("^\\s+trigger:");
-    private static final Pattern METADATA_PATTERN = Pattern.compile("^\\s+(permission|permission message|aliases|usage|description):\\s*(.*)");
+    private static final Pattern METADATA_PATTERN = Pattern.compile("^\\s+(permission|permission message|aliases|usage|description|cooldown|cooldown message):\\s*(.*)");
+    private static final Pattern DURATION_PATTERN = Pattern.compile("^(\\d+(?:\\.\\d+)?)\\s+(ticks?|milliseconds?|seconds?|minutes?|hours?)$");
     private static final Pattern SEND_PATTERN = Pattern.compile("^send\\s+\"([^\"]+)\"(?:\\s+to\\s+(.+))?");
     private static final Pattern TRANSFER_PATTERN = Pattern.compile("^transfer\\s+(.+?)\\s+to\\s+\"([^\"]+)\"");
     private static final Pattern SET_VAR_PATTERN = Pattern.compile("^set\\s+(\\{[^}]+\\})\\s+to\\s+(.+)");
     private static final Pattern DELETE_VAR_PATTERN = Pattern.compile("^delete\\s+(\\{[^}]+\\})");
+    private static final Pattern WAIT_PATTERN = Pattern.compile("^wait\\s+(\\d+(?:\\.\\d+)?)\\s+(ticks?|milliseconds?|seconds?|minutes?|hours?)$");
+    private static final Pattern LOOP_PATTERN = Pattern.compile("^loop\\s+(snapshot\\s+of\\s+)?(\\{[^}]+::\\*\\}):$");
+    private static final Pattern EXIT_LOOP_PATTERN = Pattern.compile("^exit\\s+loop$");
+    private static final Pattern CALL_PATTERN = Pattern.compile("^([a-zA-Z_][a-zA-Z0-9_]*)\\((.*)\\)$");
+    private static final Pattern RETURN_PATTERN = Pattern.compile("^return(?:\\s+(.+))?$");
     private static final Pattern IF_PATTERN = Pattern.compile("^if\\s+(.+):");
     private static final Pattern ELSE_IF_PATTERN = Pattern.compile("^else\\s+if\\s+(.+):");
     private static final Pattern ELSE_PATTERN = Pattern.compile("^else:");
@@ -53,16 +80,92 @@ public class ScriptParser {
             throw new ScriptParseException(errors);
         }
 
+        mergeContainsChecks(script);
         logger.info("Parsed script: {} with {} command(s) and {} event(s)", 
                     script.getName(), script.getCommands().size(), script.getEventTriggers().size());
         return script;
     }
 
+    /**
+     * Learns the variable types of a script from its "set" lines, before any of its
+     * conditions are compiled.
+     */
+    private TypeInference inferTypes(List<String> lines) {
+        TypeInference inferred = new TypeInference();
+        TypeInference scope = inferred;
+        for (String line : lines) {
+            Matcher commandMatcher = COMMAND_PATTERN.matcher(line);
+            if (commandMatcher.matches()) {
+                scope = argumentTypes(inferred, parseArguments(commandMatcher.group(2), 0, line, new ArrayList<>()));
+                continue;
+            }
+            if (EVENT_PATTERN.matcher(line).matches() || FUNCTION_PATTERN.matcher(line).matches()
+                || EVERY_PATTERN.matcher(line).matches()) {
+                scope = inferred;
+                continue;
+            }
+            Matcher setVarMatcher = SET_VAR_PATTERN.matcher(line.trim());
+            if (setVarMatcher.matches()) {
+                scope.assign(setVarMatcher.group(1), setVarMatcher.group(2));
+            }
+        }
+        inferred.resolve();
+        return inferred;
+    }
+
+    /**
+     * Lets the "contains" checks of the script that search the same value share one scan,
+     * so a chat filter with many keywords reads each message once.
+     */
+    private void mergeContainsChecks(Script script) {
+        List<ContainsCondition> checks = new ArrayList<>();
+        for (Script.CommandScript command : script.getCommands()) {
+            collectContainsChecks(command.getActions(), checks);
+        }
+        for (EventTrigger trigger : script.getEventTriggers()) {
+            collectContainsChecks(trigger.getActions(), checks);
+        }
+        for (Script.FunctionDefinition function : script.getFunctions()) {
+            collectContainsChecks(function.getActions(), checks);
+        }
+        ContainsCondition.merge(checks);
+    }
+
+    private void collectContainsChecks(List<Script.Action> actions, List<ContainsCondition> checks) {
+        for (Script.Action action : actions) {
+            if (action instanceof Script.ConditionalAction conditional) {
+                for (Script.Branch branch : conditional.getBranches()) {
+                    collectContainsChecks(branch.getCondition(), checks);
+                    collectContainsChecks(branch.getActions(), checks);
+                }
+                collectContainsChecks(conditional.getElseActions(), checks);
+            } else if (action instanceof Script.LoopAction loop) {
+                collectContainsChecks(loop.getActions(), checks);
+            }
+        }
+    }
+
+    private void collectContainsChecks(Condition condition, List<ContainsCondition> checks) {
+        if (condition instanceof ContainsCondition contains) {
+            checks.add(contains);
+        } else if (condition instanceof NotCondition not) {
+            collectContainsChecks(not.getInner(), checks);
+        } else if (condition instanceof CompoundCondition compound) {
+            for (CompoundCondition.Term term : compound.getTerms()) {
+                collectContainsChecks(term.getCondition(), checks);
+            }
+        }
+    }
+
     private void parseLines(Script script, List<String> lines, List<ScriptParseException.ParseError> errors) {
+        scriptTypes = inferTypes(lines);
+        types = scriptTypes;
         int lineNumber = 0;
         Script.CommandScript currentCommand = null;
         EventTrigger currentEvent = null;
+        Script.FunctionDefinition currentFunction = null;
         boolean inTriggerSection = false;
+        Set<String> commandLabels = new HashSet<>();
 
         while (lineNumber < lines.size()) {
             String line = lines.get(lineNumber);
@@ -81,7 +184,7 @@ public class ScriptParser {
                 if (currentCommand != null && currentCommand.getActions().isEmpty()) {
                     errors.add(new ScriptParseException.ParseError(
                         currentLineNumber - 1,
-                        "command /" + currentCommand.getCommandName(),
+                        "command /" + currentCommand.getLabel(),
                         "Command has no actions defined",
                         ScriptParseException.ErrorType.EMPTY_COMMAND
                     ));
@@ -90,10 +193,21 @@ public class ScriptParser {
                 String commandName = commandMatcher.group(1);
                 String argsSection = commandMatcher.group(2);
 
-                List<String> arguments = parseArguments(argsSection, currentLineNumber, line, errors);
-                currentCommand = new Script.CommandScript(commandName, arguments);
+                List<String> path = parseCommandPath(argsSection, currentLineNumber, line, errors);
+                List<CommandArgument> arguments = parseArguments(argsSection, currentLineNumber, line, errors);
+                currentCommand = new Script.CommandScript(commandName, path, arguments);
+                if (!commandLabels.add(currentCommand.getLabel().toLowerCase())) {
+                    errors.add(new ScriptParseException.ParseError(
+                        currentLineNumber,
+                        line,
+                        "Command /" + currentCommand.getLabel() + " is already defined in this script",
+                        ScriptParseException.ErrorType.SYNTAX_ERROR
+                    ));
+                }
+                types = argumentTypes(scriptTypes, arguments);
                 script.addCommand(currentCommand);
                 currentEvent = null;
+                currentFunction = null;
                 inTriggerSection = false;
                 logger.debug("Found command: /{} with {} argument(s)", commandName, arguments.size());
                 continue;
@@ -116,8 +230,10 @@ public class ScriptParser {
                 
                 if (eventType != null) {
                     currentEvent = new EventTrigger(eventType, script.getName());
+                    types = scriptTypes;
                     script.addEventTrigger(currentEvent);
                     currentCommand = null;
+                    currentFunction = null;
                     inTriggerSection = true;
                     logger.debug("Found event trigger: {}", eventType);
                 } else {
@@ -131,6 +247,77 @@ public class ScriptParser {
                 continue;
             }
 
+            // Check for periodic trigger
+            Matcher everyMatcher = EVERY_PATTERN.matcher(line);
+            if (everyMatcher.matches()) {
+                checkBlockHasActions(currentCommand, currentEvent, currentLineNumber - 1, errors);
+                long periodMillis = ExpressionParser.parseDurationMillis(everyMatcher.group(1), everyMatcher.group(2));
+                if (periodMillis < 50) {
+                    errors.add(new ScriptParseException.ParseError(
+                        currentLineNumber,
+                        line,
+                        "Period must be at least 1 tick (50 milliseconds)",
+                        ScriptParseException.ErrorType.SYNTAX_ERROR
+                    ));
+                    currentEvent = null;
+                } else {
+                    currentEvent = new EventTrigger(EventTrigger.EventType.PERIODIC, script.getName(), periodMillis);
+                    types = scriptTypes;
+                    script.addEventTrigger(currentEvent);
+                    logger.debug("Found periodic trigger: every {} ms", periodMillis);
+                }
+                currentCommand = null;
+                currentFunction = null;
+                inTriggerSection = true;
+                continue;
+            }
+
+            // Check for function definition
+            Matcher functionMatcher = FUNCTION_PATTERN.matcher(line);
+            if (functionMatcher.matches()) {
+                checkBlockHasActions(currentCommand, currentEvent, currentLineNumber - 1, errors);
+                String functionName = functionMatcher.group(1);
+                List<String> parameters = parseParameters(functionMatcher.group(2), currentLineNumber, line, errors);
+                if (ArithmeticParser.isBuiltin(functionName)) {
+                    errors.add(new ScriptParseException.ParseError(
+                        currentLineNumber,
+                        line,
+                        "Function name " + functionName + " is reserved for arithmetic",
+                        ScriptParseException.ErrorType.SYNTAX_ERROR
+                    ));
+                }
+                for (Script.FunctionDefinition existing : script.getFunctions()) {
+                    if (existing.getName().equals(functionName)) {
+                        errors.add(new ScriptParseException.ParseError(
+                            currentLineNumber,
+                            line,
+                            "Function " + functionName + "() is already defined in this script",
+                            ScriptParseException.ErrorType.SYNTAX_ERROR
+                        ));
+                    }
+                }
+                currentFunction = new Script.FunctionDefinition(functionName, parameters, script.getName());
+                types = scriptTypes;
+                script.addFunction(currentFunction);
+                currentCommand = null;
+                currentEvent = null;
+                inTriggerSection = true;
+                logger.debug("Found function: {}() with {} parameter(s)", functionName, parameters.size());
+                continue;
+            }
+
+            // Check for index declaration
+            Matcher indexMatcher = INDEX_PATTERN.matcher(line);
+            if (indexMatcher.matches()) {
+                checkBlockHasActions(currentCommand, currentEvent, currentLineNumber - 1, errors);
+                currentCommand = null;
+                currentEvent = null;
+                currentFunction = null;
+                inTriggerSection = false;
+                parseIndexDeclaration(script, indexMatcher, currentLineNumber, line, errors);
+                continue;
+            }
+
             // Check for trigger section
             Matcher triggerMatcher = TRIGGER_PATTERN.matcher(line);
             if (triggerMatcher.matches()) {
@@ -144,7 +331,7 @@ public class ScriptParser {
                     continue;
                 }
                 inTriggerSection = true;
-                logger.debug("Found trigger for command: /{}", currentCommand.getCommandName());
+                logger.debug("Found trigger for command: /{}", currentCommand.getLabel());
                 continue;
             }
 
@@ -154,7 +341,7 @@ public class ScriptParser {
                 if (metadataMatcher.matches()) {
                     String metadataType = metadataMatcher.group(1).trim();
                     String metadataValue = metadataMatcher.group(2).trim();
-                    parseMetadata(currentCommand, metadataType, metadataValue);
+                    parseMetadata(currentCommand, metadataType, metadataValue, line, currentLineNumber, errors);
                     continue;
                 }
             }
@@ -174,15 +361,17 @@ public class ScriptParser {
                 // Parse action and add to current command or event
                 List<Script.Action> targetActions = currentCommand != null ? 
                     currentCommand.getActions() : 
-                    (currentEvent != null ? currentEvent.getActions() : null);
+                    (currentEvent != null ? currentEvent.getActions() :
+                    (currentFunction != null ? currentFunction.getActions() : null));
 
                 if (targetActions != null) {
+                    inFunction = currentFunction != null;
                     Script.Action action = parseAction(trimmedLine, lines, lineNumber, currentLineNumber, errors);
                     if (action != null) {
                         targetActions.add(action);
                         
-                        // If it's a conditional, skip the lines it consumed
-                        if (action instanceof Script.ConditionalAction) {
+                        // If it's a conditional or loop, skip the lines it consumed
+                        if (action instanceof Script.ConditionalAction || action instanceof Script.LoopAction) {
                             int consumed = countConditionalLines(lines, lineNumber - 1);
                             lineNumber += consumed;
                         }
@@ -202,7 +391,7 @@ public class ScriptParser {
         if (currentCommand != null && currentCommand.getActions().isEmpty()) {
             errors.add(new ScriptParseException.ParseError(
                 lines.size(),
-                "command /" + currentCommand.getCommandName(),
+                "command /" + currentCommand.getLabel(),
                 "Command has no actions defined",
                 ScriptParseException.ErrorType.EMPTY_COMMAND
             ));
@@ -217,9 +406,91 @@ public class ScriptParser {
         }
     }
 
-    private List<String> parseArguments(String argsSection, int lineNumber, String line, 
+    private void checkBlockHasActions(Script.CommandScript command, EventTrigger event, int lineNumber,
+                                      List<ScriptParseException.ParseError> errors) {
+        if (command != null && command.getActions().isEmpty()) {
+            errors.add(new ScriptParseException.ParseError(
+                lineNumber,
+                "command /" + command.getLabel(),
+                "Command has no actions defined",
+                ScriptParseException.ErrorType.EMPTY_COMMAND
+            ));
+        }
+        if (event != null && event.getActions().isEmpty()) {
+            errors.add(new ScriptParseException.ParseError(
+                lineNumber,
+                event.getEventType() == EventTrigger.EventType.PERIODIC
+                    ? "every " + event.getPeriodMillis() + " milliseconds"
+                    : "on " + event.getEventType().name().toLowerCase(),
+                "Event has no actions defined",
+                ScriptParseException.ErrorType.EMPTY_COMMAND
+            ));
+        }
+    }
+
+    private void parseIndexDeclaration(Script script, Matcher matcher, int lineNumber, String line,
                                        List<ScriptParseException.ParseError> errors) {
-        List<String> arguments = new ArrayList<>();
+        String listName = matcher.group(1).trim();
+        String typeName = matcher.group(2).trim().toLowerCase();
+
+        if (listName.startsWith("_") || !listName.endsWith("::*") || listName.length() <= 3) {
+            errors.add(new ScriptParseException.ParseError(
+                lineNumber,
+                line,
+                "Only global lists can be indexed, e.g. index {coins::*} by number",
+                ScriptParseException.ErrorType.SYNTAX_ERROR
+            ));
+            return;
+        }
+
+        Script.IndexType type = Script.IndexType.fromKeyword(typeName);
+        if (type == null) {
+            errors.add(new ScriptParseException.ParseError(
+                lineNumber,
+                line,
+                "Unknown index type: " + typeName,
+                ScriptParseException.ErrorType.SYNTAX_ERROR
+            ));
+            return;
+        }
+
+        String name = listName.substring(0, listName.length() - 3);
+        script.addIndexDeclaration(new Script.IndexDeclaration(name, type));
+        logger.debug("Found index: {{}::*} by {}", name, type.getKeyword());
+    }
+
+    /**
+     * Parses the sub-command words before the first argument, such as "buy" in
+     * command /shop buy <item>.
+     */
+    private List<String> parseCommandPath(String argsSection, int lineNumber, String line,
+                                          List<ScriptParseException.ParseError> errors) {
+        List<String> path = new ArrayList<>();
+        if (argsSection == null) {
+            return path;
+        }
+        int firstArgument = argsSection.indexOf('<');
+        String words = (firstArgument >= 0 ? argsSection.substring(0, firstArgument) : argsSection).trim();
+        if (words.isEmpty()) {
+            return path;
+        }
+        for (String word : words.split("\\s+")) {
+            if (!SUBCOMMAND_PATTERN.matcher(word).matches()) {
+                errors.add(new ScriptParseException.ParseError(
+                    lineNumber,
+                    line,
+                    "Invalid sub-command word: " + word,
+                    ScriptParseException.ErrorType.INVALID_ARGUMENT
+                ));
+            }
+            path.add(word.toLowerCase());
+        }
+        return path;
+    }
+
+    private List<CommandArgument> parseArguments(String argsSection, int lineNumber, String line, 
+                                                 List<ScriptParseException.ParseError> errors) {
+        List<CommandArgument> arguments = new ArrayList<>();
         if (argsSection != null && !argsSection.trim().isEmpty()) {
             String cleanArgs = argsSection.trim();
             if (!cleanArgs.isEmpty() && !cleanArgs.equals(":")) {
@@ -234,13 +505,89 @@ public class ScriptParser {
                             ScriptParseException.ErrorType.INVALID_ARGUMENT
                         ));
                     }
-                    arguments.add(argName);
+
+                    if (argMatcher.group(2) != null && argMatcher.group(2).contains("|")) {
+                        arguments.add(parseChoices(argName, argMatcher.group(2), argMatcher.group(3) != null,
+                            lineNumber, line, errors));
+                        continue;
+                    }
+
+                    CommandArgument.Type type = CommandArgument.Type.TEXT;
+                    if (argMatcher.group(2) != null) {
+                        type = CommandArgument.Type.fromKeyword(argMatcher.group(2));
+                        if (type == null) {
+                            errors.add(new ScriptParseException.ParseError(
+                                lineNumber,
+                                line,
+                                "Unknown argument type '" + argMatcher.group(2) + "' for <" + argName
+                                    + ">, expected text, number, player or choices such as a|b",
+                                ScriptParseException.ErrorType.INVALID_ARGUMENT
+                            ));
+                            type = CommandArgument.Type.TEXT;
+                        }
+                    }
+                    boolean rest = argMatcher.group(3) != null;
+                    if (rest && (type != CommandArgument.Type.TEXT
+                                 || !argsSection.substring(argMatcher.end()).trim().isEmpty())) {
+                        errors.add(new ScriptParseException.ParseError(
+                            lineNumber,
+                            line,
+                            "Only the last argument can take the rest of the line, and it must be text: <"
+                                + argName + ">",
+                            ScriptParseException.ErrorType.INVALID_ARGUMENT
+                        ));
+                    }
+                    arguments.add(new CommandArgument(argName, type, rest));
                 }
             }
         }
         return arguments;
     }
 
+    /**
+     * Parses the words of a choice argument, such as easy|normal|hard.
+     */
+    private CommandArgument parseChoices(String argName, String declaration, boolean rest, int lineNumber,
+                                         String line, List<ScriptParseException.ParseError> errors) {
+        List<String> choices = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String choice : declaration.split("\\|", -1)) {
+            if (choice.isEmpty() || !seen.add(choice.toLowerCase())) {
+                errors.add(new ScriptParseException.ParseError(
+                    lineNumber,
+                    line,
+                    "Empty or repeated choice in <" + argName + ":" + declaration + ">",
+                    ScriptParseException.ErrorType.INVALID_ARGUMENT
+                ));
+                continue;
+            }
+            choices.add(choice);
+        }
+        if (rest) {
+            errors.add(new ScriptParseException.ParseError(
+                lineNumber,
+                line,
+                "Only the last argument can take the rest of the line, and it must be text: <"
+                    + argName + ">",
+                ScriptParseException.ErrorType.INVALID_ARGUMENT
+            ));
+        }
+        return new CommandArgument(argName, choices);
+    }
+
+    /**
+     * The types of a command's scope: the script's variables plus its typed arguments,
+     * so %amount% of an <amount:number> argument compares as a number.
+     */
+    private static TypeInference argumentTypes(TypeInference scriptTypes, List<CommandArgument> arguments) {
+        Map<String, ValueType> placeholders = new HashMap<>();
+        for (int i = 0; i < arguments.size(); i++) {
+            placeholders.put(arguments.get(i).getName(), arguments.get(i).getValueType());
+            placeholders.put("arg-" + (i + 1), arguments.get(i).getValueType());
+        }
+        return scriptTypes.withPlaceholders(placeholders);
+    }
+
     private EventTrigger.EventType parseEventType(String eventName) {
         return switch (eventName) {
             case "join" -> EventTrigger.EventType.JOIN;
@@ -252,7 +599,8 @@ public class ScriptParser {
         };
     }
 
-    private void parseMetadata(Script.CommandScript command, String type, String value) {
+    private void parseMetadata(Script.CommandScript command, String type, String value, String line,
+                               int lineNumber, List<ScriptParseException.ParseError> errors) {
         switch (type) {
             case "permission" -> command.setPermission(value);
             case "permission message" -> command.setPermissionMessage(value);
@@ -271,6 +619,20 @@ public class ScriptParser {
             }
             case "usage" -> command.setUsage(value);
             case "description" -> command.setDescription(value);
+            case "cooldown" -> {
+                Matcher durationMatcher = DURATION_PATTERN.matcher(value);
+                if (durationMatcher.matches()) {
+                    command.setCooldownMillis(ExpressionParser.parseDurationMillis(durationMatcher.group(1), durationMatcher.group(2)));
+                } else {
+                    errors.add(new ScriptParseException.ParseError(
+                        lineNumber,
+                        line,
+                        "Invalid cooldown, expected a duration like '5 seconds'",
+                        ScriptParseException.ErrorType.SYNTAX_ERROR
+                    ));
+                }
+            }
+            case "cooldown message" -> command.setCooldownMessage(value);
         }
     }
 
@@ -287,6 +649,26 @@ public class ScriptParser {
             return parseConditional(allLines, currentIndex, lineNumber, errors);
         }
 
+        // Check for loop
+        Matcher loopMatcher = LOOP_PATTERN.matcher(trimmedLine);
+        if (loopMatcher.matches()) {
+            return parseLoop(loopMatcher, allLines, currentIndex, lineNumber, errors);
+        }
+
+        // Check for exit loop
+        if (EXIT_LOOP_PATTERN.matcher(trimmedLine).matches()) {
+            if (loopDepth == 0) {
+                errors.add(new ScriptParseException.ParseError(
+                    lineNumber,
+                    trimmedLine,
+                    "'exit loop' used outside of a loop",
+                    ScriptParseException.ErrorType.SYNTAX_ERROR
+                ));
+                return null;
+            }
+            return new Script.Action(Script.ActionType.EXIT_LOOP);
+        }
+
         // Check for send action
         Matcher sendMatcher = SEND_PATTERN.matcher(trimmedLine);
         if (sendMatcher.matches()) {
@@ -311,6 +693,37 @@ public class ScriptParser {
             return parseDeleteVariableAction(deleteVarMatcher);
         }
 
+        // Check for wait action
+        Matcher waitMatcher = WAIT_PATTERN.matcher(trimmedLine);
+        if (waitMatcher.matches()) {
+            return parseWaitAction(waitMatcher);
+        }
+
+        // Check for return
+        Matcher returnMatcher = RETURN_PATTERN.matcher(trimmedLine);
+        if (returnMatcher.matches()) {
+            if (!inFunction) {
+                errors.add(new ScriptParseException.ParseError(
+                    lineNumber,
+                    trimmedLine,
+                    "'return' used outside of a function",
+                    ScriptParseException.ErrorType.SYNTAX_ERROR
+                ));
+                return null;
+            }
+            Script.Action action = new Script.Action(Script.ActionType.RETURN);
+            if (returnMatcher.group(1) != null) {
+                action.setExpression(ExpressionParser.parseValue(returnMatcher.group(1)));
+            }
+            return action;
+        }
+
+        // Check for function call
+        Matcher callMatcher = CALL_PATTERN.matcher(trimmedLine);
+        if (callMatcher.matches()) {
+            return parseCall(callMatcher, null);
+        }
+
         // Unrecognized action
         errors.add(new ScriptParseException.ParseError(
             lineNumber,
@@ -364,6 +777,14 @@ public class ScriptParser {
     private Script.Action parseSetVariableAction(Matcher matcher) {
         String variableName = matcher.group(1).trim();
         String variableValue = matcher.group(2).trim();
+
+        // A function call stores the function's return value; min, max and round are arithmetic
+        Matcher callMatcher = CALL_PATTERN.matcher(variableValue);
+        if (callMatcher.matches() && !ArithmeticParser.isBuiltin(callMatcher.group(1))) {
+            return parseCall(callMatcher, variableName);
+        }
+
+        Expression expression = ExpressionParser.parseComputed(variableValue);
         
         // Strip quotes from string literals
         if (variableValue.startsWith("\"") && variableValue.endsWith("\"") && variableValue.length() >= 2) {
@@ -374,7 +795,9 @@ public class ScriptParser {
         data.put("variableName", variableName);
         data.put("variableValue", variableValue);
 
-        return new Script.Action(Script.ActionType.SET_VARIABLE, data);
+        Script.Action action = new Script.Action(Script.ActionType.SET_VARIABLE, data);
+        action.setExpression(expression);
+        return action;
     }
 
     private Script.Action parseDeleteVariableAction(Matcher matcher) {
@@ -386,6 +809,13 @@ public class ScriptParser {
         return new Script.Action(Script.ActionType.DELETE_VARIABLE, data);
     }
 
+    private Script.Action parseWaitAction(Matcher matcher) {
+        Map<String, String> data = new HashMap<>();
+        data.put("delayMillis", String.valueOf(ExpressionParser.parseDurationMillis(matcher.group(1), matcher.group(2))));
+
+        return new Script.Action(Script.ActionType.WAIT, data);
+    }
+
     private Script.ConditionalAction parseConditional(List<String> lines, int startIndex, int lineNumber,
                                                      List<ScriptParseException.ParseError> errors) {
         String firstLine = lines.get(startIndex - 1).trim();
@@ -395,19 +825,66 @@ public class ScriptParser {
             return null;
         }
 
-        String conditionText = ifMatcher.group(1).trim();
-        Condition condition = ConditionParser.parse(conditionText);
-
-        List<Script.Action> ifActions = new ArrayList<>();
+        List<Script.Branch> branches = new ArrayList<>();
         List<Script.Action> elseActions = new ArrayList<>();
-
-        // Parse if block
         int baseIndent = getIndentLevel(lines.get(startIndex - 1));
+        String conditionText = ifMatcher.group(1).trim();
+        String conditionLine = firstLine;
+        int conditionLineNumber = lineNumber;
         int i = startIndex;
-        
+
+        // The if block, then one block per else if
+        while (true) {
+            Condition condition = parseCondition(conditionText, conditionLine, conditionLineNumber, errors);
+            List<Script.Action> actions = new ArrayList<>();
+            i = parseBlock(lines, i, baseIndent, lineNumber - startIndex, actions, errors);
+            branches.add(new Script.Branch(condition, actions));
+
+            if (i >= lines.size() || getIndentLevel(lines.get(i)) != baseIndent) {
+                break;
+            }
+            String trimmed = lines.get(i).trim();
+            Matcher elseIfMatcher = ELSE_IF_PATTERN.matcher(trimmed);
+            if (elseIfMatcher.matches()) {
+                conditionText = elseIfMatcher.group(1).trim();
+                conditionLine = trimmed;
+                conditionLineNumber = lineNumber - startIndex + i + 1;
+                i++;
+                continue;
+            }
+            if (ELSE_PATTERN.matcher(trimmed).matches()) {
+                parseBlock(lines, i + 1, baseIndent, lineNumber - startIndex, elseActions, errors);
+            }
+            break;
+        }
+
+        return new Script.ConditionalAction(branches, elseActions);
+    }
+
+    private Condition parseCondition(String conditionText, String line, int lineNumber,
+                                     List<ScriptParseException.ParseError> errors) {
+        if (!ConditionParser.isValidCondition(conditionText)) {
+            String patternError = ConditionParser.findPatternError(conditionText);
+            errors.add(new ScriptParseException.ParseError(
+                lineNumber,
+                line,
+                patternError != null ? patternError : "Unrecognized condition: " + conditionText,
+                ScriptParseException.ErrorType.SYNTAX_ERROR
+            ));
+        }
+        return ConditionParser.parse(conditionText, types);
+    }
+
+    /**
+     * Parses the actions one level deeper than baseIndent, starting at index start, into
+     * actions. Returns the index of the first line after the block.
+     * lineOffset converts a line index to its line number, minus one.
+     */
+    private int parseBlock(List<String> lines, int start, int baseIndent, int lineOffset,
+                           List<Script.Action> actions, List<ScriptParseException.ParseError> errors) {
+        int i = start;
         while (i < lines.size()) {
             String line = lines.get(i);
-            int indent = getIndentLevel(line);
             String trimmed = line.trim();
 
             if (trimmed.isEmpty() || trimmed.startsWith("#")) {
@@ -415,66 +892,139 @@ public class ScriptParser {
                 continue;
             }
 
-            // Check for else or else if at same indent level
-            if (indent == baseIndent) {
-                if (ELSE_PATTERN.matcher(trimmed).matches() || ELSE_IF_PATTERN.matcher(trimmed).matches()) {
-                    break;
-                }
-            }
-
-            // If indent is less than or equal to base, we're done with this conditional
-            if (indent <= baseIndent && i > startIndex) {
+            int indent = getIndentLevel(line);
+            if (indent <= baseIndent) {
                 break;
             }
 
-            // Parse action at one level deeper than the if statement
+            // Deeper lines belong to nested blocks, which the action on this level parses
             if (indent == baseIndent + 1) {
-                Script.Action action = parseAction(trimmed, lines, i + 1, lineNumber + i - startIndex + 1, errors);
+                Script.Action action = parseAction(trimmed, lines, i + 1, lineOffset + i + 1, errors);
                 if (action != null) {
-                    ifActions.add(action);
+                    actions.add(action);
                 }
             }
 
             i++;
         }
+        return i;
+    }
 
-        // Check for else block
-        if (i < lines.size()) {
-            String line = lines.get(i);
-            int indent = getIndentLevel(line);
-            String trimmed = line.trim();
+    private Script.CallAction parseCall(Matcher matcher, String resultVariable) {
+        List<Expression> arguments = new ArrayList<>();
+        for (String argument : splitArguments(matcher.group(2))) {
+            arguments.add(ExpressionParser.parseValue(argument));
+        }
+        return new Script.CallAction(matcher.group(1), arguments, resultVariable);
+    }
 
-            if (indent == baseIndent && ELSE_PATTERN.matcher(trimmed).matches()) {
-                i++; // Move past else line
-                
-                // Parse else block
-                while (i < lines.size()) {
-                    line = lines.get(i);
-                    indent = getIndentLevel(line);
-                    trimmed = line.trim();
-
-                    if (trimmed.isEmpty() || trimmed.startsWith("#")) {
-                        i++;
-                        continue;
-                    }
+    /**
+     * Splits call arguments on commas that are not inside quotes, braces or parentheses.
+     */
+    private List<String> splitArguments(String text) {
+        List<String> arguments = new ArrayList<>();
+        if (text.isBlank()) {
+            return arguments;
+        }
 
-                    if (indent <= baseIndent) {
-                        break;
-                    }
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '{' || c == '(')) {
+                depth++;
+            } else if (!quoted && (c == '}' || c == ')')) {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ',') {
+                arguments.add(text.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        arguments.add(text.substring(start).trim());
+        return arguments;
+    }
 
-                    if (indent == baseIndent + 1) {
-                        Script.Action action = parseAction(trimmed, lines, i + 1, lineNumber + i - startIndex + 1, errors);
-                        if (action != null) {
-                            elseActions.add(action);
-                        }
-                    }
+    private List<String> parseParameters(String text, int lineNumber, String line,
+                                         List<ScriptParseException.ParseError> errors) {
+        List<String> parameters = new ArrayList<>();
+        if (text.isBlank()) {
+            return parameters;
+        }
+        for (String parameter : text.split(",")) {
+            String name = parameter.trim();
+            if (!PARAMETER_PATTERN.matcher(name).matches() || parameters.contains(name)) {
+                errors.add(new ScriptParseException.ParseError(
+                    lineNumber,
+                    line,
+                    "Invalid or duplicate parameter name: " + name,
+                    ScriptParseException.ErrorType.INVALID_ARGUMENT
+                ));
+                continue;
+            }
+            if (ExpressionParser.isReservedPlaceholder(name)) {
+                errors.add(new ScriptParseException.ParseError(
+                    lineNumber,
+                    line,
+                    "Parameter name " + name + " is taken by the built-in %" + name + "% placeholder",
+                    ScriptParseException.ErrorType.INVALID_ARGUMENT
+                ));
+                continue;
+            }
+            parameters.add(name);
+        }
+        return parameters;
+    }
+
+    private Script.LoopAction parseLoop(Matcher matcher, List<String> lines, int startIndex, int lineNumber,
+                                        List<ScriptParseException.ParseError> errors) {
+        String listName = matcher.group(2);
+        if (listName.startsWith("{_")) {
+            errors.add(new ScriptParseException.ParseError(
+                lineNumber,
+                lines.get(startIndex - 1).trim(),
+                "Only global lists can be looped",
+                ScriptParseException.ErrorType.SYNTAX_ERROR
+            ));
+        }
 
+        List<Script.Action> actions = new ArrayList<>();
+        int baseIndent = getIndentLevel(lines.get(startIndex - 1));
+        int i = startIndex;
+
+        loopDepth++;
+        try {
+            while (i < lines.size()) {
+                String line = lines.get(i);
+                int indent = getIndentLevel(line);
+                String trimmed = line.trim();
+
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
                     i++;
+                    continue;
+                }
+
+                if (indent <= baseIndent) {
+                    break;
                 }
+
+                // Deeper lines belong to nested blocks and are parsed by them
+                if (indent == baseIndent + 1) {
+                    Script.Action action = parseAction(trimmed, lines, i + 1, lineNumber + i - startIndex + 1, errors);
+                    if (action != null) {
+                        actions.add(action);
+                    }
+                }
+
+                i++;
             }
+        } finally {
+            loopDepth--;
         }
 
-        return new Script.ConditionalAction(condition, ifActions, elseActions);
+        return new Script.LoopAction(listName, matcher.group(1) != null, actions);
     }
 
     private int getIndentLevel(String line) {
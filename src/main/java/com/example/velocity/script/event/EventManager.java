@@ -2,8 +2,14 @@ package com.example.velocity.script.event;
 
 import com.example.velocity.script.Script;
 import com.example.velocity.script.execution.ActionExecutor;
+import com.example.velocity.script.execution.EventPayload;
 import com.example.velocity.script.execution.ExecutionContext;
+import com.example.velocity.script.execution.PermissionCache;
+import com.example.velocity.script.execution.RateLimiter;
+import com.example.velocity.script.execution.ScriptDispatcher;
+import com.example.velocity.script.execution.TimingWheel;
 import com.example.velocity.script.variable.VariableManager;
+import com.velocitypowered.api.event.EventTask;
 import com.velocitypowered.api.event.PostOrder;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.DisconnectEvent;
@@ -13,9 +19,12 @@ import com.velocitypowered.api.event.player.ServerPostConnectEvent;
 import com.velocitypowered.api.event.player.ServerPreConnectEvent;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
 import org.slf4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages event triggers from scripts and routes Velocity events to them.
@@ -25,19 +34,41 @@ public class EventManager {
     private final Logger logger;
     private final VariableManager variableManager;
     private final ActionExecutor actionExecutor;
+    private final ScriptDispatcher dispatcher;
+    private final RateLimiter rateLimiter;
+    private final PermissionCache permissionCache;
+    private final PeriodicScheduler periodicScheduler;
     private final Map<EventTrigger.EventType, List<EventTrigger>> eventTriggers;
+    // Rebuilt from eventTriggers whenever they change, and replaced as a whole
+    private volatile Map<EventTrigger.EventType, TriggerIndex> indexes;
+    private volatile String stats;
 
-    public EventManager(ProxyServer server, Logger logger, VariableManager variableManager) {
+    // Time spent running triggers off the thread Velocity delivered the event on
+    private final AtomicLong offloadedEvents;
+    private final AtomicLong offloadedNanos;
+
+    public EventManager(ProxyServer server, Logger logger, VariableManager variableManager,
+                        ActionExecutor actionExecutor, ScriptDispatcher dispatcher, TimingWheel timingWheel,
+                        RateLimiter rateLimiter, PermissionCache permissionCache) {
         this.server = server;
         this.logger = logger;
         this.variableManager = variableManager;
-        this.actionExecutor = new ActionExecutor(server, logger);
+        this.actionExecutor = actionExecutor;
+        this.dispatcher = dispatcher;
+        this.rateLimiter = rateLimiter;
+        this.permissionCache = permissionCache;
+        this.periodicScheduler = new PeriodicScheduler(server, logger, variableManager, actionExecutor,
+                                                       dispatcher, timingWheel);
         this.eventTriggers = new EnumMap<>(EventTrigger.EventType.class);
         
         // Initialize empty lists for each event type
         for (EventTrigger.EventType type : EventTrigger.EventType.values()) {
             eventTriggers.put(type, new ArrayList<>());
         }
+        this.indexes = buildIndexes();
+        this.stats = "";
+        this.offloadedEvents = new AtomicLong();
+        this.offloadedNanos = new AtomicLong();
     }
 
     /**
@@ -58,187 +89,279 @@ public class EventManager {
             }
         }
 
+        periodicScheduler.schedule(eventTriggers.get(EventTrigger.EventType.PERIODIC));
+
         int totalTriggers = eventTriggers.values().stream().mapToInt(List::size).sum();
+        indexes = buildIndexes();
+        stats = buildStats();
         logger.info("Registered {} event trigger(s) from scripts", totalTriggers);
     }
 
+    private Map<EventTrigger.EventType, TriggerIndex> buildIndexes() {
+        Map<EventTrigger.EventType, TriggerIndex> built = new EnumMap<>(EventTrigger.EventType.class);
+        for (EventTrigger.EventType type : EventTrigger.EventType.values()) {
+            built.put(type, new TriggerIndex(eventTriggers.get(type)));
+        }
+        return built;
+    }
+
     /**
-     * Executes all triggers for a specific event type.
+     * The triggers that may act on an event, looked up by its values on the Velocity thread,
+     * so events no trigger is guarded for are not dispatched at all.
      */
-    private void executeTriggers(EventTrigger.EventType eventType, ExecutionContext context) {
-        List<EventTrigger> triggers = eventTriggers.get(eventType);
-        if (triggers == null || triggers.isEmpty()) {
+    private List<EventTrigger> selectTriggers(EventTrigger.EventType eventType, Player player,
+                                              EventPayload payload) {
+        TriggerIndex index = indexes.get(eventType);
+        if (index.isEmpty()) {
+            return List.of();
+        }
+        ExecutionContext context = new ExecutionContext.Builder()
+            .server(server)
+            .player(player)
+            .eventPayload(payload)
+            .permissionCache(permissionCache)
+            .build();
+        return index.select(context);
+    }
+
+    /**
+     * Runs the triggers for an event through the dispatcher. The event payload is created
+     * by the caller on the Velocity thread; the scope lives only as long as the triggers run.
+     */
+    private void fire(EventTrigger.EventType eventType, Player player, EventPayload payload) {
+        fire(eventType, player, payload, () -> {});
+    }
+
+    /**
+     * @param onDone Run once the last trigger has finished, after any waits, or right away
+     *               when no trigger applies
+     */
+    private void fire(EventTrigger.EventType eventType, Player player, EventPayload payload, Runnable onDone) {
+        List<EventTrigger> triggers = selectTriggers(eventType, player, payload);
+        if (triggers.isEmpty()) {
+            onDone.run();
             return;
         }
 
-        for (EventTrigger trigger : triggers) {
+        Thread eventThread = Thread.currentThread();
+        dispatcher.dispatch(player,
+            () -> runTriggers(eventType, triggers, player, payload, eventThread, () -> {}, onDone));
+    }
+
+    /**
+     * Like {@link #fire}, but for events whose outcome Velocity waits on. The returned task
+     * lets Velocity release its event thread while the triggers run, and resumes the event
+     * once they have finished or the first of them starts to wait. Returns null when there
+     * are no triggers for it, so the event is not delayed at all.
+     */
+    private EventTask fireAsync(EventTrigger.EventType eventType, Player player, EventPayload payload) {
+        List<EventTrigger> triggers = selectTriggers(eventType, player, payload);
+        if (triggers.isEmpty()) {
+            return null;
+        }
+
+        Thread eventThread = Thread.currentThread();
+        if (dispatcher.getMode() == ScriptDispatcher.Mode.INLINE) {
+            // No executor of our own, so let Velocity run the triggers on its async pool
+            return EventTask.async(() -> runTriggers(eventType, triggers, player, payload, eventThread, () -> {},
+                () -> {}));
+        }
+        return EventTask.withContinuation(continuation -> dispatcher.dispatch(player, () -> {
             try {
-                actionExecutor.executeActions(trigger.getActions(), context);
-            } catch (Exception e) {
-                logger.error("Error executing {} trigger from script {}", 
-                            eventType, trigger.getScriptName(), e);
+                runTriggers(eventType, triggers, player, payload, eventThread, continuation::resume, () -> {});
+            } catch (RuntimeException e) {
+                continuation.resumeWithException(e);
             }
+        }));
+    }
+
+    /**
+     * Runs the triggers one after another in a shared scope, which is destroyed when the
+     * last one finishes (possibly after waits). Triggers that set no locals use none.
+     * @param onYield Run once, when the triggers finish or first pause at a wait
+     * @param onDone  Run once, when the triggers finish
+     */
+    private void runTriggers(EventTrigger.EventType eventType, List<EventTrigger> triggers, Player player,
+                             EventPayload payload, Thread eventThread, Runnable onYield, Runnable onDone) {
+        long start = System.nanoTime();
+        AtomicBoolean yielded = new AtomicBoolean();
+        Runnable yield = () -> {
+            if (yielded.compareAndSet(false, true)) {
+                if (Thread.currentThread() != eventThread) {
+                    offloadedEvents.incrementAndGet();
+                    offloadedNanos.addAndGet(System.nanoTime() - start);
+                }
+                onYield.run();
+            }
+        };
+
+        // Most triggers only read globals and send messages; they share the empty scope
+        // instead of creating and registering one per event
+        boolean ownScope = false;
+        for (EventTrigger trigger : triggers) {
+            ownScope |= trigger.writesLocals();
         }
+        UUID scopeId = ownScope ? variableManager.createScope() : VariableManager.EMPTY_SCOPE;
+        ExecutionContext context = new ExecutionContext.Builder()
+            .server(server)
+            .player(player)
+            .variableManager(variableManager)
+            .scopeId(scopeId)
+            .eventPayload(payload)
+            .rateLimiter(rateLimiter)
+            .permissionCache(permissionCache)
+            .build();
+
+        boolean destroyScope = ownScope;
+        runTrigger(eventType, triggers, 0, context, yield, () -> {
+            if (destroyScope) {
+                variableManager.destroyScope(scopeId);
+            }
+            yield.run();
+            onDone.run();
+        });
     }
 
-    // Velocity Event Listeners
+    private void runTrigger(EventTrigger.EventType eventType, List<EventTrigger> triggers, int index,
+                            ExecutionContext context, Runnable onSuspend, Runnable onDone) {
+        if (index >= triggers.size()) {
+            onDone.run();
+            return;
+        }
 
-    @Subscribe(order = PostOrder.NORMAL)
-    public void onPostLogin(PostLoginEvent event) {
-        Player player = event.getPlayer();
-        UUID scopeId = variableManager.createScope();
+        EventTrigger trigger = triggers.get(index);
+        actionExecutor.execute(trigger.getActions(), context, new ActionExecutor.Callback() {
+            @Override
+            public void onFinish(Throwable error) {
+                if (error != null) {
+                    logger.error("Error executing {} trigger from script {}", 
+                                eventType, trigger.getScriptName(), error);
+                }
+                runTrigger(eventType, triggers, index + 1, context, onSuspend, onDone);
+            }
 
-        try {
-            Map<String, Object> eventData = new HashMap<>();
-            eventData.put("player", player.getUsername());
-            eventData.put("uuid", player.getUniqueId().toString());
+            @Override
+            public void onSuspend() {
+                onSuspend.run();
+            }
+        });
+    }
 
-            ExecutionContext context = new ExecutionContext.Builder()
-                .server(server)
-                .player(player)
-                .variableManager(variableManager)
-                .scopeId(scopeId)
-                .eventData(eventData)
-                .build();
+    // Velocity Event Listeners
 
-            executeTriggers(EventTrigger.EventType.JOIN, context);
-        } finally {
-            variableManager.destroyScope(scopeId);
+    @Subscribe(order = PostOrder.NORMAL)
+    public void onPostLogin(PostLoginEvent event) {
+        if (hasTriggers(EventTrigger.EventType.JOIN)) {
+            fire(EventTrigger.EventType.JOIN, event.getPlayer(), EventPayload.join(event.getPlayer()));
         }
     }
 
     @Subscribe(order = PostOrder.NORMAL)
     public void onDisconnect(DisconnectEvent event) {
         Player player = event.getPlayer();
-        UUID scopeId = variableManager.createScope();
 
-        try {
-            Map<String, Object> eventData = new HashMap<>();
-            eventData.put("player", player.getUsername());
-            eventData.put("uuid", player.getUniqueId().toString());
-            
-            // Note: DisconnectEvent doesn't provide a quit message in Velocity
-            eventData.put("quit-message", "");
-
-            ExecutionContext context = new ExecutionContext.Builder()
-                .server(server)
-                .player(player)
-                .variableManager(variableManager)
-                .scopeId(scopeId)
-                .eventData(eventData)
-                .build();
-
-            executeTriggers(EventTrigger.EventType.QUIT, context);
-        } finally {
-            variableManager.destroyScope(scopeId);
+        // Released once the quit triggers have finished, in every execution mode, so a
+        // limit they check cannot bring the player's limits back after they are dropped
+        Runnable releaseLimits = () -> rateLimiter.release(player.getUniqueId());
+        if (hasTriggers(EventTrigger.EventType.QUIT)) {
+            fire(EventTrigger.EventType.QUIT, player, EventPayload.quit(player), releaseLimits);
+        } else {
+            releaseLimits.run();
         }
+        dispatcher.release(player);
     }
 
     @Subscribe(order = PostOrder.NORMAL)
     public void onServerSwitch(ServerPostConnectEvent event) {
-        Player player = event.getPlayer();
-        UUID scopeId = variableManager.createScope();
-
-        try {
-            Map<String, Object> eventData = new HashMap<>();
-            eventData.put("player", player.getUsername());
-            eventData.put("uuid", player.getUniqueId().toString());
-            
-            String fromServer = event.getPreviousServer() != null ? 
-                event.getPreviousServer().getServerInfo().getName() : "none";
-            String toServer = player.getCurrentServer().isPresent() ?
-                player.getCurrentServer().get().getServerInfo().getName() : "unknown";
-            
-            eventData.put("from-server", fromServer);
-            eventData.put("to-server", toServer);
-
-            ExecutionContext context = new ExecutionContext.Builder()
-                .server(server)
-                .player(player)
-                .variableManager(variableManager)
-                .scopeId(scopeId)
-                .eventData(eventData)
-                .build();
-
-            executeTriggers(EventTrigger.EventType.SERVER_SWITCH, context);
-        } finally {
-            variableManager.destroyScope(scopeId);
+        if (!hasTriggers(EventTrigger.EventType.SERVER_SWITCH)) {
+            return;
         }
-    }
-
-    @Subscribe(order = PostOrder.NORMAL)
-    public void onChat(PlayerChatEvent event) {
         Player player = event.getPlayer();
-        UUID scopeId = variableManager.createScope();
 
-        try {
-            Map<String, Object> eventData = new HashMap<>();
-            eventData.put("player", player.getUsername());
-            eventData.put("uuid", player.getUniqueId().toString());
-            eventData.put("message", event.getMessage());
+        // Servers are captured now, their names only worked out if a trigger uses them
+        RegisteredServer currentServer = player.getCurrentServer().isPresent()
+            ? player.getCurrentServer().get().getServer() : null;
 
-            ExecutionContext context = new ExecutionContext.Builder()
-                .server(server)
-                .player(player)
-                .variableManager(variableManager)
-                .scopeId(scopeId)
-                .eventData(eventData)
-                .build();
+        fire(EventTrigger.EventType.SERVER_SWITCH, player,
+            EventPayload.serverSwitch(player, event.getPreviousServer(), currentServer));
+    }
 
-            executeTriggers(EventTrigger.EventType.CHAT, context);
-        } finally {
-            variableManager.destroyScope(scopeId);
+    @Subscribe(order = PostOrder.NORMAL)
+    public EventTask onChat(PlayerChatEvent event) {
+        if (!hasTriggers(EventTrigger.EventType.CHAT)) {
+            return null;
         }
+        Player player = event.getPlayer();
+        return fireAsync(EventTrigger.EventType.CHAT, player, EventPayload.chat(player, event.getMessage()));
     }
 
     @Subscribe(order = PostOrder.NORMAL)
-    public void onServerConnect(ServerPreConnectEvent event) {
+    public EventTask onServerConnect(ServerPreConnectEvent event) {
+        if (!hasTriggers(EventTrigger.EventType.SERVER_CONNECT)) {
+            return null;
+        }
         Player player = event.getPlayer();
-        UUID scopeId = variableManager.createScope();
 
-        try {
-            Map<String, Object> eventData = new HashMap<>();
-            eventData.put("player", player.getUsername());
-            eventData.put("uuid", player.getUniqueId().toString());
-            
-            String targetServer = event.getResult().getServer().isPresent() ?
-                event.getResult().getServer().get().getServerInfo().getName() : "unknown";
-            
-            eventData.put("target-server", targetServer);
+        RegisteredServer targetServer = event.getResult().getServer().isPresent()
+            ? event.getResult().getServer().get() : null;
 
-            ExecutionContext context = new ExecutionContext.Builder()
-                .server(server)
-                .player(player)
-                .variableManager(variableManager)
-                .scopeId(scopeId)
-                .eventData(eventData)
-                .build();
+        return fireAsync(EventTrigger.EventType.SERVER_CONNECT, player,
+            EventPayload.serverConnect(player, targetServer));
+    }
 
-            executeTriggers(EventTrigger.EventType.SERVER_CONNECT, context);
-        } finally {
-            variableManager.destroyScope(scopeId);
-        }
+    /**
+     * Whether any trigger listens for the event type, checked before anything is
+     * allocated for the event.
+     */
+    private boolean hasTriggers(EventTrigger.EventType eventType) {
+        return !indexes.get(eventType).isEmpty();
     }
 
     /**
      * Unregisters all event triggers.
      */
     public void unregisterAll() {
+        periodicScheduler.cancelAll();
         for (List<EventTrigger> triggers : eventTriggers.values()) {
             triggers.clear();
         }
+        indexes = buildIndexes();
+        stats = buildStats();
         logger.info("Unregistered all event triggers");
     }
 
     /**
      * Gets statistics about registered events.
+     * The summary only changes when triggers are (un)registered, so it is built there.
      */
     public String getStats() {
+        return stats;
+    }
+
+    /**
+     * Number of events whose triggers ran off Velocity's event thread.
+     */
+    public long getOffloadedEvents() {
+        return offloadedEvents.get();
+    }
+
+    /**
+     * Total time spent running those triggers, which Velocity's event thread did not have to spend.
+     */
+    public long getOffloadedNanos() {
+        return offloadedNanos.get();
+    }
+
+    private String buildStats() {
         StringBuilder sb = new StringBuilder();
         for (EventTrigger.EventType type : EventTrigger.EventType.values()) {
-            int count = eventTriggers.get(type).size();
-            if (count > 0) {
-                sb.append(type.name()).append(": ").append(count).append(" ");
+            TriggerIndex index = indexes.get(type);
+            if (!index.isEmpty()) {
+                sb.append(type.name()).append(": ").append(index.size());
+                if (index.getIndexedCount() > 0) {
+                    sb.append(" (").append(index.getIndexedCount()).append(" indexed)");
+                }
+                sb.append(" ");
             }
         }
         return sb.toString().trim();
@@ -6,16 +6,24 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Represents an event trigger in a script (e.g., "on join:", "on quit:").
+ * Represents an event trigger in a script (e.g., "on join:", "on quit:", "every 5 minutes:").
  */
 public class EventTrigger {
     private final EventType eventType;
     private final List<Script.Action> actions;
     private final String scriptName;
+    private final long periodMillis;
+    // Set when scripts are linked; until then assume a scope is needed
+    private volatile boolean writesLocals = true;
 
     public EventTrigger(EventType eventType, String scriptName) {
+        this(eventType, scriptName, 0);
+    }
+
+    public EventTrigger(EventType eventType, String scriptName, long periodMillis) {
         this.eventType = eventType;
         this.scriptName = scriptName;
+        this.periodMillis = periodMillis;
         this.actions = new ArrayList<>();
     }
 
@@ -35,12 +43,31 @@ public class EventTrigger {
         return scriptName;
     }
 
+    /**
+     * Whether any action sets or deletes a local variable, so a run needs its own scope.
+     */
+    public boolean writesLocals() {
+        return writesLocals;
+    }
+
+    public void setWritesLocals(boolean writesLocals) {
+        this.writesLocals = writesLocals;
+    }
+
+    /**
+     * Time between runs of a PERIODIC trigger, 0 for other event types.
+     */
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
     public enum EventType {
         JOIN,              // Player joins proxy (PostLoginEvent)
         QUIT,              // Player leaves proxy (DisconnectEvent)
         SERVER_SWITCH,     // Player switches servers (ServerPostConnectEvent)
         CHAT,              // Player sends chat message (PlayerChatEvent)
-        SERVER_CONNECT     // Before player connects to server (ServerPreConnectEvent)
+        SERVER_CONNECT,    // Before player connects to server (ServerPreConnectEvent)
+        PERIODIC           // Every N seconds/minutes, no player (PeriodicScheduler)
     }
 }
 
@@ -0,0 +1,175 @@
+package com.example.velocity.script.event;
+
+import com.example.velocity.script.execution.ActionExecutor;
+import com.example.velocity.script.execution.ExecutionContext;
+import com.example.velocity.script.execution.ScriptDispatcher;
+import com.example.velocity.script.execution.TimingWheel;
+import com.example.velocity.script.variable.VariableManager;
+import com.velocitypowered.api.proxy.ProxyServer;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs "every <duration>:" triggers from the shared timing wheel.
+ * Triggers with the same period share one timer, and their runs are deadline-based
+ * (start + n * period) so delays in one run never shift the following ones.
+ * A trigger whose previous run is still going (e.g. it is in a wait) skips a run
+ * instead of running twice at once.
+ */
+public class PeriodicScheduler {
+    // Upper bound for the random start offset of a period group
+    private static final long MAX_JITTER_MILLIS = 10_000;
+
+    private final ProxyServer server;
+    private final Logger logger;
+    private final VariableManager variableManager;
+    private final ActionExecutor actionExecutor;
+    private final ScriptDispatcher dispatcher;
+    private final TimingWheel timingWheel;
+    private final List<PeriodGroup> groups;
+
+    public PeriodicScheduler(ProxyServer server, Logger logger, VariableManager variableManager,
+                             ActionExecutor actionExecutor, ScriptDispatcher dispatcher, TimingWheel timingWheel) {
+        this.server = server;
+        this.logger = logger;
+        this.variableManager = variableManager;
+        this.actionExecutor = actionExecutor;
+        this.dispatcher = dispatcher;
+        this.timingWheel = timingWheel;
+        this.groups = new ArrayList<>();
+    }
+
+    /**
+     * Replaces all scheduled triggers with the given ones.
+     */
+    public synchronized void schedule(List<EventTrigger> triggers) {
+        cancelAll();
+
+        Map<Long, PeriodGroup> byPeriod = new LinkedHashMap<>();
+        for (EventTrigger trigger : triggers) {
+            byPeriod.computeIfAbsent(trigger.getPeriodMillis(), PeriodGroup::new).slots.add(new Slot(trigger));
+        }
+
+        for (PeriodGroup group : byPeriod.values()) {
+            group.start();
+            groups.add(group);
+        }
+        if (!groups.isEmpty()) {
+            logger.info("Scheduled {} periodic trigger(s) on {} timer(s)", triggers.size(), groups.size());
+        }
+    }
+
+    /**
+     * Stops all timers. Runs already in progress finish normally.
+     */
+    public synchronized void cancelAll() {
+        for (PeriodGroup group : groups) {
+            group.cancel();
+        }
+        groups.clear();
+    }
+
+    private void run(Slot slot) {
+        EventTrigger trigger = slot.trigger;
+        boolean ownScope = trigger.writesLocals();
+        UUID scopeId = ownScope ? variableManager.createScope() : VariableManager.EMPTY_SCOPE;
+        try {
+            ExecutionContext context = new ExecutionContext.Builder()
+                .server(server)
+                .variableManager(variableManager)
+                .scopeId(scopeId)
+                .build();
+
+            actionExecutor.execute(trigger.getActions(), context, error -> {
+                if (error != null) {
+                    logger.error("Error executing periodic trigger from script {}", trigger.getScriptName(), error);
+                }
+                if (ownScope) {
+                    variableManager.destroyScope(scopeId);
+                }
+                slot.running.set(false);
+            });
+        } catch (Exception e) {
+            logger.error("Error executing periodic trigger from script {}", trigger.getScriptName(), e);
+            if (ownScope) {
+                variableManager.destroyScope(scopeId);
+            }
+            slot.running.set(false);
+        }
+    }
+
+    /**
+     * All triggers sharing one period, driven by a single timer.
+     */
+    private class PeriodGroup {
+        private final long periodNanos;
+        private final List<Slot> slots;
+        private long startNanos;
+        private long runs;
+        private volatile boolean cancelled;
+        private volatile TimingWheel.Timeout timeout;
+
+        PeriodGroup(long periodMillis) {
+            this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+            this.slots = new ArrayList<>();
+        }
+
+        void start() {
+            // Random phase, so groups (and proxies) started together don't all fire at once
+            long jitterMillis = ThreadLocalRandom.current().nextLong(
+                Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(periodNanos), MAX_JITTER_MILLIS)));
+            startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+            runs = 0;
+            timeout = timingWheel.scheduleAt(startNanos + periodNanos, this::fire);
+        }
+
+        void cancel() {
+            cancelled = true;
+            TimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        /**
+         * Called on the timer thread: reschedules first, then hands each trigger off.
+         */
+        private void fire() {
+            if (cancelled) {
+                return;
+            }
+
+            // Next deadline from the fixed start, skipping any ticks missed during a stall
+            long elapsed = System.nanoTime() - startNanos;
+            runs = Math.max(runs + 1, elapsed / periodNanos);
+            timeout = timingWheel.scheduleAt(startNanos + (runs + 1) * periodNanos, this::fire);
+
+            for (Slot slot : slots) {
+                if (slot.running.compareAndSet(false, true)) {
+                    dispatcher.dispatchAsync(null, () -> run(slot));
+                } else {
+                    logger.debug("Skipping periodic trigger from script {}, previous run still in progress",
+                                 slot.trigger.getScriptName());
+                }
+            }
+        }
+    }
+
+    private static class Slot {
+        private final EventTrigger trigger;
+        private final AtomicBoolean running;
+
+        Slot(EventTrigger trigger) {
+            this.trigger = trigger;
+            this.running = new AtomicBoolean();
+        }
+    }
+}
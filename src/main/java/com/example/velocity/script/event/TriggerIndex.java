@@ -0,0 +1,214 @@
+package com.example.velocity.script.event;
+
+import com.example.velocity.script.Script;
+import com.example.velocity.script.execution.ExecutionContext;
+import com.example.velocity.script.expression.CompoundCondition;
+import com.example.velocity.script.expression.Condition;
+import com.example.velocity.script.expression.Expression;
+import com.example.velocity.script.expression.ExpressionParser;
+import com.example.velocity.script.expression.LeafCondition;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The triggers of one event type, indexed by the event value they require.
+ *
+ * A trigger whose only action is an "if" (or else if chain) without "else" does nothing
+ * unless a condition holds. When that condition requires a value of the event, such as
+ * %to-server% is "lobby-3" alone, as a term of an "and", or as one of several values joined
+ * by "or", the trigger is stored in a hash table under that value. An event then looks up
+ * the triggers for its own values instead of running every trigger to check its guard.
+ * Triggers without such a guard always run, and all triggers keep their script order.
+ */
+class TriggerIndex {
+    // Subjects that stay the same while an event's triggers run: event data and the player
+    private static final Pattern EVENT_VALUE_PATTERN = Pattern.compile("^%[A-Za-z0-9_-]+%$");
+    private static final Set<String> PLAYER_SUBJECTS = Set.of("player", "player's name", "player's uuid", "player's server");
+
+    private final List<EventTrigger> triggers;
+    private final List<Entry> unguarded;
+    private final List<EventTrigger> unguardedTriggers;
+    private final Map<String, Subject> subjects;
+    private final int indexedCount;
+
+    private record Entry(int order, EventTrigger trigger) {
+    }
+
+    /**
+     * Triggers guarded on one subject, by the value they require.
+     */
+    private static final class Subject {
+        private final Expression expression;
+        private final Map<String, List<Entry>> byValue;
+
+        Subject(String text) {
+            this.expression = ExpressionParser.parse(text);
+            this.byValue = new HashMap<>();
+        }
+    }
+
+    /**
+     * A subject and the values it must have for the trigger to do anything.
+     */
+    private record Guard(String subject, Set<String> values) {
+    }
+
+    TriggerIndex(List<EventTrigger> triggers) {
+        this.triggers = List.copyOf(triggers);
+        this.unguarded = new ArrayList<>();
+        this.subjects = new LinkedHashMap<>();
+
+        int indexed = 0;
+        for (int i = 0; i < this.triggers.size(); i++) {
+            EventTrigger trigger = this.triggers.get(i);
+            Entry entry = new Entry(i, trigger);
+            Guard guard = guardOf(trigger);
+            if (guard == null) {
+                unguarded.add(entry);
+                continue;
+            }
+            Subject subject = subjects.computeIfAbsent(guard.subject(), Subject::new);
+            for (String value : guard.values()) {
+                subject.byValue.computeIfAbsent(value, v -> new ArrayList<>()).add(entry);
+            }
+            indexed++;
+        }
+        this.unguardedTriggers = unguarded.stream().map(Entry::trigger).toList();
+        this.indexedCount = indexed;
+    }
+
+    boolean isEmpty() {
+        return triggers.isEmpty();
+    }
+
+    int size() {
+        return triggers.size();
+    }
+
+    /**
+     * Number of triggers found through the hash table instead of always running.
+     */
+    int getIndexedCount() {
+        return indexedCount;
+    }
+
+    List<EventTrigger> getTriggers() {
+        return triggers;
+    }
+
+    /**
+     * The triggers that may act on this event, in script order. Costs one lookup per
+     * guarded subject plus the matching triggers, however many triggers there are.
+     */
+    List<EventTrigger> select(ExecutionContext context) {
+        if (subjects.isEmpty()) {
+            return triggers;
+        }
+
+        List<Entry> matched = null;
+        for (Subject subject : subjects.values()) {
+            String value = subject.expression.evaluate(context);
+            List<Entry> entries = value != null ? subject.byValue.get(value) : null;
+            if (entries != null) {
+                if (matched == null) {
+                    matched = new ArrayList<>(unguarded);
+                }
+                matched.addAll(entries);
+            }
+        }
+        if (matched == null) {
+            return unguardedTriggers;
+        }
+
+        matched.sort(Comparator.comparingInt(Entry::order));
+        List<EventTrigger> selected = new ArrayList<>(matched.size());
+        for (Entry entry : matched) {
+            selected.add(entry.trigger());
+        }
+        return selected;
+    }
+
+    /**
+     * The guard of a trigger that does nothing unless its if chain matches, or null.
+     */
+    private static Guard guardOf(EventTrigger trigger) {
+        List<Script.Action> actions = trigger.getActions();
+        if (actions.size() != 1 || !(actions.get(0) instanceof Script.ConditionalAction conditional)
+            || !conditional.getElseActions().isEmpty()) {
+            return null;
+        }
+
+        // Branches of a chain without else act like an "or" of their conditions
+        Guard guard = null;
+        for (Script.Branch branch : conditional.getBranches()) {
+            guard = union(guard, requiredValues(branch.getCondition()));
+            if (guard == null) {
+                return null;
+            }
+        }
+        return guard;
+    }
+
+    /**
+     * The values a subject must have for the condition to be true, or null if there is no
+     * such subject.
+     */
+    private static Guard requiredValues(Condition condition) {
+        if (condition instanceof LeafCondition leaf) {
+            String subject = leaf.getSubject();
+            // Numeric checks match other spellings of the number, which a hash lookup would not
+            if (subject == null || leaf.isNumeric() || !(EVENT_VALUE_PATTERN.matcher(subject).matches() || PLAYER_SUBJECTS.contains(subject))) {
+                return null;
+            }
+            return new Guard(subject, Set.of(leaf.getLiteral()));
+        }
+
+        if (condition instanceof CompoundCondition compound) {
+            Guard guard = null;
+            for (CompoundCondition.Term term : compound.getTerms()) {
+                Guard termGuard = requiredValues(term.getCondition());
+                if (compound.getOperator() == CompoundCondition.Operator.AND) {
+                    // Any term of an "and" must hold
+                    if (termGuard != null) {
+                        return termGuard;
+                    }
+                } else {
+                    // Every term of an "or" must require the same subject
+                    guard = union(guard, termGuard);
+                    if (guard == null) {
+                        return null;
+                    }
+                }
+            }
+            return guard;
+        }
+
+        return null;
+    }
+
+    /**
+     * Combines the guards of alternatives, or null if they test different subjects.
+     */
+    private static Guard union(Guard first, Guard second) {
+        if (second == null) {
+            return null;
+        }
+        if (first == null) {
+            return second;
+        }
+        if (!first.subject().equals(second.subject())) {
+            return null;
+        }
+        Set<String> values = new LinkedHashSet<>(first.values());
+        values.addAll(second.values());
+        return new Guard(first.subject(), values);
+    }
+}
@@ -1,7 +1,9 @@
 package com.example.velocity.script.execution;
 
 import com.example.velocity.script.Script;
+import com.example.velocity.script.expression.Expression;
 import com.example.velocity.script.expression.ExpressionParser;
+import com.example.velocity.script.variable.VariableManager;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.ServerConnection;
@@ -9,41 +11,238 @@ import com.velocitypowered.api.proxy.server.RegisteredServer;
 import net.kyori.adventure.text.Component;
 import org.slf4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
 
 /**
  * Executes script actions in a given execution context.
+ * Control flow is kept on an explicit frame stack instead of the Java call stack,
+ * so an execution can stop at a wait, hold no thread, and continue later where it left off.
  */
 public class ActionExecutor {
+    // Deepest chain of function calls allowed, to stop runaway recursion
+    private static final int MAX_CALL_DEPTH = 256;
+
     private final ProxyServer server;
     private final Logger logger;
+    private final TimingWheel timingWheel;
+    private final ScriptDispatcher dispatcher;
 
-    public ActionExecutor(ProxyServer server, Logger logger) {
+    public ActionExecutor(ProxyServer server, Logger logger, TimingWheel timingWheel, ScriptDispatcher dispatcher) {
         this.server = server;
         this.logger = logger;
+        this.timingWheel = timingWheel;
+        this.dispatcher = dispatcher;
     }
 
     /**
-     * Executes a list of actions in order.
+     * Executes a list of actions in order. Runs on the calling thread until the actions
+     * finish or reach a wait; after a wait the rest runs through the dispatcher.
+     * The callback is told when the actions are done, and the context's scope must
+     * stay alive until then.
      */
-    public void executeActions(List<Script.Action> actions, ExecutionContext context) {
-        for (Script.Action action : actions) {
-            executeAction(action, context);
+    public void execute(List<Script.Action> actions, ExecutionContext context, Callback callback) {
+        Execution execution = new Execution(context, callback);
+        execution.top = new Frame(actions, null);
+        run(execution);
+    }
+
+    /**
+     * Runs frames until the execution finishes or suspends at a wait.
+     */
+    private void run(Execution execution) {
+        try {
+            Frame frame;
+            while ((frame = execution.top) != null) {
+                // Changes when entering or leaving a function
+                ExecutionContext context = execution.context;
+                if (frame.index >= frame.actions.size()) {
+                    if (frame instanceof LoopFrame loop && loop.advance(context)) {
+                        frame.index = 0;
+                    } else {
+                        pop(execution, frame);
+                    }
+                    continue;
+                }
+
+                Script.Action action = frame.actions.get(frame.index++);
+                switch (action.getType()) {
+                    case CONDITIONAL -> {
+                        Script.ConditionalAction conditional = (Script.ConditionalAction) action;
+                        execution.top = new Frame(conditional.select(context), frame);
+                    }
+                    case LOOP -> {
+                        LoopFrame loop = startLoop((Script.LoopAction) action, context, frame);
+                        if (loop.advance(context)) {
+                            execution.top = loop;
+                        }
+                    }
+                    case EXIT_LOOP -> exitLoop(execution, frame);
+                    case CALL -> call(execution, (Script.CallAction) action, frame);
+                    case RETURN -> {
+                        Expression value = action.getExpression();
+                        returnFromCall(execution, frame, value != null ? value.evaluate(context) : null);
+                    }
+                    case WAIT -> {
+                        suspend(execution, action);
+                        return;
+                    }
+                    default -> executeAction(action, context);
+                }
+            }
+        } catch (Exception e) {
+            releaseCallScopes(execution);
+            execution.callback.onFinish(e);
+            return;
+        }
+        execution.callback.onFinish(null);
+    }
+
+    private LoopFrame startLoop(Script.LoopAction loop, ExecutionContext context, Frame parent) {
+        Iterator<Map.Entry<String, String>> entries;
+        if (context.getVariableManager() == null) {
+            entries = List.<Map.Entry<String, String>>of().iterator();
+        } else {
+            String listName = evaluateVariableName(loop.getListName(), context);
+            entries = context.getVariableManager().iterateList(listName);
+            if (loop.isSnapshot()) {
+                List<Map.Entry<String, String>> copy = new ArrayList<>();
+                entries.forEachRemaining(copy::add);
+                entries = copy.iterator();
+            }
+        }
+        return new LoopFrame(loop.getActions(), parent, entries, context);
+    }
+
+    /**
+     * Leaves the innermost loop, along with any blocks inside it.
+     */
+    private void exitLoop(Execution execution, Frame frame) {
+        while (frame != null && !(frame instanceof LoopFrame) && !(frame instanceof CallFrame)) {
+            frame = frame.parent;
+        }
+        if (!(frame instanceof LoopFrame)) {
+            throw new IllegalStateException("'exit loop' used outside of a loop");
+        }
+        pop(execution, frame);
+    }
+
+    /**
+     * Enters a function. Its parameters are a slot array in positional order, so passing
+     * them allocates no map. Inlined functions never set locals, so they run in a shared
+     * empty scope instead of creating one; others get their own, released when they return.
+     */
+    private void call(Execution execution, Script.CallAction call, Frame frame) {
+        Script.FunctionDefinition function = call.getFunction();
+        if (function == null) {
+            throw new IllegalStateException("Function " + call.getFunctionName() + "() is not defined");
+        }
+        if (execution.callDepth >= MAX_CALL_DEPTH) {
+            throw new IllegalStateException("Function calls nested more than " + MAX_CALL_DEPTH + " deep");
+        }
+
+        ExecutionContext caller = execution.context;
+        List<String> parameters = function.getParameters();
+        List<Expression> arguments = call.getArguments();
+        String[] slots = new String[parameters.size()];
+        for (int i = 0; i < slots.length; i++) {
+            String value = i < arguments.size() ? arguments.get(i).evaluate(caller) : null;
+            slots[i] = value != null ? value : "";
+        }
+
+        UUID ownScope = null;
+        UUID scopeId = VariableManager.EMPTY_SCOPE;
+        if (!function.isInline() && caller.getVariableManager() != null) {
+            ownScope = caller.getVariableManager().createScope();
+            scopeId = ownScope;
+        }
+
+        execution.context = caller.forCall(parameters, slots, scopeId);
+        execution.top = new CallFrame(function.getActions(), frame, caller, call.getResultVariable(), ownScope);
+        execution.callDepth++;
+    }
+
+    /**
+     * Leaves the innermost function, along with any blocks inside it, and hands the
+     * value to the caller.
+     */
+    private void returnFromCall(Execution execution, Frame frame, String value) {
+        while (frame != null && !(frame instanceof CallFrame)) {
+            frame = frame.parent;
+        }
+        if (frame == null) {
+            throw new IllegalStateException("'return' used outside of a function");
+        }
+        leaveCall(execution, frame, value);
+    }
+
+    private void leaveCall(Execution execution, Frame frame, String value) {
+        CallFrame call = (CallFrame) frame;
+        ExecutionContext caller = call.callerContext;
+        if (call.ownScope != null) {
+            caller.getVariableManager().destroyScope(call.ownScope);
+        }
+        execution.context = caller;
+        execution.top = frame.parent;
+        execution.callDepth--;
+
+        if (call.resultVariable != null && caller.getVariableManager() != null) {
+            String name = evaluateVariableName(call.resultVariable, caller);
+            if (value != null) {
+                caller.getVariableManager().setVariable(caller.getScopeId(), name, value);
+            } else {
+                // Functions that return nothing leave the variable unset
+                caller.getVariableManager().deleteVariable(caller.getScopeId(), name);
+            }
+        }
+    }
+
+    private void pop(Execution execution, Frame frame) {
+        if (frame instanceof LoopFrame loop) {
+            // Back in the enclosing loop, if any, so its entry is current again
+            execution.context.setLoopEntry(loop.outerKey, loop.outerValue);
+        } else if (frame instanceof CallFrame) {
+            leaveCall(execution, frame, null);
+            return;
         }
+        execution.top = frame.parent;
     }
 
     /**
-     * Executes a single action.
+     * Frees the local scopes of functions still running when an execution fails.
      */
-    public void executeAction(Script.Action action, ExecutionContext context) {
+    private void releaseCallScopes(Execution execution) {
+        for (Frame frame = execution.top; frame != null; frame = frame.parent) {
+            if (frame instanceof CallFrame call && call.ownScope != null) {
+                call.callerContext.getVariableManager().destroyScope(call.ownScope);
+            }
+        }
+        execution.top = null;
+    }
+
+    private void suspend(Execution execution, Script.Action action) {
+        long delayMillis = Long.parseLong(action.getData("delayMillis"));
+        execution.callback.onSuspend();
+        Player player = execution.context.getPlayer();
+        timingWheel.schedule(delayMillis, () -> dispatcher.dispatchAsync(player, () -> run(execution)));
+        logger.debug("Waiting {} ms", delayMillis);
+    }
+
+    /**
+     * Executes a single non-control-flow action.
+     */
+    private void executeAction(Script.Action action, ExecutionContext context) {
         switch (action.getType()) {
             case SEND_MESSAGE -> executeSendMessage(action, context);
             case TRANSFER_PLAYER -> executeTransferPlayer(action, context);
             case SEND_TO_SERVER_PLAYERS -> executeSendToServerPlayers(action, context);
             case SET_VARIABLE -> executeSetVariable(action, context);
             case DELETE_VARIABLE -> executeDeleteVariable(action, context);
-            case CONDITIONAL -> executeConditional((Script.ConditionalAction) action, context);
+            case CONDITIONAL, LOOP, EXIT_LOOP, CALL, RETURN, WAIT -> throw new IllegalStateException("Handled by run(): " + action.getType());
         }
     }
 
@@ -72,14 +271,13 @@ public class ActionExecutor {
                 logger.debug("Broadcast message to all players");
             }
             case SPECIFIC_PLAYER -> {
-                String targetName = ExpressionParser.evaluateWithReplacements(
-                    action.getTargetPlayer(), context);
-                Optional<Player> targetPlayer = server.getPlayer(targetName);
+                Optional<Player> targetPlayer = findPlayer(action.getTargetPlayer(), context);
                 if (targetPlayer.isPresent()) {
                     targetPlayer.get().sendMessage(component);
-                    logger.debug("Sent message to player: {}", targetName);
+                    logger.debug("Sent message to player: {}", targetPlayer.get().getUsername());
                 } else {
-                    logger.warn("Cannot send message to '{}' - player not online", targetName);
+                    logger.warn("Cannot send message to '{}' - player not online",
+                                ExpressionParser.evaluateWithReplacements(action.getTargetPlayer(), context));
                 }
             }
             case SERVER_PLAYERS -> {
@@ -89,6 +287,20 @@ public class ActionExecutor {
         }
     }
 
+    /**
+     * Finds the player an expression names. A <name:player> argument is the player resolved
+     * when the command ran, as long as they are still online; other names are looked up.
+     */
+    private Optional<Player> findPlayer(String expression, ExecutionContext context) {
+        String trimmed = expression.trim();
+        if (trimmed.length() > 2 && trimmed.startsWith("%") && trimmed.indexOf('%', 1) == trimmed.length() - 1
+            && context.getTypedArgument(trimmed.substring(1, trimmed.length() - 1)) instanceof Player player
+            && player.isActive()) {
+            return Optional.of(player);
+        }
+        return server.getPlayer(ExpressionParser.evaluateWithReplacements(expression, context));
+    }
+
     private void executeTransferPlayer(Script.Action action, ExecutionContext context) {
         String playerExpr = action.getPlayerExpr();
         String serverName = action.getServerName();
@@ -106,11 +318,7 @@ public class ActionExecutor {
         if (playerExpr.equals("player") && context.getPlayer() != null) {
             targetPlayer = context.getPlayer();
         } else {
-            String playerName = ExpressionParser.evaluateWithReplacements(playerExpr, context);
-            Optional<Player> player = server.getPlayer(playerName);
-            if (player.isPresent()) {
-                targetPlayer = player.get();
-            }
+            targetPlayer = findPlayer(playerExpr, context).orElse(null);
         }
 
         if (targetPlayer == null) {
@@ -180,10 +388,18 @@ public class ActionExecutor {
         // Evaluate the variable name (for placeholders like %player% in {coins::%player%})
         String evaluatedName = evaluateVariableName(variableName, context);
         // Evaluate the value expression
-        String evaluatedValue = ExpressionParser.evaluateWithReplacements(variableValue, context);
+        String evaluatedValue = action.getExpression() != null
+            ? action.getExpression().evaluate(context)
+            : ExpressionParser.evaluateWithReplacements(variableValue, context);
 
         // Set the variable
         if (context.getVariableManager() != null && context.getScopeId() != null) {
+            if (evaluatedValue == null) {
+                // Computed values such as "rank of" have no result; leave the variable unset
+                context.getVariableManager().deleteVariable(context.getScopeId(), evaluatedName);
+                logger.debug("Cleared variable {}, value has no result", evaluatedName);
+                return;
+            }
             context.getVariableManager().setVariable(context.getScopeId(), evaluatedName, evaluatedValue);
             logger.debug("Set variable {} = {}", evaluatedName, evaluatedValue);
         } else {
@@ -230,29 +446,18 @@ public class ActionExecutor {
             }
         }
         
-        // Replace event data
-        if (context.getEventData() != null) {
-            for (var entry : context.getEventData().entrySet()) {
-                String key = "%" + entry.getKey() + "%";
-                String value = entry.getValue() != null ? entry.getValue().toString() : "";
-                result = result.replace(key, value);
-            }
+        // Replace loop placeholders
+        if (context.getLoopKey() != null) {
+            result = result.replace("%loop-key%", context.getLoopKey());
+            result = result.replace("%loop-value%", context.getLoopValue());
         }
         
-        return result;
-    }
-
-    private void executeConditional(Script.ConditionalAction action, ExecutionContext context) {
-        // Evaluate the condition
-        boolean conditionMet = action.getCondition().evaluate(context);
-
-        if (conditionMet) {
-            // Execute if actions
-            executeActions(action.getIfActions(), context);
-        } else {
-            // Execute else actions
-            executeActions(action.getElseActions(), context);
+        // Replace event data, working out only the values used
+        if (context.getEventPayload() != null) {
+            result = context.getEventPayload().replacePlaceholders(result);
         }
+        
+        return result;
     }
 
     /**
@@ -302,5 +507,98 @@ public class ActionExecutor {
         
         return finalResult.toString();
     }
-}
 
+    /**
+     * Told when an execution finishes, and each time it pauses at a wait.
+     */
+    public interface Callback {
+        /**
+         * Called once, after the last action ran or an action failed.
+         * @param error The exception that stopped the execution, or null if it completed
+         */
+        void onFinish(Throwable error);
+
+        /**
+         * Called each time the execution pauses at a wait, before the wait is scheduled.
+         */
+        default void onSuspend() {
+        }
+    }
+
+    /**
+     * One running action list and the position in it.
+     */
+    private static class Frame {
+        private final List<Script.Action> actions;
+        private final Frame parent;
+        private int index;
+
+        Frame(List<Script.Action> actions, Frame parent) {
+            this.actions = actions;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * The body of a running loop, repeated once per list entry.
+     * Only the list iterator is kept, so a loop holds constant memory even across waits.
+     */
+    private static class LoopFrame extends Frame {
+        private final Iterator<Map.Entry<String, String>> entries;
+        private final String outerKey;
+        private final String outerValue;
+
+        LoopFrame(List<Script.Action> actions, Frame parent, Iterator<Map.Entry<String, String>> entries,
+                  ExecutionContext context) {
+            super(actions, parent);
+            this.entries = entries;
+            this.outerKey = context.getLoopKey();
+            this.outerValue = context.getLoopValue();
+        }
+
+        /**
+         * Moves to the next entry and makes it current.
+         * @return false if there are no more entries
+         */
+        boolean advance(ExecutionContext context) {
+            if (!entries.hasNext()) {
+                return false;
+            }
+            Map.Entry<String, String> entry = entries.next();
+            context.setLoopEntry(entry.getKey(), entry.getValue());
+            return true;
+        }
+    }
+
+    /**
+     * The body of a running function call, and what to restore when it returns.
+     */
+    private static class CallFrame extends Frame {
+        private final ExecutionContext callerContext;
+        private final String resultVariable;
+        private final UUID ownScope;
+
+        CallFrame(List<Script.Action> actions, Frame parent, ExecutionContext callerContext,
+                  String resultVariable, UUID ownScope) {
+            super(actions, parent);
+            this.callerContext = callerContext;
+            this.resultVariable = resultVariable;
+            this.ownScope = ownScope;
+        }
+    }
+
+    /**
+     * State of one execution; only touched by the thread currently running it.
+     */
+    private static class Execution {
+        private final Callback callback;
+        private ExecutionContext context;
+        private Frame top;
+        private int callDepth;
+
+        Execution(ExecutionContext context, Callback callback) {
+            this.context = context;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.velocity.script.execution;
+
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of one event that triggers can use as placeholders, such as %uuid% or %from-server%.
+ *
+ * Each event type has a fixed set of fields. The event keeps only the objects Velocity handed
+ * it, and a value such as the UUID text or a server name is worked out the first time a
+ * trigger asks for it, then kept for the rest of the event's triggers. An event whose triggers
+ * use none of its values costs one small object. Values are immutable strings, so a value
+ * worked out on two threads at once is simply worked out twice.
+ */
+public abstract class EventPayload {
+    private static final List<Field> PLAYER_FIELDS = List.of(Field.PLAYER, Field.UUID);
+    private static final List<Field> QUIT_FIELDS = List.of(Field.PLAYER, Field.UUID, Field.QUIT_MESSAGE);
+    private static final List<Field> CHAT_FIELDS = List.of(Field.PLAYER, Field.UUID, Field.MESSAGE);
+    private static final List<Field> SWITCH_FIELDS = List.of(Field.PLAYER, Field.UUID, Field.FROM_SERVER,
+                                                             Field.TO_SERVER);
+    private static final List<Field> CONNECT_FIELDS = List.of(Field.PLAYER, Field.UUID, Field.TARGET_SERVER);
+
+    private final Player player;
+    private String uuid;
+
+    /**
+     * A value an event may have, by its placeholder name.
+     */
+    public enum Field {
+        PLAYER("player"),
+        UUID("uuid"),
+        MESSAGE("message"),
+        QUIT_MESSAGE("quit-message"),
+        FROM_SERVER("from-server"),
+        TO_SERVER("to-server"),
+        TARGET_SERVER("target-server");
+
+        private static final Map<String, Field> BY_KEY = new HashMap<>();
+
+        static {
+            for (Field field : values()) {
+                BY_KEY.put(field.key, field);
+            }
+        }
+
+        private final String key;
+        private final String placeholder;
+
+        Field(String key) {
+            this.key = key;
+            this.placeholder = "%" + key + "%";
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * The field a placeholder name refers to, or null if no event has it.
+         */
+        public static Field fromKey(String key) {
+            return BY_KEY.get(key);
+        }
+    }
+
+    private EventPayload(Player player) {
+        this.player = player;
+    }
+
+    public static EventPayload join(Player player) {
+        return new PlayerPayload(player, PLAYER_FIELDS);
+    }
+
+    /**
+     * Velocity does not give a quit message, so %quit-message% is empty.
+     */
+    public static EventPayload quit(Player player) {
+        return new PlayerPayload(player, QUIT_FIELDS);
+    }
+
+    public static EventPayload chat(Player player, String message) {
+        return new ChatPayload(player, message);
+    }
+
+    /**
+     * @param previousServer The server the player left, or null when joining the first one
+     * @param currentServer  The server the player is now on, or null if unknown
+     */
+    public static EventPayload serverSwitch(Player player, RegisteredServer previousServer,
+                                            RegisteredServer currentServer) {
+        return new SwitchPayload(player, previousServer, currentServer);
+    }
+
+    /**
+     * @param targetServer The server the player is about to connect to, or null if none
+     */
+    public static EventPayload serverConnect(Player player, RegisteredServer targetServer) {
+        return new ConnectPayload(player, targetServer);
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    /**
+     * The value of a field, or null if this event does not have it.
+     */
+    public String get(Field field) {
+        return switch (field) {
+            case PLAYER -> player.getUsername();
+            case UUID -> getUuid();
+            default -> getEventField(field);
+        };
+    }
+
+    /**
+     * The fields this event has.
+     */
+    public abstract List<Field> getFields();
+
+    /**
+     * Replaces the placeholders of this event's fields in the text, working out only the
+     * values the text uses.
+     */
+    public String replacePlaceholders(String text) {
+        if (text.indexOf('%') < 0) {
+            return text;
+        }
+        String result = text;
+        for (Field field : getFields()) {
+            if (result.contains(field.placeholder)) {
+                String value = get(field);
+                result = result.replace(field.placeholder, value != null ? value : "");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The value of a field specific to this event type, or null if it does not have it.
+     */
+    protected abstract String getEventField(Field field);
+
+    private String getUuid() {
+        String value = uuid;
+        if (value == null) {
+            value = player.getUniqueId().toString();
+            uuid = value;
+        }
+        return value;
+    }
+
+    private static String serverName(RegisteredServer server, String fallback) {
+        return server != null ? server.getServerInfo().getName() : fallback;
+    }
+
+    // ========== EVENT TYPES ==========
+
+    /**
+     * Join and quit: only the player's values.
+     */
+    private static final class PlayerPayload extends EventPayload {
+        private final List<Field> fields;
+
+        PlayerPayload(Player player, List<Field> fields) {
+            super(player);
+            this.fields = fields;
+        }
+
+        @Override
+        public List<Field> getFields() {
+            return fields;
+        }
+
+        @Override
+        protected String getEventField(Field field) {
+            return field == Field.QUIT_MESSAGE && fields == QUIT_FIELDS ? "" : null;
+        }
+    }
+
+    private static final class ChatPayload extends EventPayload {
+        private final String message;
+
+        ChatPayload(Player player, String message) {
+            super(player);
+            this.message = message;
+        }
+
+        @Override
+        public List<Field> getFields() {
+            return CHAT_FIELDS;
+        }
+
+        @Override
+        protected String getEventField(Field field) {
+            return field == Field.MESSAGE ? message : null;
+        }
+    }
+
+    private static final class SwitchPayload extends EventPayload {
+        private final RegisteredServer previousServer;
+        private final RegisteredServer currentServer;
+        private String fromServer;
+        private String toServer;
+
+        SwitchPayload(Player player, RegisteredServer previousServer, RegisteredServer currentServer) {
+            super(player);
+            this.previousServer = previousServer;
+            this.currentServer = currentServer;
+        }
+
+        @Override
+        public List<Field> getFields() {
+            return SWITCH_FIELDS;
+        }
+
+        @Override
+        protected String getEventField(Field field) {
+            if (field == Field.FROM_SERVER) {
+                if (fromServer == null) {
+                    fromServer = serverName(previousServer, "none");
+                }
+                return fromServer;
+            }
+            if (field == Field.TO_SERVER) {
+                if (toServer == null) {
+                    toServer = serverName(currentServer, "unknown");
+                }
+                return toServer;
+            }
+            return null;
+        }
+    }
+
+    private static final class ConnectPayload extends EventPayload {
+        private final RegisteredServer targetServer;
+        private String targetName;
+
+        ConnectPayload(Player player, RegisteredServer targetServer) {
+            super(player);
+            this.targetServer = targetServer;
+        }
+
+        @Override
+        public List<Field> getFields() {
+            return CONNECT_FIELDS;
+        }
+
+        @Override
+        protected String getEventField(Field field) {
+            if (field == Field.TARGET_SERVER) {
+                if (targetName == null) {
+                    targetName = serverName(targetServer, "unknown");
+                }
+                return targetName;
+            }
+            return null;
+        }
+    }
+}
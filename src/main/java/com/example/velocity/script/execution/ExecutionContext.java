@@ -16,18 +16,30 @@ public class ExecutionContext {
     private final Player player;
     private final List<String> argumentNames;
     private final String[] argumentValues;
+    // Converted values of typed command arguments: Double for numbers, Player for players
+    private final Object[] typedArguments;
     private final VariableManager variableManager;
     private final UUID scopeId;
-    private final Map<String, Object> eventData;
+    private final EventPayload eventPayload;
+    private final RateLimiter rateLimiter;
+    private final PermissionCache permissionCache;
+    // Entry of the innermost running loop, set by the ActionExecutor
+    private String loopKey;
+    private String loopValue;
+    // Results of keyword scans, so the "contains" checks of one value share one pass over it
+    private Map<Object, Object> scanResults;
 
     private ExecutionContext(Builder builder) {
         this.server = builder.server;
         this.player = builder.player;
         this.argumentNames = builder.argumentNames;
         this.argumentValues = builder.argumentValues;
+        this.typedArguments = builder.typedArguments;
         this.variableManager = builder.variableManager;
         this.scopeId = builder.scopeId;
-        this.eventData = builder.eventData;
+        this.eventPayload = builder.eventPayload;
+        this.rateLimiter = builder.rateLimiter;
+        this.permissionCache = builder.permissionCache;
     }
 
     public ProxyServer getServer() {
@@ -63,6 +75,20 @@ public class ExecutionContext {
         return null;
     }
 
+    /**
+     * The converted value of a typed command argument: a Double for number arguments and
+     * the Player for player arguments. Null for text arguments and unknown names.
+     */
+    public Object getTypedArgument(String name) {
+        if (argumentNames != null && typedArguments != null) {
+            int index = argumentNames.indexOf(name);
+            if (index >= 0 && index < typedArguments.length) {
+                return typedArguments[index];
+            }
+        }
+        return null;
+    }
+
     public VariableManager getVariableManager() {
         return variableManager;
     }
@@ -71,12 +97,76 @@ public class ExecutionContext {
         return scopeId;
     }
 
-    public Map<String, Object> getEventData() {
-        return eventData;
+    /**
+     * The event the script is running for, or null outside event triggers.
+     */
+    public EventPayload getEventPayload() {
+        return eventPayload;
+    }
+
+    /**
+     * A value of the current event, or null if there is no event or it has no such value.
+     */
+    public String getEventValue(EventPayload.Field field) {
+        return eventPayload != null ? eventPayload.get(field) : null;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public PermissionCache getPermissionCache() {
+        return permissionCache;
+    }
+
+    /**
+     * Key of the current loop entry (%loop-key%), or null outside a loop.
+     */
+    public String getLoopKey() {
+        return loopKey;
+    }
+
+    /**
+     * Value of the current loop entry (%loop-value%), or null outside a loop.
+     */
+    public String getLoopValue() {
+        return loopValue;
     }
 
-    public Object getEventValue(String key) {
-        return eventData != null ? eventData.get(key) : null;
+    void setLoopEntry(String key, String value) {
+        this.loopKey = key;
+        this.loopValue = value;
+    }
+
+    /**
+     * The last result a keyword scan stored in this context, or null.
+     */
+    public Object getScanResult(Object scan) {
+        return scanResults != null ? scanResults.get(scan) : null;
+    }
+
+    public void putScanResult(Object scan, Object result) {
+        if (scanResults == null) {
+            scanResults = new IdentityHashMap<>();
+        }
+        scanResults.put(scan, result);
+    }
+
+    /**
+     * Creates the context a function body runs in: same player, event and services,
+     * with the function's parameters as arguments and the given local scope.
+     */
+    ExecutionContext forCall(List<String> parameterNames, String[] parameterValues, UUID callScopeId) {
+        return new Builder()
+            .server(server)
+            .player(player)
+            .arguments(parameterNames, parameterValues)
+            .variableManager(variableManager)
+            .scopeId(callScopeId)
+            .eventPayload(eventPayload)
+            .rateLimiter(rateLimiter)
+            .permissionCache(permissionCache)
+            .build();
     }
 
     public Optional<RegisteredServer> getPlayerServer() {
@@ -91,9 +181,12 @@ public class ExecutionContext {
         private Player player;
         private List<String> argumentNames;
         private String[] argumentValues;
+        private Object[] typedArguments;
         private VariableManager variableManager;
         private UUID scopeId;
-        private Map<String, Object> eventData;
+        private EventPayload eventPayload;
+        private RateLimiter rateLimiter;
+        private PermissionCache permissionCache;
 
         public Builder server(ProxyServer server) {
             this.server = server;
@@ -111,6 +204,11 @@ public class ExecutionContext {
             return this;
         }
 
+        public Builder typedArguments(Object[] typedArguments) {
+            this.typedArguments = typedArguments;
+            return this;
+        }
+
         public Builder variableManager(VariableManager variableManager) {
             this.variableManager = variableManager;
             return this;
@@ -121,8 +219,18 @@ public class ExecutionContext {
             return this;
         }
 
-        public Builder eventData(Map<String, Object> eventData) {
-            this.eventData = eventData;
+        public Builder eventPayload(EventPayload eventPayload) {
+            this.eventPayload = eventPayload;
+            return this;
+        }
+
+        public Builder rateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        public Builder permissionCache(PermissionCache permissionCache) {
+            this.permissionCache = permissionCache;
             return this;
         }
 
@@ -0,0 +1,172 @@
+package com.example.velocity.script.execution;
+
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
+import com.velocitypowered.api.proxy.Player;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers recent permission decisions per player, for command permissions and the
+ * "has permission" condition.
+ *
+ * Permission plugins work out each check from the player's groups and contexts, which adds
+ * up on commands players spam. A decision is reused for a short time, and forgotten when the
+ * player switches server (their contexts may change) or disconnects. The cache holds at most
+ * maxEntries decisions; when it is full, expired ones are swept out and new ones are not
+ * cached until there is room.
+ */
+public class PermissionCache {
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final Map<UUID, Map<String, Decision>> decisions;
+    private final AtomicInteger size;
+    private final AtomicLong lastSweep;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    private record Decision(boolean allowed, long expiresAt) {
+    }
+
+    /**
+     * @param ttlMillis How long a decision is reused; 0 turns caching off
+     */
+    public PermissionCache(long ttlMillis, int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ttlMillis, 0));
+        this.maxEntries = Math.max(maxEntries, 0);
+        this.decisions = new ConcurrentHashMap<>();
+        this.size = new AtomicInteger();
+        this.lastSweep = new AtomicLong(System.nanoTime());
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * Whether the player has the permission, asking the permission plugin only when there
+     * is no recent decision.
+     */
+    public boolean hasPermission(Player player, String permission) {
+        if (ttlNanos == 0 || maxEntries == 0) {
+            misses.increment();
+            return player.hasPermission(permission);
+        }
+
+        long now = System.nanoTime();
+        Map<String, Decision> playerDecisions = decisions.get(player.getUniqueId());
+        Decision decision = playerDecisions != null ? playerDecisions.get(permission) : null;
+        if (decision != null && decision.expiresAt() - now > 0) {
+            hits.increment();
+            return decision.allowed();
+        }
+
+        misses.increment();
+        boolean allowed = player.hasPermission(permission);
+        if (!player.isActive()) {
+            // A check finishing after the player left would bring back the map invalidate removed
+            return allowed;
+        }
+        if (decision == null && size.get() >= maxEntries && !sweep(now)) {
+            return allowed;
+        }
+        Decision previous = decisions
+            .computeIfAbsent(player.getUniqueId(), id -> new ConcurrentHashMap<>())
+            .put(permission, new Decision(allowed, now + ttlNanos));
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+        return allowed;
+    }
+
+    /**
+     * Forgets a player's decisions.
+     */
+    public void invalidate(UUID playerId) {
+        Map<String, Decision> removed = decisions.remove(playerId);
+        if (removed != null) {
+            size.addAndGet(-removed.size());
+        }
+    }
+
+    /**
+     * Forgets all decisions, such as after permissions were edited.
+     *
+     * @return the number of decisions dropped
+     */
+    public int flush() {
+        int dropped = 0;
+        for (UUID playerId : decisions.keySet()) {
+            Map<String, Decision> removed = decisions.remove(playerId);
+            if (removed != null) {
+                dropped += removed.size();
+                size.addAndGet(-removed.size());
+            }
+        }
+        return dropped;
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onServerSwitch(ServerPostConnectEvent event) {
+        invalidate(event.getPlayer().getUniqueId());
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onDisconnect(DisconnectEvent event) {
+        invalidate(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * Drops expired decisions, at most once per TTL so a full cache of live decisions
+     * does not sweep on every check.
+     *
+     * @return whether there is room for another decision afterwards
+     */
+    private boolean sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last >= ttlNanos && lastSweep.compareAndSet(last, now)) {
+            int remaining = 0;
+            for (Map<String, Decision> playerDecisions : decisions.values()) {
+                playerDecisions.values().removeIf(decision -> decision.expiresAt() - now <= 0);
+                remaining += playerDecisions.size();
+            }
+            // Players whose decisions all expired; a check racing with this only loses its decision
+            decisions.values().removeIf(Map::isEmpty);
+            // Recounted here, so decisions added while a player was being invalidated
+            // do not keep counting towards the limit
+            size.set(remaining);
+        }
+        return size.get() < maxEntries;
+    }
+
+    /**
+     * Checks answered from the cache, without asking the permission plugin.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Checks that asked the permission plugin.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    public String getStats() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        return String.format("%d cached, %d of %d check(s) answered from cache (%.1f%%)",
+            getSize(), hitCount, total, total == 0 ? 0.0 : hitCount * 100.0 / total);
+    }
+}
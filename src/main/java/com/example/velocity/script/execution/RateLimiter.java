@@ -0,0 +1,75 @@
+package com.example.velocity.script.execution;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory per-player rate limits for command cooldowns and the "is rate limited" condition.
+ *
+ * Each (player, key) pair is one AtomicLong holding its theoretical arrival time (GCRA, the
+ * token bucket expressed as a single timestamp), so a check is a map lookup and a CAS with no
+ * locks and no storage. State is lost on restart and dropped when the player disconnects.
+ */
+public class RateLimiter {
+    private final Map<UUID, Map<String, AtomicLong>> buckets;
+    private final long originNanos;
+
+    public RateLimiter() {
+        this.buckets = new ConcurrentHashMap<>();
+        this.originNanos = System.nanoTime();
+    }
+
+    /**
+     * Records one use of the key if the player has used it fewer than limit times in the
+     * last period.
+     *
+     * @return 0 if the use was allowed, otherwise the nanoseconds until it would be
+     */
+    public long tryAcquire(UUID playerId, String key, int limit, long periodNanos) {
+        long interval = Math.max(periodNanos / Math.max(limit, 1), 1);
+        long tolerance = periodNanos - interval;
+        AtomicLong arrival = buckets
+            .computeIfAbsent(playerId, id -> new ConcurrentHashMap<>())
+            .computeIfAbsent(key, k -> new AtomicLong());
+
+        while (true) {
+            long now = System.nanoTime() - originNanos;
+            long current = arrival.get();
+            long start = Math.max(current, now);
+            long wait = start - tolerance - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (arrival.compareAndSet(current, start + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Checks a command cooldown: one use per cooldown.
+     *
+     * @return 0 if the command may run, otherwise the milliseconds left, rounded up
+     */
+    public long tryCooldown(UUID playerId, String key, long cooldownMillis) {
+        long wait = tryAcquire(playerId, key, 1, TimeUnit.MILLISECONDS.toNanos(cooldownMillis));
+        return wait == 0 ? 0 : Math.max(TimeUnit.NANOSECONDS.toMillis(wait + 999_999), 1);
+    }
+
+    /**
+     * Forgets all limits of a player. Called when the player disconnects.
+     */
+    public void release(UUID playerId) {
+        buckets.remove(playerId);
+    }
+
+    /**
+     * Number of players with at least one tracked limit.
+     */
+    public int getTrackedPlayerCount() {
+        return buckets.size();
+    }
+}
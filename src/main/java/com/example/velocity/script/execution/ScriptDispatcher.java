@@ -0,0 +1,292 @@
+package com.example.velocity.script.execution;
+
+import com.velocitypowered.api.proxy.Player;
+import org.slf4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which thread runs a command or event trigger invocation.
+ * In INLINE mode scripts run on the calling Velocity thread, as they always have.
+ * In VIRTUAL mode each invocation runs on its own virtual thread, so blocking
+ * SQLite calls park the virtual thread instead of holding a Velocity thread.
+ * In ACTOR mode invocations for a player are queued on that player's mailbox and
+ * run one at a time in arrival order, while different players run in parallel.
+ */
+public class ScriptDispatcher implements AutoCloseable {
+    // Tasks a mailbox runs before yielding its thread to other players
+    private static final int MAILBOX_BATCH = 64;
+    // Tasks waiting for a pool thread before callers run them themselves (no virtual threads)
+    private static final int POOL_QUEUE_SIZE = 10_000;
+
+    private final Logger logger;
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final Executor resumeExecutor;
+    private final Map<UUID, Mailbox> mailboxes;
+
+    /**
+     * @param resumeExecutor Runs timer-started scripts in INLINE mode, where there is no
+     *                       Velocity thread to return to (e.g. the proxy scheduler)
+     * @param poolThreads    Threads scripts run on when the JDK has no virtual threads
+     */
+    public ScriptDispatcher(Logger logger, Mode mode, Executor resumeExecutor, int poolThreads) {
+        this.logger = logger;
+        this.mode = mode;
+        this.executor = mode == Mode.INLINE ? null : createExecutor(poolThreads);
+        this.resumeExecutor = resumeExecutor;
+        this.mailboxes = new ConcurrentHashMap<>();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Runs the task according to the execution mode. The task is expected to handle
+     * and log its own errors; anything it lets through is logged here.
+     */
+    public void dispatch(Runnable task) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.error("Unhandled error in script task", t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Pool queue full, or shutting down: finish the work on the caller instead of dropping it
+            task.run();
+        }
+    }
+
+    /**
+     * Runs a task on behalf of a player. In ACTOR mode it is queued behind the
+     * player's earlier tasks; in other modes this is the same as {@link #dispatch(Runnable)}.
+     */
+    public void dispatch(Player player, Runnable task) {
+        if (mode != Mode.ACTOR || player == null) {
+            dispatch(task);
+            return;
+        }
+        UUID playerId = player.getUniqueId();
+        Mailbox mailbox = mailboxes.get(playerId);
+        if (mailbox == null || mailbox.isClosed()) {
+            if (!player.isActive()) {
+                // A late task, e.g. a wait ending after the player left: there is nothing
+                // left to order it behind, and a new mailbox would never be released
+                dispatch(task);
+                return;
+            }
+            // A closed mailbox belongs to an earlier connection of the same player
+            mailbox = mailboxes.compute(playerId, (id, current) ->
+                current == null || current.isClosed() ? new Mailbox(id) : current);
+            // The player may have left, and been released, since the check above
+            if (!player.isActive()) {
+                mailbox.close();
+            }
+        }
+        if (!mailbox.enqueue(task)) {
+            dispatch(task);
+        }
+    }
+
+    /**
+     * Runs a task that does not start on a Velocity thread, such as a script resuming
+     * after a wait or a periodic trigger. Called from the timer thread, so the task is
+     * always handed off, even in INLINE mode.
+     */
+    public void dispatchAsync(Player player, Runnable task) {
+        if (mode == Mode.INLINE) {
+            resumeExecutor.execute(task);
+        } else {
+            dispatch(player, task);
+        }
+    }
+
+    /**
+     * Drops the player's mailbox once the tasks already queued on it have run. Tasks
+     * dispatched for the player afterwards run like {@link #dispatch(Runnable)}.
+     * Called when the player disconnects.
+     */
+    public void release(Player player) {
+        Mailbox mailbox = mailboxes.get(player.getUniqueId());
+        if (mailbox != null) {
+            mailbox.close();
+        }
+    }
+
+    /**
+     * Number of players with a mailbox (ACTOR mode only).
+     */
+    public int getMailboxCount() {
+        return mailboxes.size();
+    }
+
+    /**
+     * Stops accepting tasks and waits briefly for running ones to finish.
+     */
+    @Override
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("Script tasks still running after 5 seconds, continuing shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor when the JDK has one (Java 21+).
+     * The plugin targets Java 17, so it is looked up reflectively; on older JDKs a
+     * fixed pool of daemon threads is used instead. Its queue is bounded too, and once
+     * it is full callers run their tasks themselves, which slows down whatever floods
+     * it rather than starting a thread per blocked script.
+     */
+    private ExecutorService createExecutor(int poolThreads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService virtual = (ExecutorService) factory.invoke(null);
+            logger.info("Running scripts on virtual threads");
+            return virtual;
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads need Java 21 or newer, running scripts on a pool of {} threads instead",
+                poolThreads);
+            AtomicInteger counter = new AtomicInteger();
+            ThreadFactory threads = runnable -> {
+                Thread thread = new Thread(runnable, "vsk-script-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(poolThreads, poolThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(POOL_QUEUE_SIZE), threads);
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    /**
+     * A player's task queue. At most one drain runs at a time, which is what keeps
+     * the player's tasks ordered without any locks. Once closed it takes no new tasks,
+     * and removes itself after running the ones it has.
+     */
+    private class Mailbox {
+        // State bits, changed together so closing cannot slip between a drain's last poll and its exit
+        private static final int SCHEDULED = 1;
+        private static final int CLOSED = 2;
+
+        private final UUID playerId;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger state = new AtomicInteger();
+
+        Mailbox(UUID playerId) {
+            this.playerId = playerId;
+        }
+
+        boolean isClosed() {
+            return (state.get() & CLOSED) != 0;
+        }
+
+        /**
+         * @return false if the mailbox was closed and the task is left to the caller
+         */
+        boolean enqueue(Runnable task) {
+            queue.add(task);
+            if (isClosed()) {
+                // Taken back unless a final drain already picked it up
+                return !queue.remove(task);
+            }
+            schedule();
+            return true;
+        }
+
+        void close() {
+            if ((state.getAndUpdate(current -> current | CLOSED) & CLOSED) != 0) {
+                return;
+            }
+            // A drain, now or after the running one, removes the mailbox once it is empty
+            schedule();
+        }
+
+        private void schedule() {
+            int current;
+            do {
+                current = state.get();
+                if ((current & SCHEDULED) != 0) {
+                    return;
+                }
+            } while (!state.compareAndSet(current, current | SCHEDULED));
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Pool queue full, or shutting down: drain on the caller instead of dropping the tasks
+                drain();
+            }
+        }
+
+        private void drain() {
+            for (int i = 0; i < MAILBOX_BATCH; i++) {
+                Runnable task = queue.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.error("Unhandled error in script task", t);
+                }
+            }
+            int previous = state.getAndUpdate(current -> current & ~SCHEDULED);
+            // Tasks may have arrived after the last poll, or the batch limit was hit
+            if (!queue.isEmpty()) {
+                schedule();
+            } else if ((previous & CLOSED) != 0) {
+                mailboxes.remove(playerId, this);
+            }
+        }
+    }
+
+    public enum Mode {
+        INLINE,
+        VIRTUAL,
+        ACTOR;
+
+        /**
+         * Parses the execution.mode config value, defaulting to INLINE.
+         */
+        public static Mode fromConfig(String value, Logger logger) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            logger.warn("Unknown execution mode '{}', using inline", value);
+            return INLINE;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.velocity.script.execution;
+
+import org.slf4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel that runs delayed tasks from a single timer thread.
+ * Scheduling and cancelling are O(1) and a pending task costs one small object,
+ * so hundreds of thousands of waiting scripts hold no threads and little memory.
+ *
+ * Tasks run on the timer thread and must only hand work off (e.g. to a
+ * {@link ScriptDispatcher}); anything slow delays every other timer.
+ */
+public class TimingWheel implements AutoCloseable {
+    // Must be a power of two; with 50 ms ticks one turn of the wheel is 25.6 seconds
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final Logger logger;
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final Queue<Timeout> added;
+    private final AtomicInteger pendingCount;
+    private final Thread thread;
+    private volatile boolean running;
+    private long startNanos;
+    private long tick;
+
+    public TimingWheel(Logger logger, long tickMillis) {
+        this.logger = logger;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Timeout[WHEEL_SIZE];
+        this.added = new ConcurrentLinkedQueue<>();
+        this.pendingCount = new AtomicInteger();
+        this.thread = new Thread(this::runLoop, "vsk-timer");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the timer thread once the delay has passed, rounded up to the next tick.
+     */
+    public Timeout schedule(long delayMillis, Runnable task) {
+        return scheduleAt(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0)), task);
+    }
+
+    /**
+     * Runs the task on the timer thread once System.nanoTime() reaches the deadline.
+     */
+    public Timeout scheduleAt(long deadlineNanos, Runnable task) {
+        Timeout timeout = new Timeout(deadlineNanos, task);
+        pendingCount.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Number of tasks waiting to run.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        int dropped = pendingCount.get();
+        if (dropped > 0) {
+            logger.info("Dropped {} pending timer(s) on shutdown", dropped);
+        }
+    }
+
+    private void runLoop() {
+        while (running) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            transferAdded();
+            expireBucket((int) (tick & MASK));
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into their buckets. Only the timer thread touches buckets.
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                pendingCount.decrementAndGet();
+                continue;
+            }
+            long dueTick = Math.max(ceilDiv(timeout.deadlineNanos - startNanos, tickNanos) - 1, tick);
+            timeout.rounds = (dueTick - tick) / WHEEL_SIZE;
+            int index = (int) (dueTick & MASK);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    private void expireBucket(int index) {
+        Timeout timeout = buckets[index];
+        Timeout kept = null;
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (timeout.cancelled) {
+                pendingCount.decrementAndGet();
+            } else if (timeout.rounds <= 0) {
+                pendingCount.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (Throwable t) {
+                    logger.error("Error in timer task", t);
+                }
+            } else {
+                timeout.rounds--;
+                timeout.next = kept;
+                kept = timeout;
+            }
+            timeout = next;
+        }
+        buckets[index] = kept;
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return value <= 0 ? 0 : (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Handle for a scheduled task.
+     */
+    public static class Timeout {
+        private final long deadlineNanos;
+        private final Runnable task;
+        private volatile boolean cancelled;
+        private long rounds;
+        private Timeout next;
+
+        private Timeout(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+
+        /**
+         * Stops the task from running if it has not run yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.velocity.script.expression;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Settings and counters for reordering conditions from live traffic.
+ *
+ * About one in SAMPLE_RATE evaluations of an "and"/"or" condition or an "else if" chain is
+ * sampled: it records which terms were true and how long each took. After REORDER_SAMPLES
+ * samples the terms are re-sorted so the ones most likely to decide the result, per unit of
+ * cost, run first. Counts are halved on each reorder so old traffic fades out.
+ */
+public final class AdaptiveOrder {
+    private static final int SAMPLE_RATE = 64;
+    private static final int REORDER_SAMPLES = 256;
+
+    private static volatile boolean enabled = true;
+
+    private AdaptiveOrder() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns sampling and reordering on or off. When off, conditions keep their current order.
+     */
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Whether this evaluation should be sampled.
+     */
+    public static boolean shouldSample() {
+        return enabled && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    /**
+     * Counts one sample and tells whether enough samples were taken to reorder.
+     */
+    public static boolean sampled(AtomicLong samples) {
+        return samples.incrementAndGet() % REORDER_SAMPLES == 0;
+    }
+
+    /**
+     * Returns the items sorted by score, lowest first, and halves their counts.
+     * Scores are computed once up front, since other threads keep sampling meanwhile.
+     */
+    public static <T> T[] sortByScore(T[] items, ToDoubleFunction<T> score, Function<T, Stats> stats) {
+        double[] scores = new double[items.length];
+        Integer[] order = new Integer[items.length];
+        for (int i = 0; i < items.length; i++) {
+            scores[i] = score.applyAsDouble(items[i]);
+            order[i] = i;
+        }
+        // Stable, so items with equal scores keep their order
+        Arrays.sort(order, Comparator.comparingDouble(i -> scores[i]));
+
+        T[] sorted = items.clone();
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = items[order[i]];
+            stats.apply(sorted[i]).decay();
+        }
+        return sorted;
+    }
+
+    /**
+     * Sampled outcomes of one term or branch.
+     */
+    public static final class Stats {
+        private final AtomicLong evaluations = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        /**
+         * Records one sampled evaluation.
+         * @param hit Whether the term was true, or the branch was taken
+         */
+        public void record(boolean hit, long elapsedNanos) {
+            evaluations.incrementAndGet();
+            if (hit) {
+                hits.incrementAndGet();
+            }
+            nanos.addAndGet(elapsedNanos);
+        }
+
+        /**
+         * Share of evaluations that were true, smoothed so unsampled terms count as 50%.
+         */
+        public double hitRate() {
+            return (hits.get() + 1.0) / (evaluations.get() + 2.0);
+        }
+
+        public double averageNanos() {
+            long count = evaluations.get();
+            return count == 0 ? 0 : (double) nanos.get() / count;
+        }
+
+        public long getEvaluations() {
+            return evaluations.get();
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        void decay() {
+            evaluations.set(evaluations.get() / 2);
+            hits.set(hits.get() / 2);
+            nanos.set(nanos.get() / 2);
+        }
+
+        @Override
+        public String toString() {
+            if (evaluations.get() == 0) {
+                return "not sampled";
+            }
+            return String.format("%.0f%% true, %.0f ns", hitRate() * 100, averageNanos());
+        }
+    }
+}
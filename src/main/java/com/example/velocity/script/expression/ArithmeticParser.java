@@ -0,0 +1,421 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses arithmetic such as "{coins::%uuid%} + 10" or "round(100 * 1.5 ^ {level})" and
+ * compiles it into a tree of {@link NumericExpression} nodes.
+ *
+ * Operands are numbers, variables, placeholders such as %amount%, parenthesized
+ * expressions and min(...), max(...) and round(...). Operators, loosest first:
+ * + and -, then * / and % (remainder), then unary minus, then ^ (power, right-associative).
+ * Unset variables count as 0. Parts made only of constants are computed once, here.
+ *
+ * Uses Pratt parsing (precedence climbing) straight over the characters: whether a '%'
+ * is the remainder operator or starts a placeholder depends on whether an operator or an
+ * operand is expected, which a separate tokenizer could not tell.
+ */
+public class ArithmeticParser {
+    private static final Set<String> BUILTINS = Set.of("min", "max", "round");
+    // Powers of ten that are exact doubles, for dividing short decimals in one rounding step
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Binding powers
+    private static final int ADDITIVE = 10;
+    private static final int MULTIPLICATIVE = 20;
+    private static final int UNARY = 30;
+    private static final int POWER = 40;
+
+    private final String text;
+    private int pos;
+    // Whether an operator or built-in was seen; plain numbers and variables are not arithmetic
+    private boolean computed;
+    // Whether a variable, placeholder or built-in was seen, or the whole text is in parentheses
+    private boolean explicit;
+
+    private ArithmeticParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Compiles arithmetic text into an expression whose value is the formatted result.
+     * The result is not set if it is not a finite number, e.g. after a division by zero.
+     *
+     * Where text is also a valid value, only formulas that use a variable, placeholder or
+     * built-in, or are wrapped in parentheses, count as arithmetic: a date such as 2024-01-01
+     * or a phone number such as 555-1234 stays text.
+     * @return the expression, or null if the text is not arithmetic
+     */
+    public static Expression parse(String text) {
+        NumericExpression numeric = compile(text, true);
+        if (numeric == null) {
+            return null;
+        }
+        if (numeric instanceof Constant constant) {
+            String value = format(constant.value);
+            return context -> value;
+        }
+        return context -> format(numeric.evaluate(context));
+    }
+
+    /**
+     * Compiles arithmetic text into a numeric expression, for places that expect a number
+     * such as comparisons, where constant formulas like 60 * 60 need no parentheses.
+     * @return the expression, or null if the text is not arithmetic
+     */
+    public static NumericExpression parseNumeric(String text) {
+        return compile(text, false);
+    }
+
+    /**
+     * @param requireExplicit whether constant-only formulas must be wrapped in parentheses
+     */
+    private static NumericExpression compile(String text, boolean requireExplicit) {
+        ArithmeticParser parser = new ArithmeticParser(text.trim());
+        try {
+            NumericExpression expression = parser.expression(0);
+            parser.skipWhitespace();
+            if (parser.pos != parser.text.length() || !parser.computed) {
+                return null;
+            }
+            if (requireExplicit && !parser.explicit) {
+                return null;
+            }
+            return expression;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the name is a built-in math function, which script functions cannot use.
+     */
+    public static boolean isBuiltin(String name) {
+        return BUILTINS.contains(name);
+    }
+
+    /**
+     * Formats a result for storing or sending: whole numbers without a decimal point.
+     * @return the text, or null if the value is NaN or infinite
+     */
+    static String format(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return null;
+        }
+        return ExpressionParser.formatNumber(value);
+    }
+
+    /**
+     * Converts a variable or placeholder value to a number. Unset counts as 0.
+     */
+    static double toNumber(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        return parseDecimal(value);
+    }
+
+    /**
+     * Parses a decimal such as -12, 3.5 or 1e3, returning NaN for anything else. Values are
+     * read from variables on every comparison, so text is rejected without an exception, and
+     * numbers of up to 15 digits are computed directly: their digits and the power of ten
+     * are both exact doubles, so one division rounds the same way Double.parseDouble does.
+     */
+    public static double parseDecimal(String value) {
+        int start = 0;
+        int end = value.length();
+        while (start < end && Character.isWhitespace(value.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+            end--;
+        }
+
+        int i = start;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            i++;
+        }
+        long digitsValue = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                // Overflows past 18 digits, but is only used for 15 or fewer
+                digitsValue = digitsValue * 10 + (c - '0');
+                digits++;
+                if (point) {
+                    scale++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (i < end) {
+            char c = value.charAt(i);
+            if ((c != 'e' && c != 'E') || !isExponent(value, i + 1, end)) {
+                return Double.NaN;
+            }
+            return Double.parseDouble(value.substring(start, end));
+        }
+        if (digits > 15 || scale >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(value.substring(start, end));
+        }
+
+        double result = scale == 0 ? digitsValue : digitsValue / POWERS_OF_TEN[scale];
+        return value.charAt(start) == '-' ? -result : result;
+    }
+
+    private static boolean isExponent(String value, int start, int end) {
+        int i = start;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        for (; i < end; i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ========== PARSER ==========
+
+    private NumericExpression expression(int minPower) {
+        NumericExpression left = operand();
+
+        while (true) {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                return left;
+            }
+            char op = text.charAt(pos);
+            int power = infixPower(op);
+            if (power <= minPower) {
+                return left;
+            }
+            pos++;
+            computed = true;
+            // ^ is right-associative, so its right side may contain another ^
+            NumericExpression right = expression(op == '^' ? power - 1 : power);
+            left = binary(op, left, right);
+        }
+    }
+
+    private static int infixPower(char op) {
+        return switch (op) {
+            case '+', '-' -> ADDITIVE;
+            case '*', '/', '%' -> MULTIPLICATIVE;
+            case '^' -> POWER;
+            default -> -1;
+        };
+    }
+
+    private NumericExpression operand() {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw new IllegalArgumentException("Expected a value");
+        }
+
+        char c = text.charAt(pos);
+        if (c == '-') {
+            pos++;
+            computed = true;
+            NumericExpression inner = expression(UNARY);
+            if (inner instanceof Constant constant) {
+                return new Constant(-constant.value);
+            }
+            return context -> -inner.evaluate(context);
+        }
+        if (c == '(') {
+            boolean outermost = pos == 0;
+            pos++;
+            NumericExpression inner = expression(0);
+            expect(')');
+            if (outermost && pos == text.length()) {
+                explicit = true;
+            }
+            return inner;
+        }
+        if (Character.isDigit(c) || c == '.') {
+            return number();
+        }
+        if (c == '{') {
+            return variable();
+        }
+        if (c == '%') {
+            return placeholder();
+        }
+        if (Character.isLetter(c)) {
+            return builtin();
+        }
+        throw new IllegalArgumentException("Unexpected '" + c + "'");
+    }
+
+    private NumericExpression number() {
+        int start = pos;
+        while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+            pos++;
+        }
+        try {
+            return new Constant(Double.parseDouble(text.substring(start, pos)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number", e);
+        }
+    }
+
+    private NumericExpression variable() {
+        int end = text.indexOf('}', pos);
+        if (end < 0) {
+            throw new IllegalArgumentException("Unclosed variable");
+        }
+        String name = text.substring(pos, end + 1);
+        pos = end + 1;
+        explicit = true;
+        boolean dynamic = name.indexOf('%') >= 0;
+
+        return context -> {
+            if (context.getVariableManager() == null || context.getScopeId() == null) {
+                return 0;
+            }
+            String evaluatedName = dynamic ? ExpressionParser.evaluateVariableName(name, context) : name;
+            return toNumber(context.getVariableManager().getVariable(context.getScopeId(), evaluatedName));
+        };
+    }
+
+    private NumericExpression placeholder() {
+        int end = text.indexOf('%', pos + 1);
+        if (end < 0) {
+            throw new IllegalArgumentException("Unclosed placeholder");
+        }
+        String key = text.substring(pos + 1, end);
+        Expression value = ExpressionParser.parsePlaceholder(key);
+        pos = end + 1;
+        explicit = true;
+        // A number argument was parsed when the command ran
+        return context -> context.getTypedArgument(key) instanceof Double number
+            ? number
+            : toNumber(value.evaluate(context));
+    }
+
+    private NumericExpression builtin() {
+        int start = pos;
+        while (pos < text.length() && Character.isLetter(text.charAt(pos))) {
+            pos++;
+        }
+        String name = text.substring(start, pos);
+        if (!BUILTINS.contains(name)) {
+            throw new IllegalArgumentException("Unknown function " + name);
+        }
+
+        skipWhitespace();
+        expect('(');
+        List<NumericExpression> arguments = new ArrayList<>();
+        arguments.add(expression(0));
+        skipWhitespace();
+        while (pos < text.length() && text.charAt(pos) == ',') {
+            pos++;
+            arguments.add(expression(0));
+            skipWhitespace();
+        }
+        expect(')');
+        computed = true;
+        explicit = true;
+
+        NumericExpression function = switch (name) {
+            case "round" -> {
+                if (arguments.size() != 1) {
+                    throw new IllegalArgumentException("round takes one value");
+                }
+                NumericExpression value = arguments.get(0);
+                yield context -> Math.floor(value.evaluate(context) + 0.5);
+            }
+            case "min" -> fold(arguments, true);
+            default -> fold(arguments, false);
+        };
+        return foldConstant(function, arguments);
+    }
+
+    /**
+     * min or max over any number of arguments; pairs are combined so the common
+     * two-argument case is a single node.
+     */
+    private static NumericExpression fold(List<NumericExpression> arguments, boolean min) {
+        NumericExpression result = arguments.get(0);
+        for (int i = 1; i < arguments.size(); i++) {
+            NumericExpression left = result;
+            NumericExpression right = arguments.get(i);
+            result = min
+                ? context -> Math.min(left.evaluate(context), right.evaluate(context))
+                : context -> Math.max(left.evaluate(context), right.evaluate(context));
+        }
+        return result;
+    }
+
+    private static NumericExpression binary(char op, NumericExpression left, NumericExpression right) {
+        NumericExpression node = switch (op) {
+            case '+' -> context -> left.evaluate(context) + right.evaluate(context);
+            case '-' -> context -> left.evaluate(context) - right.evaluate(context);
+            case '*' -> context -> left.evaluate(context) * right.evaluate(context);
+            case '/' -> context -> left.evaluate(context) / right.evaluate(context);
+            case '%' -> context -> left.evaluate(context) % right.evaluate(context);
+            default -> context -> Math.pow(left.evaluate(context), right.evaluate(context));
+        };
+        return foldConstant(node, List.of(left, right));
+    }
+
+    /**
+     * Computes a node once if all its inputs are constants.
+     */
+    private static NumericExpression foldConstant(NumericExpression node, List<NumericExpression> inputs) {
+        for (NumericExpression input : inputs) {
+            if (!(input instanceof Constant)) {
+                return node;
+            }
+        }
+        return new Constant(node.evaluate(null));
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (pos >= text.length() || text.charAt(pos) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private static final class Constant implements NumericExpression {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double evaluate(ExecutionContext context) {
+            return value;
+        }
+    }
+}
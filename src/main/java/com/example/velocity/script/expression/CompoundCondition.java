@@ -0,0 +1,184 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conditions joined by "and" or "or", evaluated left to right and stopping as soon as
+ * the result is known.
+ *
+ * Unless one of them has side effects, the terms are sorted cheapest first when the
+ * condition is built, so "{_x} is 1 and {stats::%uuid%} > 10" skips the global lookup
+ * whenever the local check fails. While running, sampled evaluations (see {@link AdaptiveOrder})
+ * re-sort them by measured cost and how often each one decides the result.
+ */
+public class CompoundCondition implements Condition {
+    // Assumed nanoseconds per unit of estimated cost, for terms that were never sampled
+    private static final double NANOS_PER_COST = 50;
+
+    public enum Operator {
+        AND("and"),
+        OR("or");
+
+        private final String keyword;
+
+        Operator(String keyword) {
+            this.keyword = keyword;
+        }
+
+        public String getKeyword() {
+            return keyword;
+        }
+    }
+
+    /**
+     * A term with its sampled outcomes, which move with it when terms are reordered.
+     */
+    public static final class Term {
+        private final Condition condition;
+        private final AdaptiveOrder.Stats stats;
+
+        Term(Condition condition) {
+            this.condition = condition;
+            this.stats = new AdaptiveOrder.Stats();
+        }
+
+        public Condition getCondition() {
+            return condition;
+        }
+
+        public AdaptiveOrder.Stats getStats() {
+            return stats;
+        }
+    }
+
+    private final Operator operator;
+    private final int cost;
+    private final boolean sideEffects;
+    private final AtomicLong samples;
+    // Replaced as a whole when reordered, so evaluations never see a half-sorted array
+    private volatile Term[] terms;
+
+    public CompoundCondition(Operator operator, List<Condition> terms) {
+        this.operator = operator;
+        this.samples = new AtomicLong();
+
+        // Flatten nested terms with the same operator: (a and b) and c -> a and b and c
+        List<Condition> flattened = new ArrayList<>();
+        for (Condition term : terms) {
+            if (term instanceof CompoundCondition compound && compound.operator == operator) {
+                for (Term nested : compound.terms) {
+                    flattened.add(nested.condition);
+                }
+            } else {
+                flattened.add(term);
+            }
+        }
+
+        int totalCost = 0;
+        boolean anySideEffects = false;
+        for (Condition term : flattened) {
+            totalCost += term.cost();
+            anySideEffects |= term.hasSideEffects();
+        }
+        if (!anySideEffects) {
+            // Stable, so equally cheap terms keep the order they were written in
+            flattened.sort(Comparator.comparingInt(Condition::cost));
+        }
+
+        this.terms = flattened.stream().map(Term::new).toArray(Term[]::new);
+        this.cost = totalCost;
+        this.sideEffects = anySideEffects;
+    }
+
+    @Override
+    public boolean evaluate(ExecutionContext context) {
+        Term[] current = terms;
+        if (!sideEffects && AdaptiveOrder.shouldSample()) {
+            return evaluateSampled(context, current);
+        }
+
+        // AND stops at the first false term, OR at the first true one
+        boolean stopAt = operator == Operator.OR;
+        for (Term term : current) {
+            if (term.condition.evaluate(context) == stopAt) {
+                return stopAt;
+            }
+        }
+        return !stopAt;
+    }
+
+    private boolean evaluateSampled(ExecutionContext context, Term[] current) {
+        boolean stopAt = operator == Operator.OR;
+        boolean result = !stopAt;
+        for (Term term : current) {
+            long start = System.nanoTime();
+            boolean value = term.condition.evaluate(context);
+            term.stats.record(value, System.nanoTime() - start);
+            if (value == stopAt) {
+                result = stopAt;
+                break;
+            }
+        }
+        if (AdaptiveOrder.sampled(samples)) {
+            reorder();
+        }
+        return result;
+    }
+
+    /**
+     * Sorts terms by expected cost per decided result: a term's average time divided by how
+     * often it ends the evaluation (false for AND, true for OR). This order minimizes the
+     * expected total time when the terms are independent.
+     */
+    private synchronized void reorder() {
+        terms = AdaptiveOrder.sortByScore(terms, this::score, Term::getStats);
+    }
+
+    private double score(Term term) {
+        AdaptiveOrder.Stats stats = term.stats;
+        double nanos = stats.getEvaluations() == 0
+            ? term.condition.cost() * NANOS_PER_COST
+            : Math.max(stats.averageNanos(), 1);
+        double decides = operator == Operator.AND ? 1 - stats.hitRate() : stats.hitRate();
+        return nanos / decides;
+    }
+
+    @Override
+    public int cost() {
+        return cost;
+    }
+
+    @Override
+    public boolean hasSideEffects() {
+        return sideEffects;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * The terms in their current evaluation order.
+     */
+    public List<Term> getTerms() {
+        return List.of(terms);
+    }
+
+    @Override
+    public String toString() {
+        Term[] current = terms;
+        StringBuilder result = new StringBuilder("(");
+        for (int i = 0; i < current.length; i++) {
+            if (i > 0) {
+                result.append(' ').append(operator.getKeyword()).append(' ');
+            }
+            result.append(current[i].condition);
+        }
+        return result.append(')').toString();
+    }
+}
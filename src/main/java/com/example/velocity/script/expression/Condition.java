@@ -12,5 +12,19 @@ public interface Condition {
      * @return true if the condition is met, false otherwise
      */
     boolean evaluate(ExecutionContext context);
-}
 
+    /**
+     * Relative cost of evaluating this condition, used to run cheap checks first.
+     */
+    default int cost() {
+        return 1;
+    }
+
+    /**
+     * Whether evaluating this condition changes state, such as counting a rate limited use.
+     * Such conditions are never moved, so they run exactly when the script says they do.
+     */
+    default boolean hasSideEffects() {
+        return false;
+    }
+}
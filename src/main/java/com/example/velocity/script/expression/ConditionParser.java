@@ -1,8 +1,13 @@
 package com.example.velocity.script.expression;
 
+import com.example.velocity.script.execution.ExecutionContext;
+import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,46 +17,258 @@ import java.util.regex.Pattern;
 public class ConditionParser {
     
     // Patterns for different condition types
+    private static final Pattern RATE_LIMITED_PATTERN = Pattern.compile("player\\s+is\\s+(not\\s+)?rate\\s+limited\\s+\"([^\"]+)\"\\s+(\\d+)\\s+(?:times?\\s+)?per\\s+(?:(\\d+(?:\\.\\d+)?)\\s+)?(ticks?|milliseconds?|seconds?|minutes?|hours?)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HAS_PERMISSION_PATTERN = Pattern.compile("player\\s+(has|does\\s+not\\s+have|doesn't\\s+have)\\s+(?:the\\s+)?permission\\s+\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
     private static final Pattern IS_SET_PATTERN = Pattern.compile("(.+?)\\s+is\\s+set", Pattern.CASE_INSENSITIVE);
     private static final Pattern IS_NOT_SET_PATTERN = Pattern.compile("(.+?)\\s+is\\s+not\\s+set", Pattern.CASE_INSENSITIVE);
     private static final Pattern IN_SERVER_PATTERN = Pattern.compile("(.+?)\\s+is\\s+in\\s+server\\s+\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
     private static final Pattern NOT_IN_SERVER_PATTERN = Pattern.compile("(.+?)\\s+is\\s+not\\s+in\\s+server\\s+\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
     private static final Pattern EQUALS_PATTERN = Pattern.compile("(.+?)\\s+(?:is|=|==)\\s+(.+)", Pattern.CASE_INSENSITIVE);
     private static final Pattern NOT_EQUALS_PATTERN = Pattern.compile("(.+?)\\s+(?:is\\s+not|!=)\\s+(.+)", Pattern.CASE_INSENSITIVE);
-    private static final Pattern CONTAINS_PATTERN = Pattern.compile("(.+?)\\s+contains\\s+(.+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern MATCHES_PATTERN = Pattern.compile("(.+?)\\s+matches\\s+\"([^\"]*)\"(\\s+ignoring\\s+case)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PATTERN_LITERAL_PATTERN = Pattern.compile("\\bmatches\\s+\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONTAINS_PATTERN = Pattern.compile("(.+?)\\s+contains\\s+(.+?)(\\s+ignoring\\s+case)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern GREATER_OR_EQUAL_PATTERN = Pattern.compile("(.+?)\\s+>=\\s+(.+)");
+    private static final Pattern LESS_OR_EQUAL_PATTERN = Pattern.compile("(.+?)\\s+<=\\s+(.+)");
     private static final Pattern GREATER_THAN_PATTERN = Pattern.compile("(.+?)\\s+>\\s+(.+)");
     private static final Pattern LESS_THAN_PATTERN = Pattern.compile("(.+?)\\s+<\\s+(.+)");
+    private static final Pattern CONSTANT_WORD_PATTERN = Pattern.compile("[A-Za-z0-9_.-]+");
+    private static final Pattern SINGLE_PLACEHOLDER_PATTERN = Pattern.compile("%[^%]+%");
+    private static final Pattern NUMBER_LITERAL_PATTERN = Pattern.compile("\"?(-?\\d+(?:\\.\\d+)?)\"?");
+    
+    // Relative costs used to order the terms of "and"/"or" conditions
+    private static final int LOCAL_VARIABLE_COST = 2;
+    private static final int GLOBAL_VARIABLE_COST = 4;
+    private static final int RATE_LIMIT_COST = 8;
+    private static final int PERMISSION_COST = 6;
+    
+    // Marks a compound condition with an invalid part
+    private static final Condition INVALID = context -> false;
     
     /**
-     * Parses a condition from text.
+     * Parses a condition from text. Conditions can be combined with "and", "or", "not"
+     * and parentheses; "not" binds tightest, then "and", then "or".
      */
     public static Condition parse(String text) {
+        return parse(text, new TypeInference());
+    }
+    
+    /**
+     * Parses a condition, comparing values the script is known to keep as numbers as
+     * numbers, so {coins} is 10 also holds when {coins} is "10.0".
+     */
+    public static Condition parse(String text, TypeInference types) {
+        Condition condition = compile(text, types);
+        // Default: always true
+        return condition != null ? condition : context -> true;
+    }
+    
+    /**
+     * Checks if a condition string is valid.
+     */
+    public static boolean isValidCondition(String text) {
+        return compile(text, new TypeInference()) != null;
+    }
+    
+    /**
+     * Explains why the patterns of "matches" checks in a condition cannot be used, or
+     * returns null if they all compile.
+     */
+    public static String findPatternError(String text) {
+        Matcher matcher = PATTERN_LITERAL_PATTERN.matcher(text);
+        while (matcher.find()) {
+            try {
+                LinearRegex.compile(matcher.group(1), false);
+            } catch (IllegalArgumentException e) {
+                return "Invalid pattern \"" + matcher.group(1) + "\": " + e.getMessage();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Sets how many steps one "matches" check may take before it counts as not matching.
+     */
+    public static void setPatternStepLimit(int limit) {
+        LinearRegex.setStepLimit(limit);
+    }
+    
+    /**
+     * Compiles a condition, or returns null if any part of it is not a known condition.
+     */
+    private static Condition compile(String text, TypeInference types) {
         text = text.trim();
+        if (text.isEmpty()) {
+            return null;
+        }
+        
+        // "or" binds loosest, so it is split first
+        Condition compound = compileCompound(text, CompoundCondition.Operator.OR, types);
+        if (compound == null) {
+            compound = compileCompound(text, CompoundCondition.Operator.AND, types);
+        }
+        if (compound != null) {
+            return compound == INVALID ? null : compound;
+        }
+        
+        if (text.regionMatches(true, 0, "not", 0, 3) && text.length() > 3 && Character.isWhitespace(text.charAt(3))) {
+            Condition inner = compile(text.substring(4), types);
+            return inner != null ? new NotCondition(inner) : null;
+        }
+        
+        if (text.startsWith("(") && closingParenthesis(text, 0) == text.length() - 1) {
+            Condition inner = compile(text.substring(1, text.length() - 1), types);
+            if (inner != null) {
+                return inner;
+            }
+        }
+        
+        return parseLeaf(text, types);
+    }
+    
+    /**
+     * Compiles text joined by the operator's keyword, returning null if the keyword does
+     * not occur and INVALID if one of the parts is not a valid condition.
+     */
+    private static Condition compileCompound(String text, CompoundCondition.Operator operator, TypeInference types) {
+        List<String> parts = splitTopLevel(text, operator.getKeyword());
+        if (parts.size() == 1) {
+            return null;
+        }
+        List<Condition> terms = new ArrayList<>();
+        for (String part : parts) {
+            Condition term = compile(part, types);
+            if (term == null) {
+                return INVALID;
+            }
+            terms.add(term);
+        }
+        return new CompoundCondition(operator, terms);
+    }
+    
+    /**
+     * Splits text at a keyword that is outside quotes, braces and parentheses.
+     */
+    private static List<String> splitTopLevel(String text, String keyword) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '{' || c == '(')) {
+                depth++;
+            } else if (!quoted && (c == '}' || c == ')')) {
+                depth--;
+            } else if (!quoted && depth == 0 && Character.isWhitespace(c)
+                       && isKeywordAt(text, i + 1, keyword)) {
+                parts.add(text.substring(start, i));
+                start = i + 1 + keyword.length();
+                i = start - 1;
+            }
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+    
+    private static boolean isKeywordAt(String text, int index, String keyword) {
+        int end = index + keyword.length();
+        return end < text.length()
+            && text.regionMatches(true, index, keyword, 0, keyword.length())
+            && Character.isWhitespace(text.charAt(end));
+    }
+    
+    /**
+     * Index of the parenthesis closing the one at the given index, or -1.
+     */
+    private static int closingParenthesis(String text, int open) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = open; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Parses a single condition. Its operands are parsed once, here, not on every evaluation.
+     */
+    private static Condition parseLeaf(String text, TypeInference types) {
+        // Player is (not) rate limited; checked first since it would also match "is"
+        Matcher rateLimitedMatcher = RATE_LIMITED_PATTERN.matcher(text);
+        if (rateLimitedMatcher.matches()) {
+            boolean negated = rateLimitedMatcher.group(1) != null;
+            String keyExpr = rateLimitedMatcher.group(2);
+            int limit = Integer.parseInt(rateLimitedMatcher.group(3));
+            String amount = rateLimitedMatcher.group(4) != null ? rateLimitedMatcher.group(4) : "1";
+            long periodNanos = TimeUnit.MILLISECONDS.toNanos(
+                ExpressionParser.parseDurationMillis(amount, rateLimitedMatcher.group(5).toLowerCase()));
+            
+            // Counts a use, so it is never reordered
+            return new LeafCondition(text, context -> {
+                boolean limited = false;
+                if (context.getPlayer() != null && context.getRateLimiter() != null) {
+                    // Counts as a use only when allowed, so spamming doesn't extend the limit
+                    String key = evaluateVariableName(keyExpr, context);
+                    limited = context.getRateLimiter().tryAcquire(
+                        context.getPlayer().getUniqueId(), key, limit, periodNanos) > 0;
+                }
+                return negated != limited;
+            }, RATE_LIMIT_COST, true);
+        }
+        
+        // Player has (or does not have) a permission, through the permission cache when there is one
+        Matcher permissionMatcher = HAS_PERMISSION_PATTERN.matcher(text);
+        if (permissionMatcher.matches()) {
+            boolean negated = !permissionMatcher.group(1).equalsIgnoreCase("has");
+            String permissionExpr = permissionMatcher.group(2);
+            return new LeafCondition(text, context -> {
+                Player player = context.getPlayer();
+                if (player == null) {
+                    return negated;
+                }
+                String permission = evaluateVariableName(permissionExpr, context);
+                boolean allowed = context.getPermissionCache() != null
+                    ? context.getPermissionCache().hasPermission(player, permission)
+                    : player.hasPermission(permission);
+                return negated != allowed;
+            }, PERMISSION_COST, false);
+        }
         
         // Variable is set
         Matcher isSetMatcher = IS_SET_PATTERN.matcher(text);
         if (isSetMatcher.matches()) {
             String varExpr = isSetMatcher.group(1).trim();
-            return context -> {
+            return leaf(text, context -> {
                 if (context.getVariableManager() != null && context.getScopeId() != null) {
                     String evaluatedVar = evaluateVariableName(varExpr, context);
                     return context.getVariableManager().isSet(context.getScopeId(), evaluatedVar);
                 }
                 return false;
-            };
+            });
         }
         
         // Variable is not set
         Matcher isNotSetMatcher = IS_NOT_SET_PATTERN.matcher(text);
         if (isNotSetMatcher.matches()) {
             String varExpr = isNotSetMatcher.group(1).trim();
-            return context -> {
+            return leaf(text, context -> {
                 if (context.getVariableManager() != null && context.getScopeId() != null) {
                     String evaluatedVar = evaluateVariableName(varExpr, context);
                     return !context.getVariableManager().isSet(context.getScopeId(), evaluatedVar);
                 }
                 return true;
-            };
+            });
         }
         
         // Player is in server
@@ -60,7 +277,7 @@ public class ConditionParser {
             String playerExpr = inServerMatcher.group(1).trim();
             String serverName = inServerMatcher.group(2).trim();
             
-            return context -> {
+            return leaf(text, context -> {
                 if (playerExpr.equals("player") && context.getPlayer() != null) {
                     Optional<RegisteredServer> currentServer = context.getPlayerServer();
                     if (currentServer.isPresent()) {
@@ -68,7 +285,7 @@ public class ConditionParser {
                     }
                 }
                 return false;
-            };
+            });
         }
         
         // Player is not in server
@@ -77,7 +294,7 @@ public class ConditionParser {
             String playerExpr = notInServerMatcher.group(1).trim();
             String serverName = notInServerMatcher.group(2).trim();
             
-            return context -> {
+            return leaf(text, context -> {
                 if (playerExpr.equals("player") && context.getPlayer() != null) {
                     Optional<RegisteredServer> currentServer = context.getPlayerServer();
                     if (currentServer.isPresent()) {
@@ -85,140 +302,226 @@ public class ConditionParser {
                     }
                 }
                 return true;
-            };
+            });
+        }
+        
+        // Matches a regular expression, compiled to a linear-time program
+        Matcher matchesMatcher = MATCHES_PATTERN.matcher(text);
+        if (matchesMatcher.matches()) {
+            Expression subject = ExpressionParser.parse(matchesMatcher.group(1));
+            LinearRegex regex;
+            try {
+                regex = LinearRegex.compile(matchesMatcher.group(2), matchesMatcher.group(3) != null);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            return leaf(text, context -> {
+                String value = subject.evaluate(context);
+                return value != null && regex.matches(value);
+            });
         }
         
         // Contains
         Matcher containsMatcher = CONTAINS_PATTERN.matcher(text);
         if (containsMatcher.matches()) {
-            String leftExpr = containsMatcher.group(1).trim();
-            String rightExpr = containsMatcher.group(2).trim();
-            
-            return context -> {
-                Expression left = ExpressionParser.parse(leftExpr);
-                Expression right = ExpressionParser.parse(rightExpr);
-                
-                String leftValue = left.evaluate(context);
-                String rightValue = right.evaluate(context);
-                
-                if (leftValue != null && rightValue != null) {
-                    return leftValue.contains(rightValue);
-                }
-                return false;
-            };
+            String subject = containsMatcher.group(1).trim();
+            String needle = containsMatcher.group(2);
+            return new ContainsCondition(text, subject, ExpressionParser.parse(subject),
+                ExpressionParser.parse(needle), constantValue(needle), containsMatcher.group(3) != null,
+                estimateCost(text));
         }
         
         // Not equals (check before equals since it's more specific)
         Matcher notEqualsMatcher = NOT_EQUALS_PATTERN.matcher(text);
         if (notEqualsMatcher.matches()) {
-            String leftExpr = notEqualsMatcher.group(1).trim();
-            String rightExpr = notEqualsMatcher.group(2).trim();
+            Expression left = ExpressionParser.parse(notEqualsMatcher.group(1));
+            Expression right = ExpressionParser.parse(notEqualsMatcher.group(2));
+            if (isNumeric(notEqualsMatcher.group(1), notEqualsMatcher.group(2), types)) {
+                NumericExpression leftNumber = parseNumber(notEqualsMatcher.group(1));
+                NumericExpression rightNumber = parseNumber(notEqualsMatcher.group(2));
+                return leaf(text, context -> !numbersEqual(leftNumber, rightNumber, left, right, context));
+            }
             
-            return context -> {
-                Expression left = ExpressionParser.parse(leftExpr);
-                Expression right = ExpressionParser.parse(rightExpr);
-                
-                String leftValue = left.evaluate(context);
-                String rightValue = right.evaluate(context);
-                
-                if (leftValue == null && rightValue == null) return false;
-                if (leftValue == null || rightValue == null) return true;
-                
-                return !leftValue.equals(rightValue);
-            };
+            return leaf(text, context -> !textEquals(left, right, context));
         }
         
         // Equals
         Matcher equalsMatcher = EQUALS_PATTERN.matcher(text);
         if (equalsMatcher.matches()) {
-            String leftExpr = equalsMatcher.group(1).trim();
-            String rightExpr = equalsMatcher.group(2).trim();
+            String subject = equalsMatcher.group(1).trim();
+            if (isNumeric(subject, equalsMatcher.group(2), types)) {
+                return numericEquals(text, subject, equalsMatcher.group(2));
+            }
+            Expression left = ExpressionParser.parse(subject);
+            String literal = constantValue(equalsMatcher.group(2));
+            if (literal != null) {
+                return new LeafCondition(text, context -> literal.equals(left.evaluate(context)),
+                    estimateCost(text), false, subject, literal);
+            }
+            Expression right = ExpressionParser.parse(equalsMatcher.group(2));
             
-            return context -> {
-                Expression left = ExpressionParser.parse(leftExpr);
-                Expression right = ExpressionParser.parse(rightExpr);
-                
-                String leftValue = left.evaluate(context);
-                String rightValue = right.evaluate(context);
-                
-                if (leftValue == null && rightValue == null) return true;
-                if (leftValue == null || rightValue == null) return false;
-                
-                return leftValue.equals(rightValue);
-            };
-        }
-        
-        // Greater than
+            return leaf(text, context -> textEquals(left, right, context));
+        }
+        
+        // Numeric comparisons; a side that is not a number makes the comparison false
+        Matcher greaterOrEqualMatcher = GREATER_OR_EQUAL_PATTERN.matcher(text);
+        if (greaterOrEqualMatcher.matches()) {
+            NumericExpression left = parseNumber(greaterOrEqualMatcher.group(1));
+            NumericExpression right = parseNumber(greaterOrEqualMatcher.group(2));
+            return leaf(text, context -> left.evaluate(context) >= right.evaluate(context));
+        }
+        
+        Matcher lessOrEqualMatcher = LESS_OR_EQUAL_PATTERN.matcher(text);
+        if (lessOrEqualMatcher.matches()) {
+            NumericExpression left = parseNumber(lessOrEqualMatcher.group(1));
+            NumericExpression right = parseNumber(lessOrEqualMatcher.group(2));
+            return leaf(text, context -> left.evaluate(context) <= right.evaluate(context));
+        }
+        
         Matcher greaterMatcher = GREATER_THAN_PATTERN.matcher(text);
         if (greaterMatcher.matches()) {
-            String leftExpr = greaterMatcher.group(1).trim();
-            String rightExpr = greaterMatcher.group(2).trim();
-            
-            return context -> {
-                try {
-                    Expression left = ExpressionParser.parse(leftExpr);
-                    Expression right = ExpressionParser.parse(rightExpr);
-                    
-                    String leftValue = left.evaluate(context);
-                    String rightValue = right.evaluate(context);
-                    
-                    if (leftValue != null && rightValue != null) {
-                        double leftNum = Double.parseDouble(leftValue);
-                        double rightNum = Double.parseDouble(rightValue);
-                        return leftNum > rightNum;
-                    }
-                } catch (NumberFormatException e) {
-                    // Not numbers, can't compare
-                }
-                return false;
-            };
+            NumericExpression left = parseNumber(greaterMatcher.group(1));
+            NumericExpression right = parseNumber(greaterMatcher.group(2));
+            return leaf(text, context -> left.evaluate(context) > right.evaluate(context));
         }
         
-        // Less than
         Matcher lessMatcher = LESS_THAN_PATTERN.matcher(text);
         if (lessMatcher.matches()) {
-            String leftExpr = lessMatcher.group(1).trim();
-            String rightExpr = lessMatcher.group(2).trim();
-            
-            return context -> {
-                try {
-                    Expression left = ExpressionParser.parse(leftExpr);
-                    Expression right = ExpressionParser.parse(rightExpr);
-                    
-                    String leftValue = left.evaluate(context);
-                    String rightValue = right.evaluate(context);
-                    
-                    if (leftValue != null && rightValue != null) {
-                        double leftNum = Double.parseDouble(leftValue);
-                        double rightNum = Double.parseDouble(rightValue);
-                        return leftNum < rightNum;
-                    }
-                } catch (NumberFormatException e) {
-                    // Not numbers, can't compare
-                }
-                return false;
-            };
+            NumericExpression left = parseNumber(lessMatcher.group(1));
+            NumericExpression right = parseNumber(lessMatcher.group(2));
+            return leaf(text, context -> left.evaluate(context) < right.evaluate(context));
         }
         
-        // Default: always true
-        return context -> true;
+        return null;
     }
     
     /**
-     * Checks if a condition string is valid.
+     * Whether both sides of an equality are known to be numbers.
      */
-    public static boolean isValidCondition(String text) {
-        text = text.trim();
+    private static boolean isNumeric(String left, String right, TypeInference types) {
+        return types.typeOf(left) == ValueType.NUMBER && types.typeOf(right) == ValueType.NUMBER;
+    }
+    
+    /**
+     * Compiles an equality of numbers. A fixed right side keeps its subject and value,
+     * written the way numbers are stored, so else if chains over it are still exclusive.
+     */
+    private static LeafCondition numericEquals(String text, String subject, String rightText) {
+        NumericExpression left = parseNumber(subject);
+        NumericExpression right = parseNumber(rightText);
+        Expression leftText = ExpressionParser.parse(subject);
+        Expression rightValue = ExpressionParser.parse(rightText);
+        Matcher literalMatcher = NUMBER_LITERAL_PATTERN.matcher(rightText.trim());
+        if (literalMatcher.matches()) {
+            double value = Double.parseDouble(literalMatcher.group(1));
+            NumericExpression number = context -> value;
+            return new LeafCondition(text, context -> numbersEqual(left, number, leftText, rightValue, context),
+                estimateCost(text), false, subject, ExpressionParser.formatNumber(value), true);
+        }
+        return leaf(text, context -> numbersEqual(left, right, leftText, rightValue, context));
+    }
+
+    /**
+     * Compares two numbers, or their text when either is not a number (such as an unset
+     * variable), so unset equals unset the way it does without numeric comparison.
+     */
+    private static boolean numbersEqual(NumericExpression left, NumericExpression right,
+                                        Expression leftText, Expression rightText, ExecutionContext context) {
+        double leftValue = left.evaluate(context);
+        double rightValue = right.evaluate(context);
+        if (!Double.isNaN(leftValue) && !Double.isNaN(rightValue)) {
+            return leftValue == rightValue;
+        }
+        return textEquals(leftText, rightText, context);
+    }
+
+    /**
+     * Compares the values as text; two unset values are equal.
+     */
+    private static boolean textEquals(Expression left, Expression right, ExecutionContext context) {
+        String leftValue = left.evaluate(context);
+        String rightValue = right.evaluate(context);
+        if (leftValue == null || rightValue == null) {
+            return leftValue == rightValue;
+        }
+        return leftValue.equals(rightValue);
+    }
+    
+    /**
+     * Wraps a side-effect-free check.
+     */
+    private static LeafCondition leaf(String text, Condition test) {
+        return new LeafCondition(text, test, estimateCost(text), false);
+    }
+    
+    /**
+     * Estimates the cost of a check from the variables it reads.
+     */
+    private static int estimateCost(String text) {
+        int cost = 1;
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '{' && !quoted) {
+                // Local variables live in a small per-execution scope, globals in the shared cache
+                boolean local = i + 1 < text.length() && text.charAt(i + 1) == '_';
+                cost += local ? LOCAL_VARIABLE_COST : GLOBAL_VARIABLE_COST;
+            }
+        }
+        return cost;
+    }
+    
+    /**
+     * The value of text that evaluates to the same string every time, such as "vip" or 10,
+     * or null if it depends on the context.
+     */
+    private static String constantValue(String text) {
+        String trimmedText = text.trim();
+        if (trimmedText.indexOf('%') >= 0 || trimmedText.indexOf('{') >= 0) {
+            return null;
+        }
+        if (trimmedText.length() >= 2 && trimmedText.startsWith("\"") && trimmedText.endsWith("\"")) {
+            return trimmedText.substring(1, trimmedText.length() - 1);
+        }
+        if (CONSTANT_WORD_PATTERN.matcher(trimmedText).matches() && !trimmedText.startsWith("player")
+            && ArithmeticParser.parseNumeric(trimmedText) == null) {
+            return trimmedText;
+        }
+        return null;
+    }
+    
+    /**
+     * Parses one side of a numeric comparison: arithmetic, a number, or any expression
+     * whose value is converted when compared. Values that are not numbers become NaN.
+     */
+    private static NumericExpression parseNumber(String text) {
+        String trimmedText = text.trim();
+        NumericExpression arithmetic = ArithmeticParser.parseNumeric(trimmedText);
+        if (arithmetic != null) {
+            return arithmetic;
+        }
+        
+        // Literals such as 100 or "100" are converted once
+        Matcher literalMatcher = NUMBER_LITERAL_PATTERN.matcher(trimmedText);
+        if (literalMatcher.matches()) {
+            double value = Double.parseDouble(literalMatcher.group(1));
+            return context -> value;
+        }
         
-        return IS_SET_PATTERN.matcher(text).matches() ||
-               IS_NOT_SET_PATTERN.matcher(text).matches() ||
-               IN_SERVER_PATTERN.matcher(text).matches() ||
-               NOT_IN_SERVER_PATTERN.matcher(text).matches() ||
-               CONTAINS_PATTERN.matcher(text).matches() ||
-               NOT_EQUALS_PATTERN.matcher(text).matches() ||
-               EQUALS_PATTERN.matcher(text).matches() ||
-               GREATER_THAN_PATTERN.matcher(text).matches() ||
-               LESS_THAN_PATTERN.matcher(text).matches();
+        Expression expression = ExpressionParser.parse(trimmedText);
+        // A number argument was parsed when the command ran
+        String argument = SINGLE_PLACEHOLDER_PATTERN.matcher(trimmedText).matches()
+            ? trimmedText.substring(1, trimmedText.length() - 1)
+            : null;
+        return context -> {
+            if (argument != null && context.getTypedArgument(argument) instanceof Double number) {
+                return number;
+            }
+            String value = expression.evaluate(context);
+            return value != null ? ArithmeticParser.parseDecimal(value) : Double.NaN;
+        };
     }
     
     /**
@@ -240,13 +543,15 @@ public class ConditionParser {
             }
         }
         
-        // Replace event data
-        if (context.getEventData() != null) {
-            for (var entry : context.getEventData().entrySet()) {
-                String key = "%" + entry.getKey() + "%";
-                String value = entry.getValue() != null ? entry.getValue().toString() : "";
-                result = result.replace(key, value);
-            }
+        // Replace loop placeholders
+        if (context.getLoopKey() != null) {
+            result = result.replace("%loop-key%", context.getLoopKey());
+            result = result.replace("%loop-value%", context.getLoopValue());
+        }
+        
+        // Replace event data, working out only the values used
+        if (context.getEventPayload() != null) {
+            result = context.getEventPayload().replacePlaceholders(result);
         }
         
         return result;
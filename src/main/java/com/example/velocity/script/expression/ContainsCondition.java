@@ -0,0 +1,120 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A "contains" check such as %message% contains "spam", optionally ignoring case.
+ *
+ * When a script has several checks of the same value for fixed text, {@link #merge} gives
+ * them one shared {@link KeywordScan}, so a message is scanned once for all of them.
+ */
+public class ContainsCondition extends LeafCondition {
+    private final String subjectText;
+    private final Expression subject;
+    private final Expression needleExpression;
+    private final String needle;
+    private final boolean ignoreCase;
+    private KeywordScan scan;
+    private int keyword;
+
+    public ContainsCondition(String text, String subjectText, Expression subject,
+                             Expression needleExpression, String needle, boolean ignoreCase, int cost) {
+        super(text, null, cost, false);
+        this.subjectText = subjectText;
+        this.subject = subject;
+        this.needleExpression = needleExpression;
+        this.needle = needle;
+        this.ignoreCase = ignoreCase;
+    }
+
+    @Override
+    public boolean evaluate(ExecutionContext context) {
+        String value = subject.evaluate(context);
+        if (value == null) {
+            return false;
+        }
+        if (scan != null) {
+            return scan.contains(context, value, keyword);
+        }
+
+        String searched = needle != null ? needle : needleExpression.evaluate(context);
+        if (searched == null) {
+            return false;
+        }
+        return ignoreCase ? containsIgnoreCase(value, searched) : value.contains(searched);
+    }
+
+    /**
+     * The text of the value searched, such as "%message%".
+     */
+    public String getSubjectText() {
+        return subjectText;
+    }
+
+    /**
+     * The fixed text searched for, or null if it depends on the context.
+     */
+    public String getNeedle() {
+        return needle;
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Whether this check shares a scan with other checks of the same value.
+     */
+    public boolean isMerged() {
+        return scan != null;
+    }
+
+    /**
+     * Gives the checks for fixed text that search the same value with the same case
+     * handling one shared scan. Call before the script runs.
+     */
+    public static void merge(List<ContainsCondition> conditions) {
+        Map<String, List<ContainsCondition>> groups = new LinkedHashMap<>();
+        for (ContainsCondition condition : conditions) {
+            if (condition.needle != null) {
+                String key = (condition.ignoreCase ? "i:" : "s:") + condition.subjectText;
+                groups.computeIfAbsent(key, k -> new ArrayList<>()).add(condition);
+            }
+        }
+
+        for (List<ContainsCondition> group : groups.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            List<String> keywords = new ArrayList<>();
+            Map<String, Integer> ids = new LinkedHashMap<>();
+            for (ContainsCondition condition : group) {
+                // Checks for the same text, also in other triggers, share one keyword
+                String folded = condition.ignoreCase ? condition.needle.toLowerCase() : condition.needle;
+                condition.keyword = ids.computeIfAbsent(folded, k -> {
+                    keywords.add(condition.needle);
+                    return keywords.size() - 1;
+                });
+            }
+            KeywordScan shared = new KeywordScan(keywords, group.get(0).ignoreCase);
+            for (ContainsCondition condition : group) {
+                condition.scan = shared;
+            }
+        }
+    }
+
+    private static boolean containsIgnoreCase(String value, String searched) {
+        int last = value.length() - searched.length();
+        for (int i = 0; i <= last; i++) {
+            if (value.regionMatches(true, i, searched, 0, searched.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
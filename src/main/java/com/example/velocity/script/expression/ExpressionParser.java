@@ -1,8 +1,11 @@
 package com.example.velocity.script.expression;
 
+import com.example.velocity.script.execution.EventPayload;
 import com.example.velocity.script.execution.ExecutionContext;
+import com.example.velocity.script.variable.LeaderboardIndex;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -14,6 +17,10 @@ public class ExpressionParser {
     
     private static final Pattern QUOTED_STRING = Pattern.compile("^\"(.*)\"$");
     private static final Pattern VARIABLE_PATTERN = Pattern.compile("^\\{[^}]+\\}$");
+    private static final Pattern TOP_PATTERN = Pattern.compile("^top\\s+(\\d{1,5})\\s+of\\s+(\\{[^}]+::\\*\\})$");
+    private static final Pattern KEYS_WHERE_PATTERN = Pattern.compile("^keys\\s+of\\s+(\\{[^}]+::\\*\\})\\s+where\\s+value\\s+is\\s+(.+)$");
+    private static final Pattern ARG_PLACEHOLDER = Pattern.compile("^arg-\\d+$");
+    private static final Pattern RANK_PATTERN = Pattern.compile("^rank\\s+of\\s+(.+?)\\s+in\\s+(\\{[^}]+::\\*\\})$");
     
     /**
      * Parses an expression from text.
@@ -28,6 +35,12 @@ public class ExpressionParser {
             return context -> value;
         }
         
+        // Arithmetic, e.g. {coins} + 10 (checked before placeholders so %a% + %b% is not one key)
+        Expression arithmetic = ArithmeticParser.parse(trimmedText);
+        if (arithmetic != null) {
+            return arithmetic;
+        }
+        
         // Variable reference
         if (VARIABLE_PATTERN.matcher(trimmedText).matches()) {
             return context -> {
@@ -60,25 +73,179 @@ public class ExpressionParser {
             };
         }
         
-        // Event data variables (e.g., %from-server%, %to-server%, %message%)
-        if (trimmedText.startsWith("%") && trimmedText.endsWith("%")) {
-            String key = trimmedText.substring(1, trimmedText.length() - 1);
-            return context -> {
-                Object value = context.getEventValue(key);
-                return value != null ? value.toString() : null;
-            };
-        }
-        
-        // Command argument by name (arg-1, arg-2, etc. or custom names)
         if (trimmedText.startsWith("%") && trimmedText.endsWith("%")) {
-            String argName = trimmedText.substring(1, trimmedText.length() - 1);
-            return context -> context.getArgument(argName);
+            return parsePlaceholder(trimmedText.substring(1, trimmedText.length() - 1));
         }
         
         // Plain text literal (no quotes)
         return context -> trimmedText;
     }
+
+    /**
+     * Whether %key% is filled in before any named argument, such as %player%, %loop-value%,
+     * an event value like %message%, or a positional %arg-1%. A function parameter with one
+     * of these names could not be read.
+     */
+    public static boolean isReservedPlaceholder(String key) {
+        return key.equals("player") || key.equals("uuid") || key.equals("loop-key") || key.equals("loop-value")
+            || EventPayload.Field.fromKey(key) != null || ARG_PLACEHOLDER.matcher(key).matches();
+    }
+
+    /**
+     * Parses a placeholder by its key, without the surrounding % signs.
+     */
+    static Expression parsePlaceholder(String key) {
+        // Current loop entry
+        if (key.equals("loop-key")) {
+            return ExecutionContext::getLoopKey;
+        }
+        
+        if (key.equals("loop-value")) {
+            return ExecutionContext::getLoopValue;
+        }
+        
+        // Event values (e.g., %from-server%, %to-server%, %message%), resolved to their
+        // field here, then command arguments and function parameters by name
+        EventPayload.Field field = EventPayload.Field.fromKey(key);
+        if (field == null) {
+            return context -> context.getArgument(key);
+        }
+        return context -> {
+            String value = context.getEventValue(field);
+            return value != null ? value : context.getArgument(key);
+        };
+    }
     
+    /**
+     * Parses expressions that compute a value from variables, such as list queries.
+     * Returns null if the text is not one of these forms, so callers can fall back to plain text.
+     * <ul>
+     *   <li>top 10 of {coins::*} - the highest entries as "key: value, key: value"</li>
+     *   <li>rank of %uuid% in {coins::*} - the 1-based rank of an entry, not set if it has no number</li>
+     *   <li>keys of {rank::*} where value is "vip" - the matching keys as "key, key"</li>
+     *   <li>{coins} * 2 + 5 - arithmetic, see {@link ArithmeticParser}</li>
+     * </ul>
+     */
+    public static Expression parseComputed(String text) {
+        final String trimmedText = text.trim();
+
+        Matcher topMatcher = TOP_PATTERN.matcher(trimmedText);
+        if (topMatcher.matches()) {
+            int count = Integer.parseInt(topMatcher.group(1));
+            String listName = topMatcher.group(2);
+            return context -> {
+                if (context.getVariableManager() == null) {
+                    return null;
+                }
+                List<LeaderboardIndex.Entry> entries = context.getVariableManager()
+                    .getTop(evaluateVariableName(listName, context), count);
+                StringBuilder result = new StringBuilder();
+                for (LeaderboardIndex.Entry entry : entries) {
+                    if (result.length() > 0) {
+                        result.append(", ");
+                    }
+                    result.append(entry.getKey()).append(": ").append(formatNumber(entry.getScore()));
+                }
+                return result.toString();
+            };
+        }
+
+        Matcher rankMatcher = RANK_PATTERN.matcher(trimmedText);
+        if (rankMatcher.matches()) {
+            Expression key = parseOperand(rankMatcher.group(1));
+            String listName = rankMatcher.group(2);
+            return context -> {
+                String evaluatedKey = key.evaluate(context);
+                if (context.getVariableManager() == null || evaluatedKey == null) {
+                    return null;
+                }
+                int rank = context.getVariableManager().getRank(evaluateVariableName(listName, context), evaluatedKey);
+                return rank > 0 ? String.valueOf(rank) : null;
+            };
+        }
+
+        Matcher keysMatcher = KEYS_WHERE_PATTERN.matcher(trimmedText);
+        if (keysMatcher.matches()) {
+            String listName = keysMatcher.group(1);
+            Expression value = parseOperand(keysMatcher.group(2));
+            return context -> {
+                String evaluatedValue = value.evaluate(context);
+                if (context.getVariableManager() == null || evaluatedValue == null) {
+                    return null;
+                }
+                return String.join(", ", context.getVariableManager()
+                    .getKeysWithValue(evaluateVariableName(listName, context), evaluatedValue));
+            };
+        }
+
+        return ArithmeticParser.parse(trimmedText);
+    }
+
+    /**
+     * Parses a value the way "set" evaluates its right-hand side: a computed expression,
+     * a single variable, or text with placeholders and variables filled in (quotes removed).
+     * Used for function arguments and return values.
+     */
+    public static Expression parseValue(String text) {
+        Expression computed = parseComputed(text);
+        if (computed != null) {
+            return computed;
+        }
+
+        String trimmedText = text.trim();
+        if (VARIABLE_PATTERN.matcher(trimmedText).matches()) {
+            return parse(trimmedText);
+        }
+
+        Matcher quotedMatcher = QUOTED_STRING.matcher(trimmedText);
+        String template = quotedMatcher.matches() ? quotedMatcher.group(1) : trimmedText;
+        return context -> evaluateWithReplacements(template, context);
+    }
+
+    /**
+     * Converts an amount and unit such as "1.5" "seconds" to milliseconds.
+     * The unit may be singular or plural: tick, millisecond, second, minute or hour.
+     */
+    public static long parseDurationMillis(String amount, String unit) {
+        // A tick is a Minecraft server tick, 50 ms
+        long unitMillis = switch (unit.endsWith("s") ? unit.substring(0, unit.length() - 1) : unit) {
+            case "tick" -> 50L;
+            case "millisecond" -> 1L;
+            case "second" -> 1_000L;
+            case "minute" -> 60_000L;
+            default -> 3_600_000L;
+        };
+        return Math.round(Double.parseDouble(amount) * unitMillis);
+    }
+
+    /**
+     * Parses an operand inside a larger expression. Text with placeholders such as %uuid%
+     * is evaluated with replacements; everything else is parsed as a normal expression.
+     */
+    private static Expression parseOperand(String text) {
+        String trimmedText = text.trim();
+        if (!trimmedText.contains("%")) {
+            return parse(trimmedText);
+        }
+        return context -> {
+            String value = evaluateWithReplacements(trimmedText, context);
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            return value;
+        };
+    }
+
+    /**
+     * Formats a number without a trailing ".0" when it is whole.
+     */
+    static String formatNumber(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
     /**
      * Evaluates an expression with variable/placeholder replacement.
      */
@@ -103,13 +270,15 @@ public class ExpressionParser {
             result = result.replace("{player's server}", server.get().getServerInfo().getName());
         }
         
-        // Replace event data placeholders (%player%, %from-server%, %message%, etc.)
-        if (context.getEventData() != null) {
-            for (var entry : context.getEventData().entrySet()) {
-                String key = "%" + entry.getKey() + "%";
-                String value = entry.getValue() != null ? entry.getValue().toString() : "";
-                result = result.replace(key, value);
-            }
+        // Replace loop placeholders (%loop-key%, %loop-value%)
+        if (context.getLoopKey() != null) {
+            result = result.replace("%loop-key%", context.getLoopKey());
+            result = result.replace("%loop-value%", context.getLoopValue());
+        }
+        
+        // Replace event placeholders (%from-server%, %message%, etc.), working out only those used
+        if (context.getEventPayload() != null) {
+            result = context.getEventPayload().replacePlaceholders(result);
         }
         
         // Replace command arguments (%arg-1%, %argname%, etc.)
@@ -150,7 +319,7 @@ public class ExpressionParser {
     /**
      * Evaluates placeholders within a variable name (e.g., {coins::%player%} -> {coins::PlayerName})
      */
-    private static String evaluateVariableName(String variableName, ExecutionContext context) {
+    static String evaluateVariableName(String variableName, ExecutionContext context) {
         String result = variableName;
         
         // Replace player placeholders
@@ -166,13 +335,15 @@ public class ExpressionParser {
             }
         }
         
-        // Replace event data
-        if (context.getEventData() != null) {
-            for (var entry : context.getEventData().entrySet()) {
-                String key = "%" + entry.getKey() + "%";
-                String value = entry.getValue() != null ? entry.getValue().toString() : "";
-                result = result.replace(key, value);
-            }
+        // Replace loop placeholders
+        if (context.getLoopKey() != null) {
+            result = result.replace("%loop-key%", context.getLoopKey());
+            result = result.replace("%loop-value%", context.getLoopValue());
+        }
+        
+        // Replace event data, working out only the values used
+        if (context.getEventPayload() != null) {
+            result = context.getEventPayload().replacePlaceholders(result);
         }
         
         return result;
@@ -0,0 +1,176 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeSet;
+
+/**
+ * Finds which of many keywords occur in a text with one pass over it (Aho-Corasick).
+ *
+ * Built for the "contains" checks of a script that test the same value, such as
+ * %message% contains "a", %message% contains "b", ... The automaton is a dense transition
+ * table over the characters the keywords use, so each character of the text costs one
+ * table lookup however many keywords there are. The result of a scan is kept in the
+ * execution context, so the other checks on the same value just read their bit.
+ */
+public class KeywordScan {
+    private final boolean ignoreCase;
+    private final int words;
+    // Sorted distinct keyword characters; class i + 1 is alphabet[i], class 0 is any other
+    private final char[] alphabet;
+    private final int[] asciiClasses;
+    private final int[][] next;
+    // Keywords ending at each state, including through failure links; null if none
+    private final long[][] output;
+
+    /**
+     * The text a scan ran over and the keywords it found.
+     */
+    private record Result(String text, long[] found) {
+    }
+
+    public KeywordScan(List<String> keywords, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.words = (keywords.size() + 63) / 64;
+
+        TreeSet<Character> characters = new TreeSet<>();
+        for (String keyword : keywords) {
+            for (int i = 0; i < keyword.length(); i++) {
+                characters.add(fold(keyword.charAt(i)));
+            }
+        }
+        this.alphabet = new char[characters.size()];
+        int index = 0;
+        for (char c : characters) {
+            alphabet[index++] = c;
+        }
+        this.asciiClasses = new int[128];
+        for (int i = 0; i < alphabet.length; i++) {
+            if (alphabet[i] < 128) {
+                asciiClasses[alphabet[i]] = i + 1;
+            }
+        }
+
+        // Trie of the keywords
+        int classes = alphabet.length + 1;
+        List<int[]> transitions = new ArrayList<>();
+        List<long[]> outputs = new ArrayList<>();
+        transitions.add(newState(classes));
+        outputs.add(null);
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int c = classOf(fold(keyword.charAt(i)));
+                if (transitions.get(state)[c] < 0) {
+                    transitions.get(state)[c] = transitions.size();
+                    transitions.add(newState(classes));
+                    outputs.add(null);
+                }
+                state = transitions.get(state)[c];
+            }
+            outputs.set(state, addBit(outputs.get(state), k));
+        }
+
+        // Failure links, breadth first, turning the trie into a complete transition table
+        int[] fail = new int[transitions.size()];
+        Queue<Integer> queue = new ArrayDeque<>();
+        int[] root = transitions.get(0);
+        for (int c = 0; c < classes; c++) {
+            if (root[c] < 0) {
+                root[c] = 0;
+            } else {
+                queue.add(root[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] row = transitions.get(state);
+            for (int c = 0; c < classes; c++) {
+                int target = row[c];
+                int fallback = transitions.get(fail[state])[c];
+                if (target < 0) {
+                    row[c] = fallback;
+                } else {
+                    fail[target] = fallback;
+                    outputs.set(target, merge(outputs.get(target), outputs.get(fallback)));
+                    queue.add(target);
+                }
+            }
+        }
+
+        this.next = transitions.toArray(new int[0][]);
+        this.output = outputs.toArray(new long[0][]);
+    }
+
+    /**
+     * Whether the keyword with the given id occurs in the text. Scans the text only if
+     * this context has not scanned the same text yet.
+     */
+    public boolean contains(ExecutionContext context, String text, int id) {
+        Result result = (Result) context.getScanResult(this);
+        if (result == null || !(result.text() == text || result.text().equals(text))) {
+            result = new Result(text, scan(text));
+            context.putScanResult(this, result);
+        }
+        return (result.found()[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Returns a bit set of the keywords found in the text.
+     */
+    long[] scan(String text) {
+        long[] found = output[0] != null ? output[0].clone() : new long[words];
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = next[state][classOf(fold(text.charAt(i)))];
+            long[] ending = output[state];
+            if (ending != null) {
+                for (int w = 0; w < ending.length; w++) {
+                    found[w] |= ending[w];
+                }
+            }
+        }
+        return found;
+    }
+
+    private char fold(char c) {
+        return ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        int index = Arrays.binarySearch(alphabet, c);
+        return index >= 0 ? index + 1 : 0;
+    }
+
+    private static int[] newState(int classes) {
+        int[] row = new int[classes];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private long[] addBit(long[] bits, int id) {
+        long[] result = bits != null ? bits : new long[words];
+        result[id >>> 6] |= 1L << id;
+        return result;
+    }
+
+    private static long[] merge(long[] into, long[] from) {
+        if (from == null) {
+            return into;
+        }
+        long[] result = into != null ? into : new long[from.length];
+        for (int w = 0; w < from.length; w++) {
+            result[w] |= from[w];
+        }
+        return result;
+    }
+}
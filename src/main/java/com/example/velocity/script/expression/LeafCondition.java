@@ -0,0 +1,85 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+
+/**
+ * A single check such as "{coins} > 100", compiled once from its text.
+ *
+ * Equality checks against a fixed value, such as %item% is "sword", also keep their subject
+ * and value, so checks of the same subject against different values are known to exclude
+ * each other. Checks of a variable the script only sets to numbers compare as numbers.
+ */
+public class LeafCondition implements Condition {
+    private final String text;
+    private final Condition test;
+    private final int cost;
+    private final boolean sideEffects;
+    private final String subject;
+    private final String literal;
+    private final boolean numeric;
+
+    public LeafCondition(String text, Condition test, int cost, boolean sideEffects) {
+        this(text, test, cost, sideEffects, null, null);
+    }
+
+    public LeafCondition(String text, Condition test, int cost, boolean sideEffects,
+                         String subject, String literal) {
+        this(text, test, cost, sideEffects, subject, literal, false);
+    }
+
+    public LeafCondition(String text, Condition test, int cost, boolean sideEffects,
+                         String subject, String literal, boolean numeric) {
+        this.text = text;
+        this.test = test;
+        this.cost = cost;
+        this.sideEffects = sideEffects;
+        this.subject = subject;
+        this.literal = literal;
+        this.numeric = numeric;
+    }
+
+    @Override
+    public boolean evaluate(ExecutionContext context) {
+        return test.evaluate(context);
+    }
+
+    @Override
+    public int cost() {
+        return cost;
+    }
+
+    @Override
+    public boolean hasSideEffects() {
+        return sideEffects;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * The expression an equality check tests, such as "%item%", or null for other checks.
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * The fixed value an equality check compares its subject with, or null for other checks.
+     */
+    public String getLiteral() {
+        return literal;
+    }
+
+    /**
+     * Whether an equality check compares its subject as a number, so "10.0" equals 10.
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,637 @@
+package com.example.velocity.script.expression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A regular expression that runs in time linear in the text, for "matches" conditions.
+ *
+ * java.util.regex backtracks, so a pattern such as (a+)+$ can take exponential time on a
+ * crafted chat message. This engine compiles the pattern to a small program and runs all
+ * alternatives side by side (a Pike VM), so each character of the text is handled once per
+ * instruction at most. Backreferences and lookaround need backtracking and are rejected.
+ * Each evaluation also stops after a step budget, and then counts as not matching.
+ *
+ * Supported: literals, ., [a-z] and [^...] classes, \d \w \s \D \W \S, \xHH, ^ and $,
+ * groups ( ) and (?: ), alternation |, and the quantifiers * + ? {n} {n,} {n,m}.
+ */
+final class LinearRegex {
+    // Largest program a pattern may compile to, after repetitions are expanded
+    private static final int MAX_INSTRUCTIONS = 10_000;
+    private static final int MAX_REPEAT = 1_000;
+    private static final int DEFAULT_STEP_LIMIT = 200_000;
+
+    private static volatile int stepLimit = DEFAULT_STEP_LIMIT;
+
+    // Instruction codes
+    private static final int CHAR = 0;
+    private static final int ANY = 1;
+    private static final int CLASS = 2;
+    private static final int SPLIT = 3;
+    private static final int JUMP = 4;
+    private static final int LINE_START = 5;
+    private static final int LINE_END = 6;
+    private static final int MATCH = 7;
+
+    private final String pattern;
+    private final boolean ignoreCase;
+    private final int[] opcodes;
+    private final int[] first;
+    private final int[] second;
+    private final CharClass[] classes;
+
+    private LinearRegex(String pattern, boolean ignoreCase, Program program) {
+        this.pattern = pattern;
+        this.ignoreCase = ignoreCase;
+        int size = program.opcodes.size();
+        this.opcodes = new int[size];
+        this.first = new int[size];
+        this.second = new int[size];
+        this.classes = program.classes.toArray(new CharClass[0]);
+        for (int i = 0; i < size; i++) {
+            opcodes[i] = program.opcodes.get(i);
+            first[i] = program.first.get(i);
+            second[i] = program.second.get(i);
+        }
+    }
+
+    /**
+     * Compiles a pattern.
+     *
+     * @throws IllegalArgumentException if the pattern is invalid or not supported
+     */
+    static LinearRegex compile(String pattern, boolean ignoreCase) {
+        Parser parser = new Parser(pattern, ignoreCase);
+        Node root = parser.parseAlternation();
+        if (parser.position < pattern.length()) {
+            throw new IllegalArgumentException("unmatched ) at position " + (parser.position + 1));
+        }
+        Program program = new Program();
+        root.emit(program);
+        program.add(MATCH, 0, 0);
+        return new LinearRegex(pattern, ignoreCase, program);
+    }
+
+    /**
+     * Sets how many steps one evaluation may take before it gives up.
+     */
+    static void setStepLimit(int limit) {
+        stepLimit = limit > 0 ? limit : DEFAULT_STEP_LIMIT;
+    }
+
+    static int getStepLimit() {
+        return stepLimit;
+    }
+
+    /**
+     * Whether the whole text matches the pattern. Returns false if the step budget runs out.
+     */
+    boolean matches(String text) {
+        int size = opcodes.length;
+        ThreadList current = new ThreadList(size);
+        ThreadList next = new ThreadList(size);
+        // Each visit pops one position and pushes at most two
+        int[] stack = new int[size + 1];
+        int[] steps = {stepLimit};
+
+        if (!addThread(current, 0, 0, text, stack, steps)) {
+            return false;
+        }
+        for (int position = 0; position < text.length(); position++) {
+            if (current.size == 0) {
+                return false;
+            }
+            char c = text.charAt(position);
+            next.clear();
+            for (int i = 0; i < current.size; i++) {
+                if (--steps[0] < 0) {
+                    return false;
+                }
+                int pc = current.dense[i];
+                boolean consumes = switch (opcodes[pc]) {
+                    case CHAR -> fold(c) == first[pc];
+                    case ANY -> c != '\n';
+                    case CLASS -> classes[first[pc]].contains(c, ignoreCase);
+                    default -> false;
+                };
+                if (consumes && !addThread(next, pc + 1, position + 1, text, stack, steps)) {
+                    return false;
+                }
+            }
+            ThreadList swap = current;
+            current = next;
+            next = swap;
+        }
+
+        for (int i = 0; i < current.size; i++) {
+            if (opcodes[current.dense[i]] == MATCH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the thread at pc, following jumps, splits and assertions without consuming
+     * input. Returns false if the step budget ran out.
+     */
+    private boolean addThread(ThreadList list, int pc, int position, String text, int[] stack, int[] steps) {
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0) {
+            int at = stack[--top];
+            if (list.contains(at)) {
+                continue;
+            }
+            if (--steps[0] < 0) {
+                return false;
+            }
+            list.add(at);
+            switch (opcodes[at]) {
+                case JUMP -> stack[top++] = first[at];
+                case SPLIT -> {
+                    // Second pushed first, so the first branch is followed first
+                    stack[top++] = second[at];
+                    stack[top++] = first[at];
+                }
+                case LINE_START -> {
+                    if (position == 0) {
+                        stack[top++] = at + 1;
+                    }
+                }
+                case LINE_END -> {
+                    if (position == text.length()) {
+                        stack[top++] = at + 1;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        return true;
+    }
+
+    private char fold(char c) {
+        return ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    // ========== Matching State ==========
+
+    /**
+     * A set of program positions with constant-time clear, in insertion order.
+     */
+    private static final class ThreadList {
+        private final int[] dense;
+        private final int[] sparse;
+        private int size;
+
+        ThreadList(int capacity) {
+            this.dense = new int[capacity];
+            this.sparse = new int[capacity];
+        }
+
+        boolean contains(int pc) {
+            int index = sparse[pc];
+            return index < size && dense[index] == pc;
+        }
+
+        void add(int pc) {
+            sparse[pc] = size;
+            dense[size++] = pc;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Character ranges, such as [a-z0-9_], optionally negated.
+     */
+    private static final class CharClass {
+        private final char[] ranges;
+        private final boolean negated;
+
+        CharClass(List<Character> bounds, boolean negated) {
+            this.ranges = new char[bounds.size()];
+            for (int i = 0; i < ranges.length; i++) {
+                ranges[i] = bounds.get(i);
+            }
+            this.negated = negated;
+        }
+
+        boolean contains(char c, boolean ignoreCase) {
+            boolean found = inRanges(c)
+                || ignoreCase && (inRanges(Character.toLowerCase(c)) || inRanges(Character.toUpperCase(c)));
+            return found != negated;
+        }
+
+        private boolean inRanges(char c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // ========== Compilation ==========
+
+    private static final class Program {
+        private final List<Integer> opcodes = new ArrayList<>();
+        private final List<Integer> first = new ArrayList<>();
+        private final List<Integer> second = new ArrayList<>();
+        private final List<CharClass> classes = new ArrayList<>();
+
+        int add(int opcode, int a, int b) {
+            if (opcodes.size() >= MAX_INSTRUCTIONS) {
+                throw new IllegalArgumentException("pattern is too large");
+            }
+            opcodes.add(opcode);
+            first.add(a);
+            second.add(b);
+            return opcodes.size() - 1;
+        }
+
+        int size() {
+            return opcodes.size();
+        }
+
+        void setFirst(int pc, int target) {
+            first.set(pc, target);
+        }
+
+        void setSecond(int pc, int target) {
+            second.set(pc, target);
+        }
+    }
+
+    private interface Node {
+        void emit(Program program);
+    }
+
+    private record Instruction(int opcode, int argument) implements Node {
+        @Override
+        public void emit(Program program) {
+            program.add(opcode, argument, 0);
+        }
+    }
+
+    private record Sequence(List<Node> nodes) implements Node {
+        @Override
+        public void emit(Program program) {
+            for (Node node : nodes) {
+                node.emit(program);
+            }
+        }
+    }
+
+    private record Alternation(List<Node> alternatives) implements Node {
+        @Override
+        public void emit(Program program) {
+            List<Integer> exits = new ArrayList<>();
+            for (int i = 0; i < alternatives.size() - 1; i++) {
+                int split = program.add(SPLIT, program.size() + 1, 0);
+                alternatives.get(i).emit(program);
+                exits.add(program.add(JUMP, 0, 0));
+                program.setSecond(split, program.size());
+            }
+            alternatives.get(alternatives.size() - 1).emit(program);
+            for (int exit : exits) {
+                program.setFirst(exit, program.size());
+            }
+        }
+    }
+
+    /**
+     * A node repeated min to max times; max -1 means without limit.
+     */
+    private record Repeat(Node node, int min, int max) implements Node {
+        @Override
+        public void emit(Program program) {
+            if (max < 0 && min > 0) {
+                // x{n,} is x{n-1} followed by x+, which loops back over its last copy
+                for (int i = 0; i < min - 1; i++) {
+                    node.emit(program);
+                }
+                int start = program.size();
+                node.emit(program);
+                program.add(SPLIT, start, program.size() + 1);
+                return;
+            }
+
+            for (int i = 0; i < min; i++) {
+                node.emit(program);
+            }
+            if (max < 0) {
+                int split = program.add(SPLIT, program.size() + 1, 0);
+                node.emit(program);
+                program.add(JUMP, split, 0);
+                program.setSecond(split, program.size());
+                return;
+            }
+            List<Integer> splits = new ArrayList<>();
+            for (int i = min; i < max; i++) {
+                splits.add(program.add(SPLIT, program.size() + 1, 0));
+                node.emit(program);
+            }
+            for (int split : splits) {
+                program.setSecond(split, program.size());
+            }
+        }
+    }
+
+    /**
+     * Recursive descent parser from pattern text to nodes.
+     */
+    private static final class Parser {
+        private final String pattern;
+        private final boolean ignoreCase;
+        private int position;
+
+        Parser(String pattern, boolean ignoreCase) {
+            this.pattern = pattern;
+            this.ignoreCase = ignoreCase;
+        }
+
+        Node parseAlternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseSequence());
+            while (peek() == '|') {
+                position++;
+                alternatives.add(parseSequence());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new Alternation(alternatives);
+        }
+
+        private Node parseSequence() {
+            List<Node> nodes = new ArrayList<>();
+            while (position < pattern.length() && peek() != '|' && peek() != ')') {
+                nodes.add(parseRepeat());
+            }
+            return new Sequence(nodes);
+        }
+
+        private Node parseRepeat() {
+            Node node = parseAtom();
+            while (position < pattern.length()) {
+                char c = peek();
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    position++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    position++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    position++;
+                } else if (c == '{' && isCountedRepeat()) {
+                    int[] bounds = parseCountedRepeat();
+                    min = bounds[0];
+                    max = bounds[1];
+                } else {
+                    break;
+                }
+                // A lazy quantifier changes which match is found, not whether there is one
+                if (peek() == '?') {
+                    position++;
+                }
+                node = new Repeat(node, min, max);
+            }
+            return node;
+        }
+
+        private Node parseAtom() {
+            char c = pattern.charAt(position++);
+            switch (c) {
+                case '(' -> {
+                    if (pattern.startsWith("?:", position)) {
+                        position += 2;
+                    } else if (peek() == '?') {
+                        throw error("lookaround and inline flags are not supported");
+                    }
+                    Node inner = parseAlternation();
+                    if (peek() != ')') {
+                        throw error("unclosed group");
+                    }
+                    position++;
+                    return inner;
+                }
+                case '[' -> {
+                    return parseClass();
+                }
+                case '.' -> {
+                    return new Instruction(ANY, 0);
+                }
+                case '^' -> {
+                    return new Instruction(LINE_START, 0);
+                }
+                case '$' -> {
+                    return new Instruction(LINE_END, 0);
+                }
+                case '\\' -> {
+                    return parseEscape();
+                }
+                case '*', '+', '?' -> throw error("nothing to repeat");
+                default -> {
+                    return literal(c);
+                }
+            }
+        }
+
+        private Node parseEscape() {
+            if (position >= pattern.length()) {
+                throw error("pattern ends with \\");
+            }
+            char c = pattern.charAt(position++);
+            if (c >= '1' && c <= '9') {
+                throw error("backreferences are not supported");
+            }
+            List<Character> bounds = new ArrayList<>();
+            if (addShorthand(c, bounds)) {
+                return newClass(bounds, Character.isUpperCase(c));
+            }
+            return literal(escapedChar(c));
+        }
+
+        private Node parseClass() {
+            boolean negated = peek() == '^';
+            if (negated) {
+                position++;
+            }
+            List<Character> bounds = new ArrayList<>();
+            boolean firstChar = true;
+            while (position < pattern.length() && (pattern.charAt(position) != ']' || firstChar)) {
+                firstChar = false;
+                char low = pattern.charAt(position++);
+                if (low == '\\') {
+                    if (position >= pattern.length()) {
+                        break;
+                    }
+                    char escaped = pattern.charAt(position++);
+                    if (Character.isLowerCase(escaped) && addShorthand(escaped, bounds)) {
+                        continue;
+                    }
+                    if (Character.isUpperCase(escaped) && "DWS".indexOf(escaped) >= 0) {
+                        throw error("\\" + escaped + " is not supported inside [ ]");
+                    }
+                    low = escapedChar(escaped);
+                }
+                char high = low;
+                if (peek() == '-' && position + 1 < pattern.length() && pattern.charAt(position + 1) != ']') {
+                    position++;
+                    high = pattern.charAt(position++);
+                    if (high == '\\') {
+                        if (position >= pattern.length()) {
+                            break;
+                        }
+                        high = escapedChar(pattern.charAt(position++));
+                    }
+                    if (high < low) {
+                        throw error("invalid range " + low + "-" + high);
+                    }
+                }
+                bounds.add(low);
+                bounds.add(high);
+            }
+            if (position >= pattern.length()) {
+                throw error("unclosed [");
+            }
+            position++;
+            return newClass(bounds, negated);
+        }
+
+        /**
+         * Adds the ranges of \d, \w or \s (or their negations, by letter case) and returns
+         * whether c was one of them.
+         */
+        private boolean addShorthand(char c, List<Character> bounds) {
+            switch (Character.toLowerCase(c)) {
+                case 'd' -> addRange(bounds, '0', '9');
+                case 'w' -> {
+                    addRange(bounds, 'a', 'z');
+                    addRange(bounds, 'A', 'Z');
+                    addRange(bounds, '0', '9');
+                    addRange(bounds, '_', '_');
+                }
+                case 's' -> {
+                    addRange(bounds, ' ', ' ');
+                    addRange(bounds, '\t', '\r');
+                }
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private char escapedChar(char c) {
+            switch (c) {
+                case 't' -> {
+                    return '\t';
+                }
+                case 'n' -> {
+                    return '\n';
+                }
+                case 'r' -> {
+                    return '\r';
+                }
+                case 'x' -> {
+                    if (position + 2 > pattern.length()) {
+                        throw error("\\x needs two hex digits");
+                    }
+                    try {
+                        char value = (char) Integer.parseInt(pattern.substring(position, position + 2), 16);
+                        position += 2;
+                        return value;
+                    } catch (NumberFormatException e) {
+                        throw error("\\x needs two hex digits");
+                    }
+                }
+                case 'b', 'B', 'A', 'z', 'Z', 'G', 'k', 'p', 'P', 'Q', 'E' -> throw error("\\" + c + " is not supported");
+                default -> {
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("unknown escape \\" + c);
+                    }
+                    return c;
+                }
+            }
+        }
+
+        private Node literal(char c) {
+            return new Instruction(CHAR, ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c);
+        }
+
+        private Node newClass(List<Character> bounds, boolean negated) {
+            return new ClassNode(new CharClass(bounds, negated));
+        }
+
+        private boolean isCountedRepeat() {
+            int close = pattern.indexOf('}', position);
+            return close > position + 1 && pattern.substring(position + 1, close).matches("\\d+(,\\d*)?");
+        }
+
+        private int[] parseCountedRepeat() {
+            int close = pattern.indexOf('}', position);
+            String[] parts = pattern.substring(position + 1, close).split(",", -1);
+            position = close + 1;
+            int min = parseCount(parts[0]);
+            int max = parts.length == 1 ? min : parts[1].isEmpty() ? -1 : parseCount(parts[1]);
+            if (max >= 0 && max < min) {
+                throw error("{" + min + "," + max + "} has max below min");
+            }
+            return new int[] {min, max};
+        }
+
+        private int parseCount(String text) {
+            try {
+                int count = Integer.parseInt(text);
+                if (count <= MAX_REPEAT) {
+                    return count;
+                }
+            } catch (NumberFormatException e) {
+                // Falls through to the error below
+            }
+            throw error("repeat counts are limited to " + MAX_REPEAT);
+        }
+
+        private char peek() {
+            return position < pattern.length() ? pattern.charAt(position) : '\0';
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+
+        private static void addRange(List<Character> bounds, char low, char high) {
+            bounds.add(low);
+            bounds.add(high);
+        }
+    }
+
+    /**
+     * A character class; classes are stored on the program and referenced by index.
+     */
+    private record ClassNode(CharClass charClass) implements Node {
+        @Override
+        public void emit(Program program) {
+            int index = program.classes.indexOf(charClass);
+            if (index < 0) {
+                program.classes.add(charClass);
+                index = program.classes.size() - 1;
+            }
+            program.add(CLASS, index, 0);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+
+/**
+ * "not <condition>": true when the inner condition is false.
+ */
+public class NotCondition implements Condition {
+    private final Condition inner;
+
+    public NotCondition(Condition inner) {
+        this.inner = inner;
+    }
+
+    @Override
+    public boolean evaluate(ExecutionContext context) {
+        return !inner.evaluate(context);
+    }
+
+    @Override
+    public int cost() {
+        return inner.cost();
+    }
+
+    @Override
+    public boolean hasSideEffects() {
+        return inner.hasSideEffects();
+    }
+
+    public Condition getInner() {
+        return inner;
+    }
+
+    @Override
+    public String toString() {
+        return "not " + inner;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+
+/**
+ * A compiled arithmetic expression. Evaluates to a primitive double, so a formula
+ * is computed without boxing or converting intermediate results to text.
+ */
+public interface NumericExpression {
+    /**
+     * Evaluates this expression in the given context.
+     * @param context The execution context
+     * @return The result, or NaN if an operand is not a number
+     */
+    double evaluate(ExecutionContext context);
+}
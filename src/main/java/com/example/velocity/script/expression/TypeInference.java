@@ -0,0 +1,150 @@
+package com.example.velocity.script.expression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Learns which variables of a script always hold numbers from how the script sets them,
+ * so conditions can compare them as numbers.
+ *
+ * A variable is numeric when every "set" of it in the script assigns a number, arithmetic,
+ * a numeric argument or another numeric variable. Variables are told apart by name with
+ * their placeholders left out, so {coins::%uuid%} and {coins::%player's uuid%} are the
+ * same variable "coins::*". Anything the script does not show, such as values set by other
+ * scripts, leaves the type unknown, and unknown values are compared as text as before.
+ */
+public class TypeInference {
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("-?\\d+(?:\\.\\d+)?");
+    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("%([^%]+)%");
+
+    private final Map<String, ValueType> variables;
+    private final List<Assignment> assignments;
+    private final Map<String, ValueType> placeholders;
+
+    private record Assignment(String variable, String expression, TypeInference scope) {
+    }
+
+    public TypeInference() {
+        this(new HashMap<>(), new ArrayList<>(), Map.of());
+    }
+
+    private TypeInference(Map<String, ValueType> variables, List<Assignment> assignments,
+                          Map<String, ValueType> placeholders) {
+        this.variables = variables;
+        this.assignments = assignments;
+        this.placeholders = placeholders;
+    }
+
+    /**
+     * A scope of the same script where placeholders such as %amount% have known types,
+     * like the arguments of one command.
+     */
+    public TypeInference withPlaceholders(Map<String, ValueType> placeholderTypes) {
+        return new TypeInference(variables, assignments, Map.copyOf(placeholderTypes));
+    }
+
+    /**
+     * Records that the script sets the variable to the expression in this scope.
+     */
+    public void assign(String variable, String expression) {
+        assignments.add(new Assignment(variableKey(variable), expression.trim(), this));
+    }
+
+    /**
+     * Works out the variable types from all recorded assignments. Call once all of the
+     * script has been recorded and before its conditions are compiled.
+     */
+    public void resolve() {
+        // Repeats so a variable set from another variable sees that variable's type
+        for (int round = 0; round <= assignments.size(); round++) {
+            Map<String, ValueType> resolved = new HashMap<>();
+            for (Assignment assignment : assignments) {
+                ValueType type = assignment.scope().typeOf(assignment.expression());
+                resolved.merge(assignment.variable(), type, ValueType::join);
+            }
+            if (resolved.equals(variables)) {
+                return;
+            }
+            variables.clear();
+            variables.putAll(resolved);
+        }
+    }
+
+    /**
+     * The type of the value an expression produces.
+     */
+    public ValueType typeOf(String expression) {
+        String text = expression.trim();
+        if (text.isEmpty()) {
+            return ValueType.UNKNOWN;
+        }
+        if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")
+            && text.indexOf('"', 1) == text.length() - 1) {
+            return ValueType.TEXT;
+        }
+        if (NUMBER_PATTERN.matcher(text).matches() || ArithmeticParser.parse(text) != null) {
+            return ValueType.NUMBER;
+        }
+        if (isSingleVariable(text)) {
+            return variables.getOrDefault(variableKey(text), ValueType.UNKNOWN);
+        }
+        if (PLACEHOLDER_PATTERN.matcher(text).matches()) {
+            return placeholders.getOrDefault(text.substring(1, text.length() - 1), ValueType.UNKNOWN);
+        }
+        return ValueType.UNKNOWN;
+    }
+
+    /**
+     * The name a variable is known by here: without braces, and with each placeholder or
+     * nested variable in it replaced by *.
+     */
+    static String variableKey(String variable) {
+        String name = variable.trim();
+        if (name.startsWith("{") && name.endsWith("}")) {
+            name = name.substring(1, name.length() - 1);
+        }
+        StringBuilder key = new StringBuilder();
+        int depth = 0;
+        boolean placeholder = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '{') {
+                if (depth++ == 0 && !placeholder) {
+                    key.append('*');
+                }
+            } else if (c == '}') {
+                depth--;
+            } else if (c == '%' && depth == 0) {
+                if (!placeholder) {
+                    key.append('*');
+                }
+                placeholder = !placeholder;
+            } else if (depth == 0 && !placeholder) {
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Whether the text is one variable, such as {coins::%uuid%}.
+     */
+    private static boolean isSingleVariable(String text) {
+        if (!text.startsWith("{")) {
+            return false;
+        }
+        int depth = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i == text.length() - 1;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.velocity.script.expression;
+
+/**
+ * What kind of value an expression is known to produce before the script runs.
+ */
+public enum ValueType {
+    /** Always a number, or not set */
+    NUMBER,
+    /** Always text that was written in quotes */
+    TEXT,
+    /** Could be anything, so values are compared as text */
+    UNKNOWN;
+
+    /**
+     * The type of a value that may come from either of two sources.
+     */
+    public ValueType join(ValueType other) {
+        return this == other ? this : UNKNOWN;
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.velocity.script.variable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Keeps the numeric entries of a list ordered by value, highest first, so that
+ * "top N" costs O(log n + N) and "rank of" costs O(log n).
+ * Entries whose value is not a number are left out. Ties are ordered by key.
+ *
+ * Backed by a treap that tracks subtree sizes, which is what makes rank lookups logarithmic.
+ */
+public class LeaderboardIndex implements VariableIndex {
+    private final String listName;
+    private final Map<String, Double> scores;
+    private final SplittableRandom random;
+    private Node root;
+
+    public LeaderboardIndex(String listName) {
+        this.listName = listName;
+        this.scores = new HashMap<>();
+        this.random = new SplittableRandom();
+    }
+
+    @Override
+    public String getListName() {
+        return listName;
+    }
+
+    @Override
+    public synchronized void onSet(String key, String oldValue, String newValue) {
+        Double previous = scores.remove(key);
+        if (previous != null) {
+            root = remove(root, previous, key);
+        }
+
+        double score = parseScore(newValue);
+        if (!Double.isNaN(score)) {
+            scores.put(key, score);
+            root = insert(root, new Node(key, score, random.nextInt()));
+        }
+    }
+
+    @Override
+    public synchronized void onDelete(String key, String oldValue) {
+        Double previous = scores.remove(key);
+        if (previous != null) {
+            root = remove(root, previous, key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        scores.clear();
+        root = null;
+    }
+
+    /**
+     * Returns up to count entries with the highest values, highest first.
+     */
+    public synchronized List<Entry> top(int count) {
+        List<Entry> result = new ArrayList<>(Math.min(Math.max(count, 0), scores.size()));
+        Deque<Node> stack = new ArrayDeque<>();
+        Node node = root;
+
+        while ((node != null || !stack.isEmpty()) && result.size() < count) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            result.add(new Entry(node.key, node.score));
+            node = node.right;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the 1-based rank of the entry with the given key, or 0 if it is not indexed.
+     */
+    public synchronized int rank(String key) {
+        Double score = scores.get(key);
+        if (score == null) {
+            return 0;
+        }
+
+        int rank = 0;
+        Node node = root;
+        while (node != null) {
+            int cmp = compare(score, key, node);
+            if (cmp < 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left) + 1;
+                if (cmp == 0) {
+                    return rank;
+                }
+                node = node.right;
+            }
+        }
+        return 0;
+    }
+
+    public synchronized int size() {
+        return scores.size();
+    }
+
+    /**
+     * Parses a value as a score, returning NaN if it is not a number.
+     */
+    static double parseScore(String value) {
+        if (value == null || value.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // ========== TREAP ==========
+
+    /**
+     * Orders higher scores first, then keys alphabetically.
+     */
+    private static int compare(double score, String key, Node node) {
+        int cmp = Double.compare(node.score, score);
+        return cmp != 0 ? cmp : key.compareTo(node.key);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static Node update(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+        return node;
+    }
+
+    private Node insert(Node node, Node added) {
+        if (node == null) {
+            return added;
+        }
+        if (added.priority > node.priority) {
+            Node[] parts = split(node, added.score, added.key);
+            added.left = parts[0];
+            added.right = parts[1];
+            return update(added);
+        }
+        if (compare(added.score, added.key, node) < 0) {
+            node.left = insert(node.left, added);
+        } else {
+            node.right = insert(node.right, added);
+        }
+        return update(node);
+    }
+
+    private Node remove(Node node, double score, String key) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = compare(score, key, node);
+        if (cmp == 0) {
+            return merge(node.left, node.right);
+        }
+        if (cmp < 0) {
+            node.left = remove(node.left, score, key);
+        } else {
+            node.right = remove(node.right, score, key);
+        }
+        return update(node);
+    }
+
+    /**
+     * Splits into nodes ordered before (score, key) and the rest.
+     */
+    private Node[] split(Node node, double score, String key) {
+        if (node == null) {
+            return new Node[2];
+        }
+        if (compare(score, key, node) > 0) {
+            Node[] parts = split(node.right, score, key);
+            node.right = parts[0];
+            parts[0] = update(node);
+            return parts;
+        }
+        Node[] parts = split(node.left, score, key);
+        node.left = parts[1];
+        parts[1] = update(node);
+        return parts;
+    }
+
+    private Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+
+    private static class Node {
+        private final String key;
+        private final double score;
+        private final int priority;
+        private int size = 1;
+        private Node left;
+        private Node right;
+
+        Node(String key, double score, int priority) {
+            this.key = key;
+            this.score = score;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * One ranked entry: the list key and its numeric value.
+     */
+    public static class Entry {
+        private final String key;
+        private final double score;
+
+        public Entry(String key, double score) {
+            this.key = key;
+            this.score = score;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+}
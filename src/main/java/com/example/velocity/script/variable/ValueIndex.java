@@ -0,0 +1,63 @@
+package com.example.velocity.script.variable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Maps each value of a list to the keys holding it, so "keys of {rank::*} where value is "vip""
+ * costs O(result size) instead of a scan of every global variable.
+ */
+public class ValueIndex implements VariableIndex {
+    private final String listName;
+    private final Map<String, Set<String>> keysByValue;
+
+    public ValueIndex(String listName) {
+        this.listName = listName;
+        this.keysByValue = new HashMap<>();
+    }
+
+    @Override
+    public String getListName() {
+        return listName;
+    }
+
+    @Override
+    public synchronized void onSet(String key, String oldValue, String newValue) {
+        if (oldValue != null) {
+            removeKey(oldValue, key);
+        }
+        keysByValue.computeIfAbsent(newValue, v -> new TreeSet<>()).add(key);
+    }
+
+    @Override
+    public synchronized void onDelete(String key, String oldValue) {
+        removeKey(oldValue, key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        keysByValue.clear();
+    }
+
+    /**
+     * Returns the keys whose value equals the given value, in key order.
+     */
+    public synchronized List<String> keys(String value) {
+        Set<String> keys = keysByValue.get(value);
+        return keys != null ? new ArrayList<>(keys) : new ArrayList<>();
+    }
+
+    private void removeKey(String value, String key) {
+        Set<String> keys = keysByValue.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByValue.remove(value);
+            }
+        }
+    }
+}
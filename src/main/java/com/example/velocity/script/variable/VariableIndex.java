@@ -0,0 +1,29 @@
+package com.example.velocity.script.variable;
+
+/**
+ * A secondary index over the global variables of one list, kept up to date by
+ * {@link VariableManager} on every write so lookups never scan the whole cache.
+ */
+public interface VariableIndex {
+    /**
+     * The list this index covers, e.g. "coins" for {coins::*}.
+     */
+    String getListName();
+
+    /**
+     * Called after an entry of the list was set.
+     * @param key The entry key without the list prefix (e.g. "Steve" for {coins::Steve})
+     * @param oldValue The previous value, or null if the entry is new
+     */
+    void onSet(String key, String oldValue, String newValue);
+
+    /**
+     * Called after an entry of the list was deleted.
+     */
+    void onDelete(String key, String oldValue);
+
+    /**
+     * Removes all entries, before the index is rebuilt.
+     */
+    void clear();
+}
@@ -1,41 +1,171 @@
 package com.example.velocity.script.variable;
 
+import com.example.velocity.script.Script;
+import com.example.velocity.script.variable.replication.ChangeBus;
+import com.example.velocity.script.variable.replication.VariableChange;
 import org.slf4j.Logger;
 
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages all variables: global (persistent), local (temporary), and list variables.
  * Global variables are stored in SQLite and cached in memory.
  * Local variables are stored only in memory per execution scope.
+ * When a {@link ChangeBus} is attached, global changes are replicated to other proxies
+ * and remote changes are applied to the cache using version-based conflict resolution.
  */
 public class VariableManager {
+    /**
+     * A scope that never has local variables: reads find nothing and writes are dropped.
+     * Inlined functions and event triggers that set no locals run in it, without a
+     * scope of their own.
+     */
+    public static final UUID EMPTY_SCOPE = new UUID(0, 0);
+
+    // Clock values reserved in storage at a time, so a restart never reuses a version
+    private static final long CLOCK_LEASE = 1000;
+    private static final String CLOCK_STATE_KEY = "clock";
+
     private final Logger logger;
     private final VariableStorage storage;
     private final VariableRegistry registry;
     private final Map<String, String> globalCache;
+    // Global variable names in order, so a list is a contiguous range instead of a full scan
+    private final NavigableSet<String> sortedKeys;
+
+    // Secondary indexes over global lists, updated on every cache write
+    private final List<IndexRegistration> indexes;
+    private final Set<String> unindexedWarnings;
+
+    // Statistics counters, maintained on every write so /vsk info never queries the database
+    private final AtomicLong persistedCount;
+    private final AtomicInteger pendingFlushes;
+    private final Set<String> dirtyKeys;
+
+    // Replication state, only used once a change bus is attached
+    private final AtomicLong clock;
+    private final Map<String, Version> versions;
+    private final Queue<Tombstone> tombstones;
+    // Last sequence number received from each origin, to notice missed changes
+    private final Map<String, Long> lastSequences;
+    private final Object publishLock;
+    private final Object leaseLock;
+    private volatile ChangeBus changeBus;
+    private volatile long reservedClock;
+    private long tombstoneHorizonMillis;
+    private String nodeId;
+    private long sequence;
 
     public VariableManager(Logger logger, VariableStorage storage) {
         this.logger = logger;
         this.storage = storage;
         this.registry = new VariableRegistry();
         this.globalCache = new ConcurrentHashMap<>();
+        this.sortedKeys = new ConcurrentSkipListSet<>();
+        this.indexes = new CopyOnWriteArrayList<>();
+        this.unindexedWarnings = ConcurrentHashMap.newKeySet();
+        this.persistedCount = new AtomicLong();
+        this.pendingFlushes = new AtomicInteger();
+        this.dirtyKeys = ConcurrentHashMap.newKeySet();
+        this.clock = new AtomicLong();
+        this.versions = new ConcurrentHashMap<>();
+        this.tombstones = new ConcurrentLinkedQueue<>();
+        this.lastSequences = new ConcurrentHashMap<>();
+        this.publishLock = new Object();
+        this.leaseLock = new Object();
+    }
+
+    /**
+     * Attaches a change bus. Local global-variable changes are published to it from now on,
+     * and changes received from it are applied to the cache and local storage.
+     *
+     * The saved version of every variable is loaded first, and the clock resumes above both
+     * them and the last clock value reserved in storage, so changes made after a restart
+     * still win over the ones made before it.
+     *
+     * @param nodeId                 Id of this proxy, which must stay the same across restarts
+     * @param tombstoneHorizonMillis How long a deleted variable's version is kept to reject
+     *                               older changes to it that arrive late
+     * @throws SQLException if the saved versions or clock could not be read
+     */
+    public void attachChangeBus(ChangeBus bus, String nodeId, long tombstoneHorizonMillis) throws SQLException {
+        long[] highest = {storage.loadState(CLOCK_STATE_KEY)};
+        storage.forEachVersion((name, version, origin) -> {
+            versions.put(name, new Version(version, origin, 0));
+            highest[0] = Math.max(highest[0], version);
+        });
+        clock.set(highest[0]);
+        reserveClock(highest[0]);
+
+        this.nodeId = nodeId;
+        this.tombstoneHorizonMillis = tombstoneHorizonMillis;
+        bus.subscribe(this::applyRemoteChange);
+        this.changeBus = bus;
+        logger.info("Variable replication enabled as node '{}', clock at {}", nodeId, highest[0]);
+    }
+
+    /**
+     * Asks every node this one has seen changes from to send the changes made since,
+     * such as those made while this node was down. Called once the bus has started.
+     */
+    public void requestResync() {
+        Map<String, Long> since = new HashMap<>();
+        for (Version version : versions.values()) {
+            if (!version.origin().equals(nodeId)) {
+                since.merge(version.origin(), version.counter(), Math::max);
+            }
+        }
+        if (!since.isEmpty()) {
+            requestResync(since);
+        }
+    }
+
+    /**
+     * Stops publishing local changes. Changes already applied stay in the cache.
+     */
+    public void detachChangeBus() {
+        this.changeBus = null;
     }
 
     /**
      * Loads all global variables from storage into cache.
+     * Indexes registered beforehand are rebuilt from the same rows as they stream in.
      */
     public void loadGlobalVariables() {
         try {
-            Map<String, String> variables = storage.loadAllVariables();
+            // Stream rows straight into the cache instead of building an intermediate map
             globalCache.clear();
-            globalCache.putAll(variables);
-            logger.info("Loaded {} global variable(s) from storage", variables.size());
-        } catch (SQLException e) {
+            sortedKeys.clear();
+            for (IndexRegistration registration : indexes) {
+                registration.index.clear();
+            }
+            storage.forEachVariable(null, (name, value) -> {
+                if (value != null) {
+                    cachePut(name, value);
+                }
+            });
+            persistedCount.set(globalCache.size());
+            dirtyKeys.clear();
+            logger.info("Loaded {} global variable(s) from storage", globalCache.size());
+        } catch (SQLException | IOException e) {
             logger.error("Failed to load global variables from storage", e);
         }
     }
@@ -68,14 +198,15 @@ public class VariableManager {
         } else if (name.startsWith("{")) {
             // Global variable
             String cleanName = name.substring(1, name.length() - 1); // Remove { and }
-            globalCache.put(cleanName, value);
+            Version version = null;
+            if (changeBus != null) {
+                version = writeReplicated(VariableChange.Type.SET, cleanName, value);
+            } else {
+                cachePut(cleanName, value);
+            }
             
             // Persist to database
-            try {
-                storage.saveVariable(cleanName, value, "string");
-            } catch (SQLException e) {
-                logger.error("Failed to save global variable '{}' to storage", cleanName, e);
-            }
+            persistSave(cleanName, value, version);
         }
     }
 
@@ -122,14 +253,15 @@ public class VariableManager {
         } else if (name.startsWith("{")) {
             // Global variable
             String cleanName = name.substring(1, name.length() - 1);
-            globalCache.remove(cleanName);
+            Version version = null;
+            if (changeBus != null) {
+                version = writeReplicated(VariableChange.Type.DELETE, cleanName, null);
+            } else {
+                cacheRemove(cleanName);
+            }
             
             // Delete from database
-            try {
-                storage.deleteVariable(cleanName);
-            } catch (SQLException e) {
-                logger.error("Failed to delete global variable '{}' from storage", cleanName, e);
-            }
+            persistDelete(cleanName, version);
         }
     }
 
@@ -148,9 +280,10 @@ public class VariableManager {
             logger.warn("Local list iteration not yet fully supported");
         } else {
             // Global list
-            for (Map.Entry<String, String> entry : globalCache.entrySet()) {
-                if (entry.getKey().startsWith(prefix + "::")) {
-                    entries.put(entry.getKey(), entry.getValue());
+            for (String key : listKeys(prefix + "::")) {
+                String value = globalCache.get(key);
+                if (value != null) {
+                    entries.put(key, value);
                 }
             }
         }
@@ -158,6 +291,45 @@ public class VariableManager {
         return entries;
     }
 
+    /**
+     * Iterates the entries of a global list in key order without copying the list, so
+     * memory use stays constant however long the list is. Keys are returned without
+     * the list name, e.g. the UUID for {coins::<uuid>}.
+     * The iteration sees the live cache: entries changed while iterating may or may not
+     * be seen, but none is returned twice and removed entries are skipped.
+     * @param listName List variable such as {coins::*}
+     */
+    public Iterator<Map.Entry<String, String>> iterateList(String listName) {
+        String prefix = toListName(listName) + "::";
+        Iterator<String> keys = listKeys(prefix).iterator();
+
+        return new Iterator<>() {
+            private Map.Entry<String, String> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    String key = keys.next();
+                    String value = globalCache.get(key);
+                    if (value != null) {
+                        next = Map.entry(key.substring(prefix.length()), value);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = next;
+                next = null;
+                return entry;
+            }
+        };
+    }
+
     /**
      * Deletes all entries in a list variable.
      */
@@ -169,28 +341,626 @@ public class VariableManager {
             logger.warn("Local list deletion not yet fully supported");
         } else {
             // Global list
+            pendingFlushes.incrementAndGet();
             try {
-                storage.deleteVariablesByPrefix(prefix + "::");
-                globalCache.keySet().removeIf(key -> key.startsWith(prefix + "::"));
+                int deleted = storage.deleteVariablesByPrefix(prefix + "::");
+                persistedCount.addAndGet(-deleted);
+                dirtyKeys.removeIf(key -> key.startsWith(prefix + "::"));
+                if (changeBus != null) {
+                    writeReplicated(VariableChange.Type.DELETE_LIST, prefix, null);
+                } else {
+                    for (String key : listKeys(prefix + "::")) {
+                        cacheRemove(key);
+                    }
+                }
             } catch (SQLException e) {
                 logger.error("Failed to delete list '{}' from storage", listName, e);
+            } finally {
+                pendingFlushes.decrementAndGet();
             }
         }
     }
 
     /**
-     * Gets statistics about variables.
+     * Writes a global variable to the cache and updates the sorted keys and indexes covering it.
+     * They are updated inside the cache's per-key lock so they see writes in cache order.
+     * @return the previous value, or null if there was none
      */
-    public String getStats() {
+    private String cachePut(String name, String value) {
+        String[] previous = new String[1];
+        globalCache.compute(name, (k, old) -> {
+            previous[0] = old;
+            if (old == null) {
+                sortedKeys.add(k);
+            }
+            for (IndexRegistration registration : indexes) {
+                if (k.startsWith(registration.prefix)) {
+                    registration.index.onSet(k.substring(registration.prefix.length()), old, value);
+                }
+            }
+            return value;
+        });
+        return previous[0];
+    }
+
+    /**
+     * Removes a global variable from the cache and updates the sorted keys and indexes covering it.
+     * @return the removed value, or null if there was none
+     */
+    private String cacheRemove(String name) {
+        String[] previous = new String[1];
+        globalCache.computeIfPresent(name, (k, old) -> {
+            previous[0] = old;
+            sortedKeys.remove(k);
+            for (IndexRegistration registration : indexes) {
+                if (k.startsWith(registration.prefix)) {
+                    registration.index.onDelete(k.substring(registration.prefix.length()), old);
+                }
+            }
+            return null;
+        });
+        return previous[0];
+    }
+
+    // ========== INDEXES ==========
+
+    /**
+     * Replaces the declared indexes with the ones declared by the given scripts.
+     * Indexes that are still declared are kept as they are; new ones are built from the cache.
+     */
+    public void registerIndexes(List<Script> scripts) {
+        List<Script.IndexDeclaration> declared = new ArrayList<>();
+        for (Script script : scripts) {
+            declared.addAll(script.getIndexDeclarations());
+        }
+        indexes.removeIf(existing -> declared.stream().noneMatch(existing::matches));
+        for (Script.IndexDeclaration declaration : declared) {
+            addIndex(declaration);
+        }
+        logger.info("Registered {} variable index(es)", indexes.size());
+    }
+
+    /**
+     * Adds the indexes declared by one script, keeping all others.
+     */
+    public void addIndexes(Script script) {
+        for (Script.IndexDeclaration declaration : script.getIndexDeclarations()) {
+            addIndex(declaration);
+        }
+    }
+
+    private synchronized void addIndex(Script.IndexDeclaration declaration) {
+        for (IndexRegistration existing : indexes) {
+            if (existing.matches(declaration)) {
+                return;
+            }
+        }
+
+        VariableIndex index = switch (declaration.getType()) {
+            case NUMBER -> new LeaderboardIndex(declaration.getListName());
+            case VALUE -> new ValueIndex(declaration.getListName());
+        };
+        IndexRegistration registration = new IndexRegistration(declaration.getType(), index);
+        // Register before building so writes made meanwhile are not missed
+        indexes.add(registration);
+        rebuildIndex(registration);
+        logger.debug("Indexed {{}::*} by {}", declaration.getListName(), declaration.getType().getKeyword());
+    }
+
+    /**
+     * Fills an index from the cache. Each entry is fed under the cache's per-key lock,
+     * so a concurrent write to the same entry is applied either before or after, never lost.
+     */
+    private void rebuildIndex(IndexRegistration registration) {
+        registration.index.clear();
+        for (String name : listKeys(registration.prefix)) {
+            globalCache.computeIfPresent(name, (k, value) -> {
+                registration.index.onSet(k.substring(registration.prefix.length()), value, value);
+                return value;
+            });
+        }
+    }
+
+    private VariableIndex findIndex(String listName, Script.IndexType type) {
+        for (IndexRegistration registration : indexes) {
+            if (registration.type == type && registration.index.getListName().equals(listName)) {
+                return registration.index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the entries of a global list with the highest numeric values, highest first.
+     * Uses the list's number index when one is declared, otherwise scans the cache.
+     * @param listName List variable such as {coins::*}
+     */
+    public List<LeaderboardIndex.Entry> getTop(String listName, int count) {
+        String name = toListName(listName);
+        VariableIndex index = findIndex(name, Script.IndexType.NUMBER);
+        if (index != null) {
+            return ((LeaderboardIndex) index).top(count);
+        }
+
+        warnUnindexed(name, Script.IndexType.NUMBER);
+        List<LeaderboardIndex.Entry> entries = scanScores(name);
+        return entries.subList(0, Math.max(0, Math.min(count, entries.size())));
+    }
+
+    /**
+     * Gets the 1-based rank of a list entry by numeric value, or 0 if it has no numeric value.
+     * @param listName List variable such as {coins::*}
+     * @param key The entry key, e.g. a player's UUID
+     */
+    public int getRank(String listName, String key) {
+        String name = toListName(listName);
+        VariableIndex index = findIndex(name, Script.IndexType.NUMBER);
+        if (index != null) {
+            return ((LeaderboardIndex) index).rank(key);
+        }
+
+        warnUnindexed(name, Script.IndexType.NUMBER);
+        List<LeaderboardIndex.Entry> entries = scanScores(name);
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).getKey().equals(key)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the keys of a global list whose value equals the given value, in key order.
+     * Uses the list's value index when one is declared, otherwise scans the cache.
+     * @param listName List variable such as {rank::*}
+     */
+    public List<String> getKeysWithValue(String listName, String value) {
+        String name = toListName(listName);
+        VariableIndex index = findIndex(name, Script.IndexType.VALUE);
+        if (index != null) {
+            return ((ValueIndex) index).keys(value);
+        }
+
+        warnUnindexed(name, Script.IndexType.VALUE);
+        String prefix = name + "::";
+        List<String> keys = new ArrayList<>();
+        for (String key : listKeys(prefix)) {
+            if (value.equals(globalCache.get(key))) {
+                keys.add(key.substring(prefix.length()));
+            }
+        }
+        return keys;
+    }
+
+    private List<LeaderboardIndex.Entry> scanScores(String listName) {
+        String prefix = listName + "::";
+        List<LeaderboardIndex.Entry> entries = new ArrayList<>();
+        for (String key : listKeys(prefix)) {
+            double score = LeaderboardIndex.parseScore(globalCache.get(key));
+            if (!Double.isNaN(score)) {
+                entries.add(new LeaderboardIndex.Entry(key.substring(prefix.length()), score));
+            }
+        }
+        entries.sort(Comparator.comparingDouble(LeaderboardIndex.Entry::getScore).reversed()
+            .thenComparing(LeaderboardIndex.Entry::getKey));
+        return entries;
+    }
+
+    private void warnUnindexed(String listName, Script.IndexType type) {
+        if (unindexedWarnings.add(listName + " " + type.getKeyword())) {
+            logger.warn("{{}::*} has no index, so each lookup scans all variables. " +
+                        "Add 'index {{}::*} by {}' to a script to speed it up.",
+                        listName, listName, type.getKeyword());
+        }
+    }
+
+    /**
+     * Returns a live view of the global variable names starting with the prefix, in order.
+     * @param prefix A list prefix ending in "::"
+     */
+    private NavigableSet<String> listKeys(String prefix) {
+        // Every name with the prefix sorts before the prefix with its last character bumped
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+        return sortedKeys.subSet(prefix, true, end, false);
+    }
+
+    /**
+     * Converts {list::*} to the bare list name "list".
+     */
+    private static String toListName(String listName) {
+        return listName.replace("{", "").replace("}", "").replace("::*", "");
+    }
+
+    /**
+     * Puts a variable that was already written to storage by an import into the cache.
+     * @param name     Variable name without braces
+     * @param inserted whether the import added the row, rather than replacing one
+     * @return with replication, the row with the version it was published with, which the
+     *         caller saves so a restart remembers it; otherwise null
+     */
+    VariableStorage.VersionedRow applyImportedVariable(String name, String value, boolean inserted) {
+        VariableStorage.VersionedRow versioned = null;
+        if (changeBus != null) {
+            Version version = writeReplicated(VariableChange.Type.SET, name, value);
+            versioned = new VariableStorage.VersionedRow(name, value, version.counter(), version.origin());
+        } else {
+            cachePut(name, value);
+        }
+        dirtyKeys.remove(name);
+        if (inserted) {
+            persistedCount.incrementAndGet();
+        }
+        return versioned;
+    }
+
+    /**
+     * Saves again the variables whose last save or delete failed, so a storage error
+     * such as a locked or full disk does not lose them once it clears.
+     * @return the number of variables still not saved
+     */
+    public int retryDirtyKeys() {
+        for (String name : List.copyOf(dirtyKeys)) {
+            Version version = changeBus != null ? versions.get(name) : null;
+            String value = globalCache.get(name);
+            if (value != null) {
+                persistSave(name, value, version);
+            } else {
+                persistDelete(name, version);
+            }
+        }
+        return dirtyKeys.size();
+    }
+
+    /**
+     * Writes a global variable to storage and updates the statistics counters.
+     * @param version the replicated change that wrote it, or null without replication
+     */
+    private void persistSave(String name, String value, Version version) {
+        pendingFlushes.incrementAndGet();
+        try {
+            boolean inserted;
+            if (version != null) {
+                inserted = storage.saveVariable(name, value, "string", version.counter(), version.origin());
+                // A deletion applied meanwhile may have reached storage before this save did
+                Version current = versions.get(name);
+                if (current != null && current.deletedAt() != 0 && isNewer(current, version)
+                        && storage.deleteVariable(name, current.counter(), current.origin()) > 0) {
+                    // The row is gone again; if it was there before this save, one fewer is stored
+                    if (!inserted) {
+                        persistedCount.decrementAndGet();
+                    }
+                    inserted = false;
+                }
+            } else {
+                inserted = storage.saveVariable(name, value, "string");
+            }
+            dirtyKeys.remove(name);
+            if (inserted) {
+                persistedCount.incrementAndGet();
+            }
+        } catch (SQLException e) {
+            dirtyKeys.add(name);
+            logger.error("Failed to save global variable '{}' to storage", name, e);
+        } finally {
+            pendingFlushes.decrementAndGet();
+        }
+    }
+
+    /**
+     * Deletes a global variable from storage and updates the statistics counters.
+     * @param version the replicated deletion, or null without replication
+     */
+    private void persistDelete(String name, Version version) {
+        pendingFlushes.incrementAndGet();
         try {
-            int dbCount = storage.getVariableCount();
-            int cacheCount = globalCache.size();
-            int scopeCount = registry.getScopeCount();
-            return String.format("Global: %d (DB: %d, Cache: %d), Active Scopes: %d", 
-                                 cacheCount, dbCount, cacheCount, scopeCount);
+            int deleted = version != null
+                ? storage.deleteVariable(name, version.counter(), version.origin())
+                : storage.deleteVariable(name);
+            persistedCount.addAndGet(-deleted);
+            dirtyKeys.remove(name);
         } catch (SQLException e) {
-            return "Error getting stats: " + e.getMessage();
+            dirtyKeys.add(name);
+            logger.error("Failed to delete global variable '{}' from storage", name, e);
+        } finally {
+            pendingFlushes.decrementAndGet();
         }
     }
-}
 
+    /**
+     * Applies a local change to the cache and publishes it, all under the publish lock
+     * so this node's change stream leaves in the same order the cache saw it.
+     * @return the version the change was written with
+     */
+    private Version writeReplicated(VariableChange.Type type, String name, String value) {
+        long now = System.currentTimeMillis();
+        pruneTombstones(now);
+        synchronized (publishLock) {
+            long version = clock.incrementAndGet();
+            reserveClock(version);
+            Version written = new Version(version, nodeId, type == VariableChange.Type.SET ? 0 : now);
+
+            if (type == VariableChange.Type.DELETE_LIST) {
+                String listPrefix = name + "::";
+                for (String key : listKeys(listPrefix)) {
+                    versions.compute(key, (k, current) -> {
+                        cacheRemove(k);
+                        return written;
+                    });
+                    tombstones.add(new Tombstone(key, written));
+                }
+            } else {
+                versions.compute(name, (k, current) -> {
+                    if (type == VariableChange.Type.SET) {
+                        cachePut(k, value);
+                    } else {
+                        cacheRemove(k);
+                    }
+                    return written;
+                });
+                if (type == VariableChange.Type.DELETE) {
+                    tombstones.add(new Tombstone(name, written));
+                }
+            }
+
+            changeBus.publish(new VariableChange(type, name, value, version, nodeId, ++sequence));
+            return written;
+        }
+    }
+
+    /**
+     * Applies a change received from another node if it is newer than what this node has.
+     */
+    private void applyRemoteChange(VariableChange change) {
+        if (change.getType() == VariableChange.Type.RESYNC) {
+            answerResync(change);
+            return;
+        }
+        checkSequence(change);
+
+        // Keep the local clock ahead of everything seen, so later local writes win
+        reserveClock(clock.accumulateAndGet(change.getVersion(), Math::max));
+        long now = System.currentTimeMillis();
+        pruneTombstones(now);
+        boolean deletion = change.getType() != VariableChange.Type.SET;
+        Version incoming = new Version(change.getVersion(), change.getOrigin(), deletion ? now : 0);
+
+        if (change.getType() == VariableChange.Type.DELETE_LIST) {
+            String listPrefix = change.getName() + "::";
+            List<String> removed = new ArrayList<>();
+            for (String key : listKeys(listPrefix)) {
+                versions.compute(key, (k, current) -> {
+                    if (current != null && !change.isNewerThan(current.counter, current.origin)) {
+                        return current;
+                    }
+                    if (cacheRemove(k) != null) {
+                        removed.add(k);
+                    }
+                    return incoming;
+                });
+                tombstones.add(new Tombstone(key, incoming));
+            }
+            for (String key : removed) {
+                persistDelete(key, incoming);
+            }
+            return;
+        }
+
+        boolean[] applied = new boolean[1];
+        versions.compute(change.getName(), (k, current) -> {
+            if (current != null && !change.isNewerThan(current.counter, current.origin)) {
+                return current;
+            }
+            if (change.getType() == VariableChange.Type.SET) {
+                cachePut(k, change.getValue());
+            } else {
+                cacheRemove(k);
+            }
+            applied[0] = true;
+            return incoming;
+        });
+
+        if (!applied[0]) {
+            logger.debug("Ignored stale replicated change {}", change);
+            return;
+        }
+
+        if (change.getType() == VariableChange.Type.SET) {
+            persistSave(change.getName(), change.getValue(), incoming);
+        } else {
+            tombstones.add(new Tombstone(change.getName(), incoming));
+            persistDelete(change.getName(), incoming);
+        }
+    }
+
+    // ========== RESYNC ==========
+
+    /**
+     * Notices changes missed from the change's origin: a sequence number that skips ahead,
+     * or a first change that is not the origin's first since it started. Either asks the
+     * origin for everything newer than the latest of its changes this node has. Changes
+     * come from one origin on one connection, so this runs for one origin at a time.
+     */
+    private void checkSequence(VariableChange change) {
+        long received = change.getSequence();
+        if (received <= 0) {
+            return;
+        }
+        String origin = change.getOrigin();
+        Long last = lastSequences.get(origin);
+        boolean missed;
+        if (last == null) {
+            missed = received > 1;
+        } else if (received > last) {
+            missed = received > last + 1;
+        } else {
+            // Sent again after a reconnect, or the origin restarted and began a new stream
+            if (received == 1) {
+                lastSequences.put(origin, received);
+            }
+            return;
+        }
+        lastSequences.put(origin, received);
+        if (missed) {
+            long since = 0;
+            for (Version version : versions.values()) {
+                if (version.origin().equals(origin)) {
+                    since = Math.max(since, version.counter());
+                }
+            }
+            logger.warn("Missed changes from node '{}' (got #{} after #{}), asking for its changes since version {}",
+                origin, received, last, since);
+            requestResync(Map.of(origin, since));
+        }
+    }
+
+    private void requestResync(Map<String, Long> since) {
+        StringBuilder request = new StringBuilder();
+        for (Map.Entry<String, Long> entry : since.entrySet()) {
+            request.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        changeBus.publish(new VariableChange(VariableChange.Type.RESYNC, "*", request.toString(),
+            clock.get(), nodeId, 0));
+    }
+
+    /**
+     * Sends this node's own changes newer than the version the request lists for it, each
+     * with its original version so receivers keep whichever is newest. Deletions are sent
+     * while their tombstones last.
+     */
+    private void answerResync(VariableChange request) {
+        long since = -1;
+        for (String line : request.getValue().split("\n")) {
+            int equals = line.lastIndexOf('=');
+            if (equals > 0 && line.substring(0, equals).equals(nodeId)) {
+                try {
+                    since = Long.parseLong(line.substring(equals + 1));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring malformed resync request from '{}'", request.getOrigin());
+                    return;
+                }
+            }
+        }
+        if (since < 0) {
+            return;
+        }
+
+        int sent = 0;
+        for (Map.Entry<String, Version> entry : versions.entrySet()) {
+            Version version = entry.getValue();
+            if (!version.origin().equals(nodeId) || version.counter() <= since) {
+                continue;
+            }
+            if (version.deletedAt() == 0) {
+                // Read after the version, so the value is at least as new as it
+                String value = globalCache.get(entry.getKey());
+                if (value == null) {
+                    continue;
+                }
+                changeBus.publish(new VariableChange(VariableChange.Type.SET, entry.getKey(), value,
+                    version.counter(), nodeId, 0));
+            } else {
+                changeBus.publish(new VariableChange(VariableChange.Type.DELETE, entry.getKey(), null,
+                    version.counter(), nodeId, 0));
+            }
+            sent++;
+        }
+        logger.info("Resent {} change(s) since version {} for node '{}'", sent, since, request.getOrigin());
+    }
+
+    /**
+     * Reserves clock values in storage ahead of the given one, a lease at a time, so after a
+     * restart the clock resumes above every version this node may have handed out.
+     */
+    private void reserveClock(long version) {
+        if (version <= reservedClock) {
+            return;
+        }
+        synchronized (leaseLock) {
+            if (version <= reservedClock) {
+                return;
+            }
+            long reserved = version + CLOCK_LEASE;
+            try {
+                storage.saveState(CLOCK_STATE_KEY, reserved);
+            } catch (SQLException e) {
+                // Still move on, or every later write would retry; the saved versions of
+                // the variables bound the clock after a restart instead
+                logger.error("Failed to save the replication clock", e);
+            }
+            reservedClock = reserved;
+        }
+    }
+
+    /**
+     * Forgets the versions of variables deleted longer ago than the tombstone horizon.
+     * A tombstone replaced by a newer change since is left alone.
+     */
+    private void pruneTombstones(long now) {
+        Tombstone oldest;
+        while ((oldest = tombstones.peek()) != null
+                && now - oldest.version().deletedAt() > tombstoneHorizonMillis) {
+            if (tombstones.remove(oldest)) {
+                versions.remove(oldest.name(), oldest.version());
+            }
+        }
+    }
+
+    /**
+     * Gets a snapshot of the variable statistics without querying the database.
+     */
+    public VariableStatistics getStatistics() {
+        return new VariableStatistics(
+            globalCache.size(),
+            persistedCount.get(),
+            dirtyKeys.size(),
+            pendingFlushes.get(),
+            registry.getScopeCount()
+        );
+    }
+
+    /**
+     * Gets statistics about variables.
+     */
+    public String getStats() {
+        return getStatistics().toString();
+    }
+
+    /**
+     * Version of the last change applied to a variable; deletions keep theirs as a tombstone.
+     * @param deletedAt when the variable was deleted, or 0 while it is set
+     */
+    private record Version(long counter, String origin, long deletedAt) {
+    }
+
+    /**
+     * Whether a is from a later change than b, ordered like {@link VariableChange#isNewerThan}.
+     */
+    private static boolean isNewer(Version a, Version b) {
+        if (a.counter() != b.counter()) {
+            return a.counter() > b.counter();
+        }
+        return b.origin() == null || a.origin().compareTo(b.origin()) > 0;
+    }
+
+    /**
+     * A deleted variable's version, queued in deletion order until it expires.
+     */
+    private record Tombstone(String name, Version version) {
+    }
+
+    private static class IndexRegistration {
+        private final String prefix;
+        private final Script.IndexType type;
+        private final VariableIndex index;
+
+        IndexRegistration(Script.IndexType type, VariableIndex index) {
+            this.prefix = index.getListName() + "::";
+            this.type = type;
+            this.index = index;
+        }
+
+        boolean matches(Script.IndexDeclaration declaration) {
+            return type == declaration.getType() && index.getListName().equals(declaration.getListName());
+        }
+    }
+}
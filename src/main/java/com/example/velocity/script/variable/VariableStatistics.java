@@ -0,0 +1,62 @@
+package com.example.velocity.script.variable;
+
+/**
+ * Point-in-time snapshot of variable statistics. Built from counters that
+ * {@link VariableManager} maintains on every write, so taking one never touches the database.
+ */
+public class VariableStatistics {
+    private final int cacheSize;
+    private final long persistedCount;
+    private final int dirtyCount;
+    private final int pendingFlushes;
+    private final int scopeCount;
+
+    public VariableStatistics(int cacheSize, long persistedCount, int dirtyCount, int pendingFlushes, int scopeCount) {
+        this.cacheSize = cacheSize;
+        this.persistedCount = persistedCount;
+        this.dirtyCount = dirtyCount;
+        this.pendingFlushes = pendingFlushes;
+        this.scopeCount = scopeCount;
+    }
+
+    /**
+     * Number of global variables held in memory.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Number of rows in the variables table.
+     */
+    public long getPersistedCount() {
+        return persistedCount;
+    }
+
+    /**
+     * Number of global variables whose last write to storage failed.
+     */
+    public int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * Number of storage writes currently in progress.
+     */
+    public int getPendingFlushes() {
+        return pendingFlushes;
+    }
+
+    /**
+     * Number of active local variable scopes.
+     */
+    public int getScopeCount() {
+        return scopeCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Global: %d (DB: %d, Dirty: %d, Pending: %d), Active Scopes: %d",
+                             cacheSize, persistedCount, dirtyCount, pendingFlushes, scopeCount);
+    }
+}
@@ -3,11 +3,18 @@ package com.example.velocity.script.variable;
 import org.slf4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.*;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class VariableStorage {
+    // Rows fetched per round trip when streaming, keeps memory flat for any table size
+    private static final int FETCH_SIZE = 1000;
+    // How long a connection waits for another one's write lock before failing
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
     private final Logger logger;
     private final File databaseFile;
     private Connection connection;
@@ -32,8 +39,12 @@ public class VariableStorage {
             }
 
             // Connect to SQLite database
-            String url = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
-            connection = DriverManager.getConnection(url);
+            connection = openConnection();
+
+            // WAL lets export/import connections read and write alongside script writes
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("PRAGMA journal_mode=WAL");
+            }
             
             // Create variables table if it doesn't exist
             createTable();
@@ -45,6 +56,15 @@ public class VariableStorage {
         }
     }
 
+    private Connection openConnection() throws SQLException {
+        String url = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+        }
+        return conn;
+    }
+
     private void createTable() throws SQLException {
         String sql = """
             CREATE TABLE IF NOT EXISTS variables (
@@ -57,17 +77,151 @@ public class VariableStorage {
         
         try (Statement stmt = connection.createStatement()) {
             stmt.execute(sql);
+            // Replication state: the version of each variable's last change, and the clock
+            if (!hasColumn(stmt, "variables", "version")) {
+                stmt.execute("ALTER TABLE variables ADD COLUMN version INTEGER DEFAULT 0");
+                stmt.execute("ALTER TABLE variables ADD COLUMN origin TEXT");
+            }
+            stmt.execute("CREATE TABLE IF NOT EXISTS replication_state (key TEXT PRIMARY KEY, value INTEGER)");
         }
     }
 
-    public void saveVariable(String name, String value, String type) throws SQLException {
-        String sql = "INSERT OR REPLACE INTO variables (name, value, type, updated_at) VALUES (?, ?, ?, ?)";
-        
+    private static boolean hasColumn(Statement stmt, String table, String column) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves a variable, replacing any saved value.
+     * @return whether a new row was inserted, rather than an existing one updated
+     */
+    public boolean saveVariable(String name, String value, String type) throws SQLException {
+        return save(name, value, type, 0, null, false);
+    }
+
+    /**
+     * Saves a variable with the version of the replicated change that set it, unless the
+     * saved row is already from a newer change. Saves of one variable can reach storage in
+     * a different order than their changes were applied, so the newest change wins here too.
+     * @return whether a new row was inserted, rather than an existing one updated or kept
+     */
+    public boolean saveVariable(String name, String value, String type, long version, String origin) throws SQLException {
+        return save(name, value, type, version, origin, true);
+    }
+
+    /**
+     * Updates the row, or inserts it if there is none. Done as two statements rather than
+     * an upsert, so the caller learns whether the variable is new, which keeps the count of
+     * stored variables exact.
+     * @param versioned whether to keep a row from a newer change
+     */
+    private boolean save(String name, String value, String type, long version, String origin, boolean versioned)
+            throws SQLException {
+        String update = "UPDATE variables SET value = ?, type = ?, updated_at = ?, version = ?, origin = ? WHERE name = ?"
+            + (versioned ? " AND " + olderThan("variables", "?", "?") : "");
+        String insert = "INSERT OR IGNORE INTO variables (name, value, type, updated_at, version, origin) "
+            + "VALUES (?, ?, ?, ?, ?, ?)";
+        long now = System.currentTimeMillis();
+
+        try (PreparedStatement updateStmt = connection.prepareStatement(update);
+             PreparedStatement insertStmt = connection.prepareStatement(insert)) {
+            updateStmt.setString(1, value);
+            updateStmt.setString(2, type);
+            updateStmt.setLong(3, now);
+            updateStmt.setLong(4, version);
+            updateStmt.setString(5, origin);
+            updateStmt.setString(6, name);
+            if (versioned) {
+                updateStmt.setLong(7, version);
+                updateStmt.setLong(8, version);
+                updateStmt.setString(9, origin);
+            }
+            if (updateStmt.executeUpdate() > 0) {
+                return false;
+            }
+
+            insertStmt.setString(1, name);
+            insertStmt.setString(2, value);
+            insertStmt.setString(3, type);
+            insertStmt.setLong(4, now);
+            insertStmt.setLong(5, version);
+            insertStmt.setString(6, origin);
+            if (insertStmt.executeUpdate() > 0) {
+                return true;
+            }
+
+            // Another save inserted the row in between; update it unless that one is newer
+            updateStmt.executeUpdate();
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a variable unless the saved row is from a newer change than the deletion.
+     * @return the number of rows removed
+     */
+    public int deleteVariable(String name, long version, String origin) throws SQLException {
+        String sql = "DELETE FROM variables WHERE name = ? AND " + olderThan("variables", "?", "?");
+
         try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
             pstmt.setString(1, name);
-            pstmt.setString(2, value);
-            pstmt.setString(3, type);
-            pstmt.setLong(4, System.currentTimeMillis());
+            pstmt.setLong(2, version);
+            pstmt.setLong(3, version);
+            pstmt.setString(4, origin);
+            return pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * SQL that is true when the row's version is older than the given one, ordered the way
+     * {@link com.example.velocity.script.variable.replication.VariableChange#isNewerThan} orders
+     * changes: by version, then origin. The version is referenced twice.
+     */
+    private static String olderThan(String table, String version, String origin) {
+        return "(" + table + ".version < " + version + " OR (" + table + ".version = " + version
+            + " AND (" + table + ".origin IS NULL OR " + origin + " > " + table + ".origin)))";
+    }
+
+    /**
+     * Visits the saved version of every variable last set by a replicated change.
+     */
+    public void forEachVersion(VersionVisitor visitor) throws SQLException {
+        String sql = "SELECT name, version, origin FROM variables WHERE version > 0";
+
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                visitor.visit(rs.getString(1), rs.getLong(2), rs.getString(3));
+            }
+        }
+    }
+
+    /**
+     * Reads a number saved with {@link #saveState}, or 0 if there is none.
+     */
+    public long loadState(String key) throws SQLException {
+        String sql = "SELECT value FROM replication_state WHERE key = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, key);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    public void saveState(String key, long value) throws SQLException {
+        String sql = "INSERT OR REPLACE INTO replication_state (key, value) VALUES (?, ?)";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, key);
+            pstmt.setLong(2, value);
             pstmt.executeUpdate();
         }
     }
@@ -100,12 +254,15 @@ public class VariableStorage {
         }
     }
 
-    public void deleteVariable(String name) throws SQLException {
+    /**
+     * Deletes a variable and returns the number of rows removed (0 or 1).
+     */
+    public int deleteVariable(String name) throws SQLException {
         String sql = "DELETE FROM variables WHERE name = ?";
         
         try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
             pstmt.setString(1, name);
-            pstmt.executeUpdate();
+            return pstmt.executeUpdate();
         }
     }
 
@@ -124,12 +281,48 @@ public class VariableStorage {
         return variables;
     }
 
+    /**
+     * Streams variables in name order to the visitor without collecting them in memory.
+     * Uses its own connection, so long exports do not hold up script writes.
+     * @param prefix Only visit names starting with this prefix, or null for all variables
+     */
+    public void forEachVariable(String prefix, VariableVisitor visitor) throws SQLException, IOException {
+        boolean filtered = prefix != null && !prefix.isEmpty();
+        // A range scan uses the primary key index, unlike LIKE which also treats _ as a wildcard
+        String sql = filtered
+            ? "SELECT name, value FROM variables WHERE name >= ? AND name < ? ORDER BY name"
+            : "SELECT name, value FROM variables ORDER BY name";
+
+        try (Connection conn = openConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setFetchSize(FETCH_SIZE);
+            if (filtered) {
+                pstmt.setString(1, prefix);
+                pstmt.setString(2, prefixEnd(prefix));
+            }
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    visitor.visit(rs.getString(1), rs.getString(2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a writer that saves variables in batched transactions on a separate connection.
+     */
+    public BulkWriter openBulkWriter() throws SQLException {
+        return new BulkWriter(openConnection());
+    }
+
     public Map<String, String> loadVariablesByPrefix(String prefix) throws SQLException {
         Map<String, String> variables = new HashMap<>();
-        String sql = "SELECT name, value FROM variables WHERE name LIKE ?";
+        String sql = "SELECT name, value FROM variables WHERE name >= ? AND name < ?";
         
         try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, prefix + "%");
+            pstmt.setString(1, prefix);
+            pstmt.setString(2, prefixEnd(prefix));
             
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -141,15 +334,31 @@ public class VariableStorage {
         return variables;
     }
 
-    public void deleteVariablesByPrefix(String prefix) throws SQLException {
-        String sql = "DELETE FROM variables WHERE name LIKE ?";
+    /**
+     * Deletes all variables starting with the prefix and returns the number of rows removed.
+     */
+    public int deleteVariablesByPrefix(String prefix) throws SQLException {
+        // A range, like forEachVariable, so _ in a list name is not a wildcard
+        String sql = "DELETE FROM variables WHERE name >= ? AND name < ?";
         
         try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, prefix + "%");
-            pstmt.executeUpdate();
+            pstmt.setString(1, prefix);
+            pstmt.setString(2, prefixEnd(prefix));
+            return pstmt.executeUpdate();
         }
     }
 
+    /**
+     * The first name after every name starting with the prefix: the prefix with its last
+     * character bumped. Unlike appending a high character, this also bounds names whose
+     * next character sorts above it in SQLite's UTF-8 order.
+     * @param prefix A non-empty prefix
+     */
+    private static String prefixEnd(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
     public void close() {
         if (connection != null) {
             try {
@@ -174,5 +383,120 @@ public class VariableStorage {
         
         return 0;
     }
-}
 
+    @FunctionalInterface
+    public interface VariableVisitor {
+        void visit(String name, String value) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface VersionVisitor {
+        void visit(String name, long version, String origin);
+    }
+
+    /**
+     * Writes batches of variables, one transaction per batch.
+     */
+    public static class BulkWriter implements AutoCloseable {
+        private final Connection connection;
+        private final PreparedStatement insertStatement;
+        private final PreparedStatement updateStatement;
+        private final PreparedStatement versionedStatement;
+
+        private BulkWriter(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.connection.setAutoCommit(false);
+            this.insertStatement = connection.prepareStatement(
+                "INSERT OR IGNORE INTO variables (name, value, type, updated_at) VALUES (?, ?, ?, ?)");
+            this.updateStatement = connection.prepareStatement(
+                "UPDATE variables SET value = ?, type = ?, updated_at = ?, version = 0, origin = NULL WHERE name = ?");
+            this.versionedStatement = connection.prepareStatement(
+                "INSERT INTO variables (name, value, type, updated_at, version, origin) VALUES (?, ?, ?, ?, ?, ?) "
+                + "ON CONFLICT(name) DO UPDATE SET value = excluded.value, type = excluded.type, "
+                + "updated_at = excluded.updated_at, version = excluded.version, origin = excluded.origin "
+                + "WHERE " + olderThan("variables", "excluded.version", "excluded.origin"));
+        }
+
+        /**
+         * Saves all entries (name, value pairs) atomically, replacing saved values.
+         * @return for each entry, whether it was a new variable
+         */
+        public boolean[] write(List<String[]> batch) throws SQLException {
+            long now = System.currentTimeMillis();
+            boolean[] inserted = new boolean[batch.size()];
+            try {
+                for (String[] entry : batch) {
+                    insertStatement.setString(1, entry[0]);
+                    insertStatement.setString(2, entry[1]);
+                    insertStatement.setString(3, "string");
+                    insertStatement.setLong(4, now);
+                    insertStatement.addBatch();
+                }
+                int[] counts = insertStatement.executeBatch();
+
+                // The transaction holds the write lock, so the rows left are still there to update
+                boolean updates = false;
+                for (int i = 0; i < batch.size(); i++) {
+                    inserted[i] = counts[i] > 0;
+                    if (!inserted[i]) {
+                        updateStatement.setString(1, batch.get(i)[1]);
+                        updateStatement.setString(2, "string");
+                        updateStatement.setLong(3, now);
+                        updateStatement.setString(4, batch.get(i)[0]);
+                        updateStatement.addBatch();
+                        updates = true;
+                    }
+                }
+                if (updates) {
+                    updateStatement.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+            return inserted;
+        }
+
+        /**
+         * Saves the versions replicated changes gave imported rows, atomically, keeping
+         * any row a newer change has written since, like {@link VariableStorage#saveVariable}.
+         */
+        public void writeVersioned(List<VersionedRow> batch) throws SQLException {
+            long now = System.currentTimeMillis();
+            try {
+                for (VersionedRow row : batch) {
+                    versionedStatement.setString(1, row.name());
+                    versionedStatement.setString(2, row.value());
+                    versionedStatement.setString(3, "string");
+                    versionedStatement.setLong(4, now);
+                    versionedStatement.setLong(5, row.version());
+                    versionedStatement.setString(6, row.origin());
+                    versionedStatement.addBatch();
+                }
+                versionedStatement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                insertStatement.close();
+                updateStatement.close();
+                versionedStatement.close();
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * A variable with the version of the replicated change that set it.
+     */
+    public record VersionedRow(String name, String value, long version, String origin) {
+    }
+}
@@ -0,0 +1,448 @@
+package com.example.velocity.script.variable;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports and imports global variables as JSON Lines or CSV files.
+ * Both directions stream row by row, so memory use does not depend on the number of variables.
+ *
+ * JSONL rows look like {"name":"coins::Steve","value":"100"}.
+ * CSV files have a name,value header and use RFC 4180 quoting.
+ */
+public class VariableTransfer {
+    private static final int BATCH_SIZE = 1000;
+
+    private final Logger logger;
+    private final VariableStorage storage;
+    private final VariableManager variableManager;
+    private final Path baseDirectory;
+
+    public VariableTransfer(Logger logger, VariableStorage storage, VariableManager variableManager, Path baseDirectory) {
+        this.logger = logger;
+        this.storage = storage;
+        this.variableManager = variableManager;
+        this.baseDirectory = baseDirectory.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Resolves a file name relative to the plugin data directory.
+     * @throws IOException if the path points outside the data directory
+     */
+    public Path resolveFile(String fileName) throws IOException {
+        Path file = baseDirectory.resolve(fileName).normalize();
+        if (!file.startsWith(baseDirectory)) {
+            throw new IOException("File must be inside the plugin folder: " + fileName);
+        }
+        Format.of(file);
+        return file;
+    }
+
+    /**
+     * Writes all variables whose name starts with the prefix to the file.
+     * @param overwrite whether to replace the file if it already exists
+     * @return the number of variables exported
+     * @throws java.nio.file.FileAlreadyExistsException if the file exists and overwrite is false
+     */
+    public long exportTo(Path file, String prefix, boolean overwrite) throws IOException, SQLException {
+        Format format = Format.of(file);
+        long[] count = new long[1];
+
+        OpenOption[] options = overwrite
+            ? new OpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE}
+            : new OpenOption[] {StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE};
+        try (BufferedWriter writer = Files.newBufferedWriter(file, options)) {
+            if (format == Format.CSV) {
+                writer.write("name,value\n");
+            }
+            storage.forEachVariable(prefix, (name, value) -> {
+                if (format == Format.CSV) {
+                    writeCsvRow(writer, name, value);
+                } else {
+                    writeJsonRow(writer, name, value);
+                }
+                count[0]++;
+            });
+        }
+
+        logger.info("Exported {} variable(s) to {}", count[0], file.getFileName());
+        return count[0];
+    }
+
+    /**
+     * Reads variables from the file and saves them in batched transactions.
+     * Existing variables with the same name are overwritten.
+     * @param prefix Only import names starting with this prefix, or null for all rows
+     * @return the number of variables imported
+     */
+    public long importFrom(Path file, String prefix) throws IOException, SQLException {
+        Format format = Format.of(file);
+        long count = 0;
+        List<String[]> batch = new ArrayList<>(BATCH_SIZE);
+
+        try (BufferedReader reader = Files.newBufferedReader(file);
+             VariableStorage.BulkWriter writer = storage.openBulkWriter()) {
+            RowReader rows = format == Format.CSV ? new CsvRowReader(reader) : new JsonRowReader(reader);
+
+            String[] row;
+            while ((row = rows.next()) != null) {
+                if (row[1] == null || (prefix != null && !row[0].startsWith(prefix))) {
+                    continue;
+                }
+                batch.add(row);
+                if (batch.size() >= BATCH_SIZE) {
+                    count += flush(writer, batch);
+                }
+            }
+            count += flush(writer, batch);
+        }
+
+        logger.info("Imported {} variable(s) from {}", count, file.getFileName());
+        return count;
+    }
+
+    private int flush(VariableStorage.BulkWriter writer, List<String[]> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        boolean[] inserted = writer.write(batch);
+        // Only show rows to scripts once they are committed
+        List<VariableStorage.VersionedRow> versioned = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            String[] row = batch.get(i);
+            VariableStorage.VersionedRow published = variableManager.applyImportedVariable(row[0], row[1], inserted[i]);
+            if (published != null) {
+                versioned.add(published);
+            }
+        }
+        // With replication, each row was published with a new version; save it with the row
+        // so after a restart an older change from another proxy cannot overwrite the import
+        if (!versioned.isEmpty()) {
+            writer.writeVersioned(versioned);
+        }
+        int size = batch.size();
+        batch.clear();
+        return size;
+    }
+
+    // ========== CSV ==========
+
+    private static void writeCsvRow(Writer writer, String name, String value) throws IOException {
+        writer.write(csvField(name));
+        writer.write(',');
+        if (value != null) {
+            writer.write(csvField(value));
+        }
+        writer.write('\n');
+    }
+
+    private static String csvField(String field) {
+        if (field.isEmpty()) {
+            // Quoted so an empty string can be told apart from a null value
+            return "\"\"";
+        }
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            return field;
+        }
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    private interface RowReader {
+        /**
+         * Returns the next (name, value) row, or null at end of file.
+         */
+        String[] next() throws IOException;
+    }
+
+    private static class CsvRowReader implements RowReader {
+        private final Reader reader;
+        private boolean headerSkipped;
+        private int lineNumber = 1;
+
+        CsvRowReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            while (true) {
+                List<String> fields = readRecord();
+                if (fields == null) {
+                    return null;
+                }
+                if (!headerSkipped) {
+                    headerSkipped = true;
+                    if (fields.size() >= 1 && "name".equals(fields.get(0))) {
+                        continue;
+                    }
+                }
+                if (fields.size() == 1 && fields.get(0) == null) {
+                    // Blank line
+                    continue;
+                }
+                if (fields.size() != 2 || fields.get(0) == null) {
+                    throw new IOException("Invalid CSV row near line " + lineNumber + ": expected name,value");
+                }
+                return new String[]{fields.get(0), fields.get(1)};
+            }
+        }
+
+        /**
+         * Reads one record; an unquoted empty field is returned as null.
+         */
+        private List<String> readRecord() throws IOException {
+            int c = reader.read();
+            if (c == -1) {
+                return null;
+            }
+
+            List<String> fields = new ArrayList<>(2);
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean inQuotes = false;
+
+            while (true) {
+                if (inQuotes) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted CSV field near line " + lineNumber);
+                    }
+                    if (c == '"') {
+                        reader.mark(1);
+                        int next = reader.read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            inQuotes = false;
+                            if (next != -1) {
+                                reader.reset();
+                            }
+                        }
+                    } else {
+                        if (c == '\n') {
+                            lineNumber++;
+                        }
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0 && !quoted) {
+                    quoted = true;
+                    inQuotes = true;
+                } else if (c == ',') {
+                    fields.add(quoted || field.length() > 0 ? field.toString() : null);
+                    field.setLength(0);
+                    quoted = false;
+                } else if (c == '\n' || c == -1) {
+                    fields.add(quoted || field.length() > 0 ? field.toString() : null);
+                    lineNumber++;
+                    return fields;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = reader.read();
+            }
+        }
+    }
+
+    // ========== JSON Lines ==========
+
+    private static void writeJsonRow(Writer writer, String name, String value) throws IOException {
+        writer.write("{\"name\":");
+        writeJsonString(writer, name);
+        writer.write(",\"value\":");
+        if (value == null) {
+            writer.write("null");
+        } else {
+            writeJsonString(writer, value);
+        }
+        writer.write("}\n");
+    }
+
+    private static void writeJsonString(Writer writer, String text) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> writer.write("\\\"");
+                case '\\' -> writer.write("\\\\");
+                case '\n' -> writer.write("\\n");
+                case '\r' -> writer.write("\\r");
+                case '\t' -> writer.write("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Reads flat JSON objects with string or null values, one per line.
+     * Unknown keys are ignored so files from newer versions still import.
+     */
+    private static class JsonRowReader implements RowReader {
+        private final BufferedReader reader;
+        private int lineNumber;
+        private String line;
+        private int pos;
+
+        JsonRowReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                pos = 0;
+                skipWhitespace();
+                if (pos == line.length()) {
+                    continue;
+                }
+                return parseObject();
+            }
+            return null;
+        }
+
+        private String[] parseObject() throws IOException {
+            String name = null;
+            String value = null;
+
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String key = parseString();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    String fieldValue = peek() == 'n' ? parseNull() : parseString();
+                    if ("name".equals(key)) {
+                        name = fieldValue;
+                    } else if ("value".equals(key)) {
+                        value = fieldValue;
+                    }
+                    skipWhitespace();
+                    char c = nextChar();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw error("expected ',' or '}'");
+                    }
+                }
+            }
+
+            if (name == null) {
+                throw error("missing \"name\"");
+            }
+            return new String[]{name, value};
+        }
+
+        private String parseString() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = nextChar();
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char escape = nextChar();
+                switch (escape) {
+                    case '"', '\\', '/' -> sb.append(escape);
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'u' -> {
+                        if (pos + 4 > line.length()) {
+                            throw error("truncated \\u escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("invalid \\u escape");
+                        }
+                        pos += 4;
+                    }
+                    default -> throw error("invalid escape \\" + escape);
+                }
+            }
+        }
+
+        private String parseNull() throws IOException {
+            if (!line.startsWith("null", pos)) {
+                throw error("expected a string or null");
+            }
+            pos += 4;
+            return null;
+        }
+
+        private void skipWhitespace() {
+            while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() throws IOException {
+            if (pos >= line.length()) {
+                throw error("unexpected end of line");
+            }
+            return line.charAt(pos);
+        }
+
+        private char nextChar() throws IOException {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char expected) throws IOException {
+            if (nextChar() != expected) {
+                throw error("expected '" + expected + "'");
+            }
+        }
+
+        private IOException error(String message) {
+            return new IOException("Invalid JSON on line " + lineNumber + ": " + message);
+        }
+    }
+
+    private enum Format {
+        JSONL,
+        CSV;
+
+        static Format of(Path file) throws IOException {
+            String fileName = file.getFileName().toString().toLowerCase();
+            if (fileName.endsWith(".jsonl") || fileName.endsWith(".json")) {
+                return JSONL;
+            }
+            if (fileName.endsWith(".csv")) {
+                return CSV;
+            }
+            throw new IOException("Unsupported file type, use .jsonl or .csv: " + fileName);
+        }
+    }
+}
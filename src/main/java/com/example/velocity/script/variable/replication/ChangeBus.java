@@ -0,0 +1,30 @@
+package com.example.velocity.script.variable.replication;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport for replicating global variable changes between proxies.
+ * Implementations must deliver changes from one origin in the order they were published,
+ * and must not deliver a node's own changes back to it.
+ */
+public interface ChangeBus {
+    /**
+     * Publishes a local change to all other nodes.
+     */
+    void publish(VariableChange change);
+
+    /**
+     * Registers a listener for changes published by other nodes.
+     */
+    void subscribe(Consumer<VariableChange> listener);
+
+    /**
+     * Starts the transport. Called once after subscribing.
+     */
+    void start() throws Exception;
+
+    /**
+     * Stops the transport and releases its resources.
+     */
+    void close();
+}
@@ -0,0 +1,114 @@
+package com.example.velocity.script.variable.replication;
+
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * In-process change bus. All buses opened on the same channel name in one JVM
+ * replicate to each other, which makes it possible to run several variable managers
+ * side by side and test replication without a network.
+ */
+public class LoopbackChangeBus implements ChangeBus {
+    private static final Map<String, Channel> CHANNELS = new ConcurrentHashMap<>();
+
+    private final Logger logger;
+    private final String channelName;
+    private final List<Consumer<VariableChange>> listeners;
+    private Channel channel;
+
+    public LoopbackChangeBus(Logger logger, String channelName) {
+        this.logger = logger;
+        this.channelName = channelName;
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    @Override
+    public void subscribe(Consumer<VariableChange> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void start() {
+        channel = CHANNELS.computeIfAbsent(channelName, Channel::new);
+        channel.join(this);
+        logger.info("Joined loopback replication channel '{}'", channelName);
+    }
+
+    @Override
+    public void publish(VariableChange change) {
+        if (channel != null) {
+            channel.broadcast(this, change);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            channel.leave(this);
+            channel = null;
+        }
+    }
+
+    private void deliver(VariableChange change) {
+        for (Consumer<VariableChange> listener : listeners) {
+            try {
+                listener.accept(change);
+            } catch (Exception e) {
+                logger.error("Failed to apply replicated change {}", change, e);
+            }
+        }
+    }
+
+    /**
+     * A channel delivers every change on one thread, so all members see the same order.
+     */
+    private static class Channel {
+        private final String name;
+        private final List<LoopbackChangeBus> members = new CopyOnWriteArrayList<>();
+        private ExecutorService delivery;
+
+        Channel(String name) {
+            this.name = name;
+        }
+
+        synchronized void join(LoopbackChangeBus bus) {
+            if (delivery == null) {
+                delivery = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "VelocitySk-Loopback-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            members.add(bus);
+        }
+
+        synchronized void leave(LoopbackChangeBus bus) {
+            members.remove(bus);
+            if (members.isEmpty() && delivery != null) {
+                delivery.shutdown();
+                delivery = null;
+                CHANNELS.remove(name, this);
+            }
+        }
+
+        synchronized void broadcast(LoopbackChangeBus sender, VariableChange change) {
+            if (delivery == null) {
+                return;
+            }
+            delivery.execute(() -> {
+                for (LoopbackChangeBus member : members) {
+                    if (member != sender) {
+                        member.deliver(change);
+                    }
+                }
+            });
+        }
+    }
+}
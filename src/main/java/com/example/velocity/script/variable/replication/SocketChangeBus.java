@@ -0,0 +1,422 @@
+package com.example.velocity.script.variable.replication;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * TCP change bus. Every node listens on a port and keeps one outbound connection per peer;
+ * a single sender thread per peer keeps this node's changes in order on the wire.
+ * Changes published while a peer is unreachable are kept for it and sent when it is back,
+ * up to a limit; beyond that, the peer resyncs when it sees the gap (see
+ * {@link VariableChange#getSequence()}). New peers should still start from a database
+ * snapshot (or an export), since a resync only covers changes since a node last saw a peer.
+ *
+ * Only connections from allowed addresses are accepted, and both ends prove they know the
+ * shared secret before any change is sent: each sends a random challenge and answers the
+ * other's with an HMAC of it, so the secret itself never crosses the network.
+ */
+public class SocketChangeBus implements ChangeBus {
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final long RETRY_DELAY_MS = 1000;
+    // Changes kept per unreachable peer; past this it catches up with a resync instead
+    private static final int MAX_BACKLOG = 10_000;
+    private static final int MAGIC = 0x56534b52; // "VSKR"
+    private static final int CHALLENGE_LENGTH = 16;
+    private static final int PROOF_LENGTH = 32; // HmacSHA256
+    private static final byte CLIENT_PROOF = 'C';
+    private static final byte SERVER_PROOF = 'S';
+    // Allows connections from any address, leaving only the secret to keep others out
+    private static final String ANY_PEER = "*";
+
+    private final Logger logger;
+    private final String bindAddress;
+    private final int bindPort;
+    private final SecretKeySpec secret;
+    private final SecureRandom random;
+    private final List<Peer> peers;
+    private final List<String> allowedHosts;
+    private final Set<InetAddress> allowedAddresses;
+    private final List<Consumer<VariableChange>> listeners;
+    private final List<Socket> inbound;
+    private ServerSocket serverSocket;
+    private boolean allowAny;
+    private volatile boolean running;
+
+    /**
+     * @param bindAddress  Address to listen on
+     * @param secret       Secret shared by all peers
+     * @param allowedPeers Hosts that may connect, or "*" for any; empty allows the peers' hosts
+     */
+    public SocketChangeBus(Logger logger, String bindAddress, int bindPort, String secret,
+                           List<String> peerAddresses, List<String> allowedPeers) {
+        this.logger = logger;
+        this.bindAddress = bindAddress;
+        this.bindPort = bindPort;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.random = new SecureRandom();
+        this.peers = new ArrayList<>();
+        this.allowedHosts = new ArrayList<>(allowedPeers);
+        this.allowedAddresses = new HashSet<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.inbound = new CopyOnWriteArrayList<>();
+
+        for (String address : peerAddresses) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                logger.warn("Ignoring replication peer without a port: {}", address);
+                continue;
+            }
+            try {
+                String host = address.substring(0, colon);
+                int port = Integer.parseInt(address.substring(colon + 1));
+                peers.add(new Peer(host, port));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring replication peer with an invalid port: {}", address);
+            }
+        }
+        if (allowedHosts.isEmpty()) {
+            for (Peer peer : peers) {
+                allowedHosts.add(peer.host);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<VariableChange> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void start() throws IOException {
+        // Resolved once, so a host that moves needs a restart to be allowed again
+        for (String host : allowedHosts) {
+            if (host.equals(ANY_PEER)) {
+                allowAny = true;
+                continue;
+            }
+            try {
+                allowedAddresses.addAll(List.of(InetAddress.getAllByName(host)));
+            } catch (UnknownHostException e) {
+                logger.warn("Cannot resolve allowed replication peer '{}', ignoring it", host);
+            }
+        }
+
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), bindPort));
+        running = true;
+
+        Thread acceptThread = new Thread(this::acceptLoop, "VelocitySk-Replication-Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        logger.info("Replication listening on {}:{} with {} peer(s)", bindAddress, bindPort, peers.size());
+    }
+
+    @Override
+    public void publish(VariableChange change) {
+        // Encoded once for all peers, and before any of them so a change that cannot be
+        // encoded is reported as such rather than as an unreachable peer
+        byte[] frame;
+        try {
+            frame = change.toBytes();
+        } catch (IllegalArgumentException e) {
+            logger.error("Cannot replicate change {}: {}", change, e.getMessage());
+            return;
+        }
+        for (Peer peer : peers) {
+            peer.send(frame);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Error closing replication server socket", e);
+        }
+        for (Socket socket : inbound) {
+            closeQuietly(socket);
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!allowAny && !allowedAddresses.contains(socket.getInetAddress())) {
+                    logger.warn("Rejected replication connection from unlisted address {}",
+                        socket.getInetAddress().getHostAddress());
+                    closeQuietly(socket);
+                    continue;
+                }
+                inbound.add(socket);
+                Thread reader = new Thread(() -> readLoop(socket),
+                    "VelocitySk-Replication-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error accepting replication connection", e);
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!acceptHandshake(socket, in, out)) {
+                logger.warn("Rejected replication connection from {}: wrong secret",
+                    socket.getRemoteSocketAddress());
+                return;
+            }
+            while (running) {
+                VariableChange change = VariableChange.readFrom(in);
+                for (Consumer<VariableChange> listener : listeners) {
+                    try {
+                        listener.accept(change);
+                    } catch (Exception e) {
+                        logger.error("Failed to apply replicated change {}", change, e);
+                    }
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            logger.debug("Replication connection closed: {}", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            logger.warn("Replication connection from {} failed", socket.getRemoteSocketAddress(), e);
+        } finally {
+            inbound.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    // ========== HANDSHAKE ==========
+
+    /**
+     * Server side: challenges the connecting peer, checks its proof, then proves itself.
+     * @return whether the peer knows the secret
+     */
+    private boolean acceptHandshake(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        byte[] challenge = newChallenge();
+        out.writeInt(MAGIC);
+        out.write(challenge);
+        out.flush();
+
+        if (in.readInt() != MAGIC) {
+            return false;
+        }
+        byte[] peerChallenge = in.readNBytes(CHALLENGE_LENGTH);
+        byte[] proof = in.readNBytes(PROOF_LENGTH);
+        if (!MessageDigest.isEqual(proof, prove(CLIENT_PROOF, challenge))) {
+            return false;
+        }
+        out.write(prove(SERVER_PROOF, peerChallenge));
+        out.flush();
+        socket.setSoTimeout(0);
+        return true;
+    }
+
+    /**
+     * Client side: answers the peer's challenge and checks its answer to ours.
+     * @throws IOException if the peer is not a replication node with the same secret
+     */
+    private void connectHandshake(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a replication node");
+        }
+        byte[] peerChallenge = in.readNBytes(CHALLENGE_LENGTH);
+        byte[] challenge = newChallenge();
+        out.writeInt(MAGIC);
+        out.write(challenge);
+        out.write(prove(CLIENT_PROOF, peerChallenge));
+        out.flush();
+
+        byte[] proof = in.readNBytes(PROOF_LENGTH);
+        if (!MessageDigest.isEqual(proof, prove(SERVER_PROOF, challenge))) {
+            throw new IOException("handshake rejected, check replication.secret on both proxies");
+        }
+        socket.setSoTimeout(0);
+    }
+
+    private byte[] newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * HMAC of a challenge, tagged with the side answering it so a proof cannot be sent back.
+     */
+    private byte[] prove(byte side, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(side);
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+
+    /**
+     * An outbound connection. Frames wait in a bounded backlog until they are written, so
+     * changes published while the peer is unreachable are sent once it is back. If the
+     * backlog overflows, the oldest frames are dropped and the peer notices the gap in the
+     * sequence numbers and asks for a resync.
+     */
+    private class Peer {
+        private final String host;
+        private final int port;
+        private final ScheduledExecutorService sender;
+        // Only touched on the sender thread
+        private final Deque<byte[]> backlog;
+        private Socket socket;
+        private DataOutputStream out;
+        private boolean retryScheduled;
+        private boolean warned;
+        private long dropped;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.backlog = new ArrayDeque<>();
+            this.sender = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "VelocitySk-Replication-" + host + ":" + port);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void send(byte[] frame) {
+            sender.execute(() -> {
+                if (backlog.size() >= MAX_BACKLOG) {
+                    backlog.removeFirst();
+                    dropped++;
+                }
+                backlog.addLast(frame);
+                if (!retryScheduled) {
+                    flush();
+                }
+            });
+        }
+
+        /**
+         * Writes the backlog. Frames leave it only once flushed, so a frame may be sent twice
+         * after a failure; applying a change twice has no effect.
+         */
+        private void flush() {
+            try {
+                if (out == null) {
+                    connect();
+                }
+                int written = 0;
+                for (byte[] frame : backlog) {
+                    out.write(frame);
+                    written++;
+                }
+                out.flush();
+                for (int i = 0; i < written; i++) {
+                    backlog.removeFirst();
+                }
+                if (warned) {
+                    logger.info("Replication peer {}:{} is back, {} change(s) dropped while it was away",
+                        host, port, dropped);
+                }
+                warned = false;
+                dropped = 0;
+            } catch (IOException e) {
+                // Only warn once per outage, every change would fail the same way
+                if (!warned) {
+                    logger.warn("Replication peer {}:{} unreachable, keeping up to {} change(s) for it: {}",
+                        host, port, MAX_BACKLOG, e.getMessage());
+                    warned = true;
+                }
+                disconnect();
+                scheduleRetry();
+            }
+        }
+
+        private void scheduleRetry() {
+            if (retryScheduled || sender.isShutdown()) {
+                return;
+            }
+            retryScheduled = true;
+            sender.schedule(() -> {
+                retryScheduled = false;
+                if (!backlog.isEmpty()) {
+                    flush();
+                }
+            }, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            connectHandshake(socket, new DataInputStream(new BufferedInputStream(socket.getInputStream())), out);
+            logger.info("Connected to replication peer {}:{}", host, port);
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+            socket = null;
+            out = null;
+        }
+
+        void close() {
+            sender.execute(this::disconnect);
+            sender.shutdown();
+        }
+    }
+}
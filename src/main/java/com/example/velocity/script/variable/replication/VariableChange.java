@@ -0,0 +1,164 @@
+package com.example.velocity.script.variable.replication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single change to a global variable, as published on a {@link ChangeBus}.
+ * Changes are ordered by (version, origin); a higher version always wins,
+ * and the origin node id breaks ties between concurrent writes.
+ */
+public final class VariableChange {
+    // Largest name or value sent, well past any sensible variable but bounding what a reader allocates
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    private final Type type;
+    private final String name;
+    private final String value;
+    private final long version;
+    private final String origin;
+    private final long sequence;
+
+    public VariableChange(Type type, String name, String value, long version, String origin, long sequence) {
+        this.type = type;
+        this.name = name;
+        this.value = value;
+        this.version = version;
+        this.origin = origin;
+        this.sequence = sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Variable name without braces, or the list prefix (e.g. "coins") for DELETE_LIST.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Position of this change in its origin's stream, starting at 1 each time the origin
+     * starts. Receivers use it to notice changes they missed. 0 for resync requests and
+     * the changes sent in answer to one, which are outside the stream.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Checks if this change should replace state last written at the given version.
+     */
+    public boolean isNewerThan(long otherVersion, String otherOrigin) {
+        if (version != otherVersion) {
+            return version > otherVersion;
+        }
+        if (otherOrigin == null) {
+            return true;
+        }
+        return origin.compareTo(otherOrigin) > 0;
+    }
+
+    /**
+     * Encodes this change as it is written by {@link #writeTo}, so a change that cannot be
+     * sent is found before anything reaches the stream.
+     * @throws IllegalArgumentException if the name or value is longer than can be sent
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // A byte array stream does not fail
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name or value is longer than can be sent
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        writeString(out, name);
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+        out.writeLong(version);
+        writeString(out, origin);
+        out.writeLong(sequence);
+    }
+
+    public static VariableChange readFrom(DataInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        Type[] types = Type.values();
+        if (ordinal >= types.length) {
+            throw new IOException("Unknown change type: " + ordinal);
+        }
+        String name = readString(in);
+        String value = in.readBoolean() ? readString(in) : null;
+        long version = in.readLong();
+        String origin = readString(in);
+        long sequence = in.readLong();
+        return new VariableChange(types[ordinal], name, value, version, origin, sequence);
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes, unlike writeUTF which stops at 64KB.
+     */
+    private static void writeString(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is over the "
+                + MAX_STRING_BYTES + " byte limit");
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + name + " v" + version + "@" + origin + "#" + sequence;
+    }
+
+    public enum Type {
+        SET,
+        DELETE,
+        DELETE_LIST,
+        /**
+         * Asks nodes to send their own changes again. The value lists, one per line,
+         * "origin=version": each listed origin sends its changes newer than that version.
+         */
+        RESYNC
+    }
+}
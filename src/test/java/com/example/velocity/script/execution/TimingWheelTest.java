@@ -0,0 +1,85 @@
+package com.example.velocity.script.execution;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    // 512 ticks of 2 ms, so one turn of the wheel is about a second
+    private static final long TICK_MILLIS = 2;
+    private static final long TURN_MILLIS = 512 * TICK_MILLIS;
+
+    private final TimingWheel wheel = new TimingWheel(NOPLogger.NOP_LOGGER, TICK_MILLIS);
+
+    @AfterEach
+    void close() {
+        wheel.close();
+    }
+
+    @Test
+    void runsShortDelay() throws InterruptedException {
+        wheel.start();
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(20, done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    void delayLongerThanOneTurnWaitsForItsRound() throws InterruptedException {
+        wheel.start();
+        long delay = TURN_MILLIS * 2 + TURN_MILLIS / 2;
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.schedule(delay, () -> {
+            ranAt.set(System.nanoTime());
+            done.countDown();
+        });
+
+        // Its bucket comes round twice before the task is due
+        assertFalse(done.await(TURN_MILLIS * 2, TimeUnit.MILLISECONDS));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    @Test
+    void delayOfExactlyOneTurn() throws InterruptedException {
+        wheel.start();
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.schedule(TURN_MILLIS, () -> {
+            ranAt.set(System.nanoTime());
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(TURN_MILLIS));
+    }
+
+    @Test
+    void cancelledTaskDoesNotRun() throws InterruptedException {
+        wheel.start();
+        AtomicBoolean ran = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(TURN_MILLIS + 50, () -> ran.set(true)).cancel();
+        wheel.schedule(TURN_MILLIS + 100, later::countDown);
+
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertEquals(0, wheel.getPendingCount());
+    }
+}
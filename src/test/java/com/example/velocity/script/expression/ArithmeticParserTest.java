@@ -0,0 +1,86 @@
+package com.example.velocity.script.expression;
+
+import com.example.velocity.script.execution.ExecutionContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ArithmeticParserTest {
+    private final ExecutionContext context = new ExecutionContext.Builder()
+        .arguments(List.of("amount", "price"), new String[]{"7", "2.5"})
+        .build();
+
+    private String evaluate(String text) {
+        Expression expression = ArithmeticParser.parse(text);
+        assertNotNull(expression, text);
+        return expression.evaluate(context);
+    }
+
+    private double evaluateNumeric(String text) {
+        NumericExpression expression = ArithmeticParser.parseNumeric(text);
+        assertNotNull(expression, text);
+        return expression.evaluate(context);
+    }
+
+    @Test
+    void precedence() {
+        assertEquals("7", evaluate("(1 + 2 * 3)"));
+        assertEquals("9", evaluate("((1 + 2) * 3)"));
+        assertEquals("1", evaluate("(7 - 4 - 2)"));
+        assertEquals("2", evaluate("(16 / 4 / 2)"));
+        assertEquals("-9", evaluate("(-3 ^ 2)"));
+        assertEquals("17.5", evaluate("%amount% * %price% - 1 + 1"));
+    }
+
+    @Test
+    void powerIsRightAssociative() {
+        assertEquals(512.0, evaluateNumeric("2 ^ 3 ^ 2"));
+        assertEquals(64.0, evaluateNumeric("(2 ^ 3) ^ 2"));
+        assertEquals(18.0, evaluateNumeric("2 * 3 ^ 2"));
+    }
+
+    @Test
+    void percentIsRemainderOrPlaceholder() {
+        assertEquals(1.0, evaluateNumeric("10 % 3"));
+        assertEquals(1.0, evaluateNumeric("%amount% % 3"));
+        assertEquals(3.0, evaluateNumeric("%amount%%%price%+1"));
+        assertEquals(17.0, evaluateNumeric("%amount% + 10"));
+    }
+
+    @Test
+    void builtins() {
+        assertEquals("3", evaluate("round(2.5)"));
+        assertEquals("2", evaluate("min(%amount%, 2, 5)"));
+        assertEquals("7", evaluate("max(1, %amount%)"));
+    }
+
+    @Test
+    void divisionByZeroIsNotSet() {
+        assertNull(evaluate("%amount% / 0"));
+    }
+
+    @Test
+    void datesAndPhoneNumbersStayText() {
+        assertNull(ArithmeticParser.parse("2024-01-01"));
+        assertNull(ArithmeticParser.parse("555-1234"));
+        assertNull(ArithmeticParser.parse("10/12/2024"));
+        assertNull(ArithmeticParser.parse("42"));
+        assertNull(ArithmeticParser.parse("hello world"));
+        // Comparisons expect a number, so constant formulas work there without parentheses
+        assertEquals(3600.0, evaluateNumeric("60 * 60"));
+    }
+
+    @Test
+    void parseDecimal() {
+        assertEquals(-12.0, ArithmeticParser.parseDecimal("-12"));
+        assertEquals(3.5, ArithmeticParser.parseDecimal(" 3.5 "));
+        assertEquals(1000.0, ArithmeticParser.parseDecimal("1e3"));
+        assertEquals(0.1, ArithmeticParser.parseDecimal("0.1"));
+        assertEquals(Double.NaN, ArithmeticParser.parseDecimal("12abc"));
+        assertEquals(Double.NaN, ArithmeticParser.parseDecimal(""));
+    }
+}
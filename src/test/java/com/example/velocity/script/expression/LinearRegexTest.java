@@ -0,0 +1,65 @@
+package com.example.velocity.script.expression;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinearRegexTest {
+    @AfterEach
+    void resetStepLimit() {
+        LinearRegex.setStepLimit(0);
+    }
+
+    @Test
+    void matchesWholeText() {
+        LinearRegex regex = LinearRegex.compile("[a-z]+\\d{2,3}", false);
+        assertTrue(regex.matches("abc12"));
+        assertTrue(regex.matches("abc123"));
+        assertFalse(regex.matches("abc1234"));
+        assertFalse(regex.matches("ABC12"));
+        assertTrue(LinearRegex.compile("[a-z]+\\d{2,3}", true).matches("ABC12"));
+    }
+
+    @Test
+    void alternationAndGroups() {
+        LinearRegex regex = LinearRegex.compile("(?:hi|hello) (there|world)!?", false);
+        assertTrue(regex.matches("hello world"));
+        assertTrue(regex.matches("hi there!"));
+        assertFalse(regex.matches("hey there"));
+    }
+
+    @Test
+    void nestedQuantifiersRunInLinearTime() {
+        // Each of these backtracks exponentially in java.util.regex on the text below
+        String text = "a".repeat(5_000) + "!";
+        String[] patterns = {"(a+)+$", "(a|a)*$", "(a*)*b", "(a|aa)+$", "(.*a){20}"};
+        for (String pattern : patterns) {
+            LinearRegex regex = LinearRegex.compile(pattern, false);
+            long start = System.nanoTime();
+            assertFalse(regex.matches(text), pattern);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(millis < 2_000, pattern + " took " + millis + " ms");
+        }
+    }
+
+    @Test
+    void givesUpWhenStepLimitRunsOut() {
+        LinearRegex regex = LinearRegex.compile("(a|aa)+", false);
+        String text = "a".repeat(1_000);
+        assertTrue(regex.matches(text));
+
+        LinearRegex.setStepLimit(100);
+        assertFalse(regex.matches(text));
+    }
+
+    @Test
+    void rejectsBacktrackingFeatures() {
+        assertThrows(IllegalArgumentException.class, () -> LinearRegex.compile("(a)\\1", false));
+        assertThrows(IllegalArgumentException.class, () -> LinearRegex.compile("a(?=b)", false));
+        assertThrows(IllegalArgumentException.class, () -> LinearRegex.compile("a)", false));
+        assertThrows(IllegalArgumentException.class, () -> LinearRegex.compile("a{1,5000}", false));
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.velocity.script.variable;
+
+import com.example.velocity.script.variable.replication.ChangeBus;
+import com.example.velocity.script.variable.replication.VariableChange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.helpers.NOPLogger;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Applying changes from other nodes: only a change newer than what this node has wins.
+ */
+class VariableReplicationTest {
+    private static final long HOUR = 3_600_000;
+
+    @TempDir
+    Path folder;
+
+    private VariableStorage storage;
+    private VariableManager manager;
+    private TestBus bus;
+    private long sequence;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new VariableStorage(NOPLogger.NOP_LOGGER, folder.resolve("variables.db").toFile());
+        storage.initialize();
+        manager = new VariableManager(NOPLogger.NOP_LOGGER, storage);
+        bus = new TestBus();
+        manager.attachChangeBus(bus, "local", HOUR);
+    }
+
+    @AfterEach
+    void tearDown() {
+        storage.close();
+    }
+
+    private void receive(VariableChange.Type type, String value, long version, String origin) {
+        bus.listener.accept(new VariableChange(type, "coins", value, version, origin, ++sequence));
+    }
+
+    private String coins() {
+        return manager.getVariable(VariableManager.EMPTY_SCOPE, "{coins}");
+    }
+
+    @Test
+    void newerChangeReplacesOlder() throws SQLException {
+        receive(VariableChange.Type.SET, "10", 5, "remote");
+        receive(VariableChange.Type.SET, "20", 6, "remote");
+
+        assertEquals("20", coins());
+        assertEquals("20", storage.loadVariable("coins"));
+    }
+
+    @Test
+    void staleChangeIsIgnored() throws SQLException {
+        receive(VariableChange.Type.SET, "20", 6, "remote");
+        receive(VariableChange.Type.SET, "10", 5, "remote");
+
+        assertEquals("20", coins());
+        assertEquals("20", storage.loadVariable("coins"));
+    }
+
+    @Test
+    void originBreaksVersionTies() {
+        receive(VariableChange.Type.SET, "from-b", 7, "b");
+        receive(VariableChange.Type.SET, "from-a", 7, "a");
+        assertEquals("from-b", coins());
+
+        receive(VariableChange.Type.SET, "from-c", 7, "c");
+        assertEquals("from-c", coins());
+    }
+
+    @Test
+    void deletionRejectsOlderSetArrivingLate() throws SQLException {
+        receive(VariableChange.Type.SET, "10", 5, "remote");
+        receive(VariableChange.Type.DELETE, null, 8, "remote");
+        receive(VariableChange.Type.SET, "30", 7, "other");
+
+        assertNull(coins());
+        assertNull(storage.loadVariable("coins"));
+    }
+
+    @Test
+    void localWriteAfterRemoteChangeWins() {
+        receive(VariableChange.Type.SET, "10", 100, "remote");
+        manager.setVariable(VariableManager.EMPTY_SCOPE, "{coins}", "11");
+
+        VariableChange published = bus.published.get(bus.published.size() - 1);
+        assertEquals("11", published.getValue());
+        assertTrue(published.getVersion() > 100);
+
+        // A write another node made before it saw ours loses, whatever its origin
+        receive(VariableChange.Type.SET, "12", 100, "zzz");
+        assertEquals("11", coins());
+    }
+
+    @Test
+    void versionsSurviveRestart() throws SQLException {
+        receive(VariableChange.Type.SET, "20", 6, "remote");
+
+        VariableManager restarted = new VariableManager(NOPLogger.NOP_LOGGER, storage);
+        TestBus restartedBus = new TestBus();
+        restarted.attachChangeBus(restartedBus, "local", HOUR);
+        restarted.loadGlobalVariables();
+        restartedBus.listener.accept(new VariableChange(VariableChange.Type.SET, "coins", "10", 5, "remote", 1));
+
+        assertEquals("20", restarted.getVariable(VariableManager.EMPTY_SCOPE, "{coins}"));
+        assertEquals("20", storage.loadVariable("coins"));
+    }
+
+    @Test
+    void sequenceGapAsksForResync() {
+        bus.listener.accept(new VariableChange(VariableChange.Type.SET, "coins", "1", 1, "remote", 1));
+        bus.listener.accept(new VariableChange(VariableChange.Type.SET, "coins", "3", 3, "remote", 3));
+
+        VariableChange request = bus.published.get(bus.published.size() - 1);
+        assertEquals(VariableChange.Type.RESYNC, request.getType());
+        assertEquals("remote=1", request.getValue().trim());
+    }
+
+    private static class TestBus implements ChangeBus {
+        private final List<VariableChange> published = new ArrayList<>();
+        private Consumer<VariableChange> listener;
+
+        @Override
+        public void publish(VariableChange change) {
+            published.add(change);
+        }
+
+        @Override
+        public void subscribe(Consumer<VariableChange> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
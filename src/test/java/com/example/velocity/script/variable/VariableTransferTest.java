@@ -0,0 +1,173 @@
+package com.example.velocity.script.variable;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class VariableTransferTest {
+    // Values that need quoting or escaping in one format or the other
+    private static final Map<String, String> AWKWARD = new LinkedHashMap<>();
+
+    static {
+        AWKWARD.put("plain", "hello");
+        AWKWARD.put("comma", "a,b");
+        AWKWARD.put("quote", "say \"hi\"");
+        AWKWARD.put("newline", "line one\nline two");
+        AWKWARD.put("crlf", "windows\r\nline");
+        AWKWARD.put("empty", "");
+        AWKWARD.put("escapes", "back\\slash\ttab \\n not a newline \\u0041");
+        AWKWARD.put("control", "bell\u0007 unit\u001f end");
+        AWKWARD.put("unicode", "naïve ✓ 日本");
+        AWKWARD.put("name, with \"quotes\"\n", "odd name");
+    }
+
+    @TempDir
+    Path folder;
+
+    private VariableStorage storage;
+    private VariableManager manager;
+    private VariableTransfer transfer;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new VariableStorage(NOPLogger.NOP_LOGGER, folder.resolve("variables.db").toFile());
+        storage.initialize();
+        manager = new VariableManager(NOPLogger.NOP_LOGGER, storage);
+        transfer = new VariableTransfer(NOPLogger.NOP_LOGGER, storage, manager, folder);
+    }
+
+    @AfterEach
+    void tearDown() {
+        storage.close();
+    }
+
+    private void setAll(VariableManager target, Map<String, String> variables) {
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            target.setVariable(VariableManager.EMPTY_SCOPE, "{" + entry.getKey() + "}", entry.getValue());
+        }
+    }
+
+    @Test
+    void csvQuotesOnlyWhatItMust() throws IOException, SQLException {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("a", "plain");
+        variables.put("b", "a,b");
+        variables.put("c", "say \"hi\"");
+        variables.put("d", "two\nlines");
+        variables.put("e", "");
+        setAll(manager, variables);
+
+        Path file = transfer.resolveFile("out.csv");
+        assertEquals(5, transfer.exportTo(file, null, false));
+
+        assertEquals("name,value\n"
+            + "a,plain\n"
+            + "b,\"a,b\"\n"
+            + "c,\"say \"\"hi\"\"\"\n"
+            + "d,\"two\nlines\"\n"
+            + "e,\"\"\n", Files.readString(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void csvRoundTrip() throws IOException, SQLException {
+        assertRoundTrip("backup.csv");
+    }
+
+    @Test
+    void jsonLinesRoundTrip() throws IOException, SQLException {
+        assertRoundTrip("backup.jsonl");
+    }
+
+    private void assertRoundTrip(String fileName) throws IOException, SQLException {
+        setAll(manager, AWKWARD);
+        Path file = transfer.resolveFile(fileName);
+        assertEquals(AWKWARD.size(), transfer.exportTo(file, null, false));
+
+        Path otherFolder = Files.createDirectory(folder.resolve("other"));
+        VariableStorage otherStorage = new VariableStorage(NOPLogger.NOP_LOGGER, otherFolder.resolve("variables.db").toFile());
+        otherStorage.initialize();
+        try {
+            VariableManager otherManager = new VariableManager(NOPLogger.NOP_LOGGER, otherStorage);
+            VariableTransfer otherTransfer = new VariableTransfer(NOPLogger.NOP_LOGGER, otherStorage, otherManager, folder);
+            assertEquals(AWKWARD.size(), otherTransfer.importFrom(file, null));
+
+            for (Map.Entry<String, String> entry : AWKWARD.entrySet()) {
+                assertEquals(entry.getValue(), otherManager.getVariable(VariableManager.EMPTY_SCOPE, "{" + entry.getKey() + "}"),
+                    entry.getKey());
+                assertEquals(entry.getValue(), otherStorage.loadVariable(entry.getKey()), entry.getKey());
+            }
+        } finally {
+            otherStorage.close();
+        }
+    }
+
+    @Test
+    void importFiltersByPrefix() throws IOException, SQLException {
+        Path file = folder.resolve("coins.csv");
+        Files.writeString(file, "name,value\ncoins::a,1\nrank::a,vip\ncoins::b,\"2\"\n");
+
+        assertEquals(2, transfer.importFrom(file, "coins::"));
+
+        assertEquals("1", manager.getVariable(VariableManager.EMPTY_SCOPE, "{coins::a}"));
+        assertEquals("2", manager.getVariable(VariableManager.EMPTY_SCOPE, "{coins::b}"));
+        assertNull(manager.getVariable(VariableManager.EMPTY_SCOPE, "{rank::a}"));
+    }
+
+    @Test
+    void storedCountOnlyGrowsForNewRows() throws IOException, SQLException {
+        manager.setVariable(VariableManager.EMPTY_SCOPE, "{coins::a}", "1");
+        manager.setVariable(VariableManager.EMPTY_SCOPE, "{coins::a}", "2");
+        Path file = folder.resolve("coins.csv");
+        Files.writeString(file, "name,value\ncoins::a,3\ncoins::b,4\ncoins::b,5\n");
+
+        transfer.importFrom(file, null);
+
+        assertEquals(2, manager.getStatistics().getPersistedCount());
+        assertEquals(2, storage.getVariableCount());
+        assertEquals("5", storage.loadVariable("coins::b"));
+    }
+
+    @Test
+    void rejectsMalformedFiles() throws IOException {
+        Path csv = folder.resolve("bad.csv");
+        Files.writeString(csv, "name,value\na,\"unterminated\n");
+        assertThrows(IOException.class, () -> transfer.importFrom(csv, null));
+
+        Path json = folder.resolve("bad.jsonl");
+        Files.writeString(json, "{\"name\":\"a\",\"value\":\"bad \\q escape\"}\n");
+        assertThrows(IOException.class, () -> transfer.importFrom(json, null));
+    }
+
+    @Test
+    void exportKeepsExistingFileUnlessOverwriting() throws IOException, SQLException {
+        manager.setVariable(VariableManager.EMPTY_SCOPE, "{a}", "1");
+        Path file = folder.resolve("out.jsonl");
+        Files.writeString(file, "keep me\n");
+
+        assertThrows(FileAlreadyExistsException.class, () -> transfer.exportTo(file, null, false));
+        assertEquals("keep me\n", Files.readString(file));
+
+        assertEquals(1, transfer.exportTo(file, null, true));
+        assertEquals("{\"name\":\"a\",\"value\":\"1\"}\n", Files.readString(file));
+    }
+
+    @Test
+    void refusesFilesOutsideFolder() {
+        assertThrows(IOException.class, () -> transfer.resolveFile("../escape.csv"));
+    }
+}
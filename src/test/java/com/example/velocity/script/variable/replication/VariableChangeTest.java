@@ -0,0 +1,71 @@
+package com.example.velocity.script.variable.replication;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VariableChangeTest {
+    private static VariableChange set(long version, String origin) {
+        return new VariableChange(VariableChange.Type.SET, "coins", "1", version, origin, 1);
+    }
+
+    @Test
+    void higherVersionWins() {
+        assertTrue(set(5, "a").isNewerThan(4, "b"));
+        assertFalse(set(4, "b").isNewerThan(5, "a"));
+    }
+
+    @Test
+    void originBreaksTies() {
+        assertTrue(set(5, "b").isNewerThan(5, "a"));
+        assertFalse(set(5, "a").isNewerThan(5, "b"));
+        // The same change again is not newer, so a repeat is ignored
+        assertFalse(set(5, "a").isNewerThan(5, "a"));
+    }
+
+    @Test
+    void anythingIsNewerThanUnversionedState() {
+        assertTrue(set(1, "a").isNewerThan(0, null));
+    }
+
+    @Test
+    void roundTripsThroughBytes() throws IOException {
+        String value = "multi\nline \"quoted\" value ✓ " + "x".repeat(100_000);
+        VariableChange change = new VariableChange(VariableChange.Type.SET, "list::ü", value, 42, "node-a", 7);
+
+        VariableChange read = VariableChange.readFrom(new DataInputStream(new ByteArrayInputStream(change.toBytes())));
+
+        assertEquals(VariableChange.Type.SET, read.getType());
+        assertEquals("list::ü", read.getName());
+        assertEquals(value, read.getValue());
+        assertEquals(42, read.getVersion());
+        assertEquals("node-a", read.getOrigin());
+        assertEquals(7, read.getSequence());
+    }
+
+    @Test
+    void roundTripsDeletionWithoutValue() throws IOException {
+        VariableChange change = new VariableChange(VariableChange.Type.DELETE_LIST, "coins", null, 3, "node-b", 2);
+
+        VariableChange read = VariableChange.readFrom(new DataInputStream(new ByteArrayInputStream(change.toBytes())));
+
+        assertEquals(VariableChange.Type.DELETE_LIST, read.getType());
+        assertNull(read.getValue());
+    }
+
+    @Test
+    void rejectsUnknownType() {
+        byte[] bytes = new VariableChange(VariableChange.Type.SET, "a", "b", 1, "n", 1).toBytes();
+        bytes[0] = 99;
+        assertThrows(IOException.class,
+            () -> VariableChange.readFrom(new DataInputStream(new ByteArrayInputStream(bytes))));
+    }
+}